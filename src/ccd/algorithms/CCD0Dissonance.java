@@ -0,0 +1,219 @@
+package ccd.algorithms;
+
+import beast.base.evolution.tree.Tree;
+import ccd.model.CCD0;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+import ccd.model.ExpansionBudget;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the entropy of a {@link CCD0} on a tree set and the dissonance between its two halves,
+ * i.e. the entropy of the full CCD0 minus the mean entropy of the CCD0s on the first and second half
+ * of the trees, with a single CCD graph.
+ *
+ * <p>
+ * A CCD0 on a subset of the trees is the expansion of the clades observed in that subset,
+ * which is a subgraph of the expansion of all clades; moreover, its CCPs only depend on the
+ * clade credibilities. So instead of building (and expanding) a CCD0 per half,
+ * only the number of occurrences of each clade in the first half is recorded,
+ * and the CCPs and entropies of both halves are computed on the full, expanded CCD0
+ * with the clades not observed in a half having zero weight.
+ * </p>
+ *
+ * <p>
+ * This relies on the CCD0 on all trees being fully expanded; with a limited expansion
+ * (e.g. an {@link ExpansionBudget} set on {@link #getCCD()} that stopped the expand step),
+ * the graph restricted to a half is not the expansion of that half, so the half entropies are then rejected.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class CCD0Dissonance {
+
+    /** The CCD0 on all trees. */
+    private final CCD0 ccd;
+
+    /** Number of occurrences of each clade in the first half of the trees. */
+    private Map<Clade, Integer> firstHalfOccurrences = null;
+
+    /** Number of trees in the first half. */
+    private int numFirstHalfTrees = 0;
+
+    /** Whether the CCD0 was expanded since the last tree was added. */
+    private boolean expanded = false;
+
+    /**
+     * Constructor for an empty CCD0 on trees with the given number of leaves.
+     *
+     * @param numLeaves number of leaves of the trees
+     */
+    public CCD0Dissonance(int numLeaves) {
+        this.ccd = new CCD0(numLeaves, false);
+    }
+
+    /**
+     * Adds the given tree; the trees of the first half have to be added before
+     * {@link #endFirstHalf()} is called, those of the second half afterwards.
+     *
+     * @param tree to be added
+     */
+    public void addTree(Tree tree) {
+        ccd.addTree(tree);
+        expanded = false;
+    }
+
+    /**
+     * Marks that all trees of the first half have been added;
+     * records the number of occurrences of the clades so far.
+     */
+    public void endFirstHalf() {
+        if (firstHalfOccurrences != null) {
+            throw new IllegalStateException("End of first half of trees already marked.");
+        }
+        numFirstHalfTrees = ccd.getNumberOfBaseTrees();
+        firstHalfOccurrences = new HashMap<>(4 * ccd.getNumberOfClades() / 3 + 1);
+        for (Clade clade : ccd.getClades()) {
+            firstHalfOccurrences.put(clade, clade.getNumberOfOccurrences());
+        }
+    }
+
+    /** @return the CCD0 on all trees */
+    public CCD0 getCCD() {
+        return ccd;
+    }
+
+    /** @return the entropy of the CCD0 on all trees */
+    public double getEntropy() {
+        expandIfNecessary();
+        return ccd.getEntropy();
+    }
+
+    /**
+     * Computes the entropies of the CCD0s on the first and on the second half of the trees,
+     * both in one pass over the CCD graph.
+     *
+     * @return the entropies of the CCD0s on the first and on the second half of the trees,
+     * or NaN for a half without trees
+     * @throws IllegalStateException if the CCD0 on all trees was not fully expanded
+     */
+    public double[] getHalfEntropies() {
+        if (firstHalfOccurrences == null) {
+            throw new IllegalStateException("End of first half of trees not marked.");
+        }
+        double[] entropies = new double[2];
+        if ((numFirstHalfTrees == 0) || (numFirstHalfTrees == ccd.getNumberOfBaseTrees())) {
+            entropies[0] = entropies[1] = Double.NaN;
+            return entropies;
+        }
+
+        expandIfNecessary();
+        ExpansionBudget budget = ccd.getExpansionBudget();
+        if ((budget != null) && !budget.isComplete()) {
+            throw new IllegalStateException("Entropies of halves require a fully expanded CCD0, " +
+                    "but the expansion was stopped by its budget.");
+        }
+
+        List<Clade> clades = new ArrayList<>(ccd.getClades());
+        clades.sort(Comparator.comparingInt(Clade::size));
+        Map<Clade, Integer> indices = new HashMap<>(4 * clades.size() / 3 + 1);
+        for (int i = 0; i < clades.size(); i++) {
+            indices.put(clades.get(i), i);
+        }
+
+        // bottom-up, the log of the sum of products of clade credibilities over all subtrees
+        // of a clade (per half), and the log of the normalizing term of the CCPs of its partitions;
+        // since all subtrees of a clade contain the same number of clades,
+        // we can use the number of occurrences instead of the clade credibilities
+        double[][] logSums = new double[2][clades.size()];
+        double[][] logNormalizers = new double[2][clades.size()];
+        for (int i = 0; i < clades.size(); i++) {
+            Clade clade = clades.get(i);
+            if (clade.isLeaf()) {
+                continue;
+            }
+
+            int firstHalfCount = firstHalfOccurrences.getOrDefault(clade, 0);
+            int[] counts = {firstHalfCount, clade.getNumberOfOccurrences() - firstHalfCount};
+            for (int h = 0; h < 2; h++) {
+                if (counts[h] == 0) {
+                    logSums[h][i] = Double.NEGATIVE_INFINITY;
+                    continue;
+                }
+
+                // log-sum-exp over the partitions
+                double max = Double.NEGATIVE_INFINITY;
+                for (CladePartition partition : clade.getPartitions()) {
+                    max = Math.max(max, getLogPartitionValue(partition, logSums[h], indices));
+                }
+                double sum = 0;
+                if (max != Double.NEGATIVE_INFINITY) {
+                    for (CladePartition partition : clade.getPartitions()) {
+                        sum += Math.exp(getLogPartitionValue(partition, logSums[h], indices) - max);
+                    }
+                }
+                logNormalizers[h][i] = max + Math.log(sum);
+                logSums[h][i] = Math.log(counts[h]) + logNormalizers[h][i];
+            }
+        }
+
+        // top-down, the clade probabilities and with them the entropies
+        for (int h = 0; h < 2; h++) {
+            double[] probabilities = new double[clades.size()];
+            probabilities[clades.size() - 1] = 1;
+            double entropy = 0;
+            for (int i = clades.size() - 1; i >= 0; i--) {
+                Clade clade = clades.get(i);
+                if (clade.isLeaf() || (probabilities[i] == 0)) {
+                    continue;
+                }
+
+                for (CladePartition partition : clade.getPartitions()) {
+                    double logValue = getLogPartitionValue(partition, logSums[h], indices);
+                    if (logValue == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    double logCCP = logValue - logNormalizers[h][i];
+                    double probability = probabilities[i] * Math.exp(logCCP);
+                    entropy -= probability * logCCP;
+                    probabilities[indices.get(partition.getChildClades()[0])] += probability;
+                    probabilities[indices.get(partition.getChildClades()[1])] += probability;
+                }
+            }
+            entropies[h] = entropy;
+        }
+
+        return entropies;
+    }
+
+    /**
+     * Returns the dissonance of the two halves of the trees, that is,
+     * the entropy of the CCD0 on all trees minus the mean entropy of the CCD0s on the two halves.
+     *
+     * @return dissonance of the two halves of the trees
+     */
+    public double getDissonance() {
+        double[] halfEntropies = getHalfEntropies();
+        return getEntropy() - (halfEntropies[0] + halfEntropies[1]) / 2.0;
+    }
+
+    /* Helper method - adding trees does not expand the CCD graph, which the entropies require */
+    private void expandIfNecessary() {
+        if (!expanded) {
+            ccd.initialize();
+            expanded = true;
+        }
+    }
+
+    /* Helper method */
+    private static double getLogPartitionValue(CladePartition partition, double[] logSums, Map<Clade, Integer> indices) {
+        return logSums[indices.get(partition.getChildClades()[0])]
+                + logSums[indices.get(partition.getChildClades()[1])];
+    }
+
+}
@@ -0,0 +1,108 @@
+package ccd.algorithms;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import ccd.model.CCD1;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+import ccd.model.bitsets.BitSet;
+
+/**
+ * Maintains the entropy of a {@link CCD1} while trees are added, without traversing the CCD graph.
+ *
+ * <p>
+ * In a CCD1 on N trees, a clade C with f(C) occurrences has probability f(C)/N
+ * and a clade partition {C1, C2} of C has CCP f(C1,C2)/f(C), so the entropy is<br>
+ * H = -1/N * (sum over all partitions of f(C1,C2) log f(C1,C2) - sum over all non-leaf clades of f(C) log f(C)).<br>
+ * Adding a tree only changes the counts of its clades and clade partitions,
+ * so the two sums are updated in time linear in the size of the tree.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class CCD1EntropyTracker {
+
+    /** The CCD1 on the added trees. */
+    private final CCD1 ccd;
+
+    /** Sum of f(C1,C2) log f(C1,C2) over all partitions minus sum of f(C) log f(C) over all non-leaf clades. */
+    private double sumCountLogCounts = 0;
+
+    /** Number of clade partitions in the CCD1. */
+    private int numPartitions = 0;
+
+    /**
+     * Constructor for an empty CCD1 on trees with the given number of leaves.
+     *
+     * @param numLeaves number of leaves of the trees
+     */
+    public CCD1EntropyTracker(int numLeaves) {
+        this.ccd = new CCD1(numLeaves, false);
+    }
+
+    /**
+     * Adds the given tree to the CCD1 and updates the entropy.
+     *
+     * @param tree to be added
+     */
+    public void addTree(Tree tree) {
+        ccd.addTree(tree);
+        update(tree.getRoot());
+    }
+
+    /** @return the CCD1 on the added trees */
+    public CCD1 getCCD() {
+        return ccd;
+    }
+
+    /** @return the entropy of the CCD1 on the added trees */
+    public double getEntropy() {
+        if (ccd.getNumberOfBaseTrees() == 0) {
+            return 0;
+        }
+        // rounding errors can result in a tiny negative value for a single tree topology
+        return Math.max(0, -sumCountLogCounts / ccd.getNumberOfBaseTrees());
+    }
+
+    /** @return the number of clades (including leaves) in the CCD1 */
+    public int getNumberOfClades() {
+        return ccd.getNumberOfClades();
+    }
+
+    /** @return the number of clade partitions in the CCD1 */
+    public int getNumberOfCladePartitions() {
+        return numPartitions;
+    }
+
+    /* Recursive helper method - updates the sums for the clades and partitions of the given vertex */
+    private BitSet update(Node vertex) {
+        BitSet cladeInBits = BitSet.newBitSet(ccd.getSizeOfLeavesArray());
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+            return cladeInBits;
+        }
+
+        Clade firstChildClade = ccd.getClade(update(vertex.getChildren().get(0)));
+        Clade secondChildClade = ccd.getClade(update(vertex.getChildren().get(1)));
+        cladeInBits.or(firstChildClade.getCladeInBits());
+        cladeInBits.or(secondChildClade.getCladeInBits());
+
+        // the counts were just increased by one
+        Clade clade = ccd.getClade(cladeInBits);
+        CladePartition partition = clade.getCladePartition(firstChildClade, secondChildClade);
+        int partitionCount = partition.getNumberOfOccurrences();
+        if (partitionCount == 1) {
+            numPartitions++;
+        }
+        sumCountLogCounts += getCountLogCountIncrease(partitionCount)
+                - getCountLogCountIncrease(clade.getNumberOfOccurrences());
+
+        return cladeInBits;
+    }
+
+    /* Helper method - returns n log n - (n-1) log (n-1) */
+    private static double getCountLogCountIncrease(int n) {
+        return (n == 1) ? 0 : n * Math.log(n) - (n - 1) * Math.log(n - 1);
+    }
+
+}
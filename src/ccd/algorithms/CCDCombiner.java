@@ -7,8 +7,14 @@ import ccd.model.CladePartition;
 import ccd.model.bitsets.BitSet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
 
 /**
  * This class provides methods to combine CCDs into a single CCD.
@@ -223,19 +229,10 @@ public class CCDCombiner {
      * @return combined CCD with clade partition probabilities set to the product
      */
     public static AbstractCCD product(AbstractCCD[] baseCCDs) {
-        /* Caching table for prior probabilities of clade partitions
-        with respect to parent clade size and smaller clade size. */
-        double[][] priorProbabilityTable = new double[baseCCDs[0].getNumberOfLeaves()][];
+        double[] logFactorials = createLogFactorialTable(baseCCDs[0].getNumberOfLeaves());
 
         // combine all CCDs into one and multiply probabilities
-        AbstractCCD combinedCCD = baseCCDs[0].copy();
-        for (int i = 1; i < baseCCDs.length; i++) {
-            combine(combinedCCD, baseCCDs[i], priorProbabilityTable);
-        }
-        // ... and then normalize them
-        normalize(combinedCCD);
-
-        return combinedCCD;
+        return reduceByProduct(baseCCDs, false, logFactorials);
     }
 
     /**
@@ -287,75 +284,152 @@ public class CCDCombiner {
         // we can then spike all CCDs
         spike(baseCCDs, priorProbabilityTable);
 
-        for (int i = 1; i < baseCCDs.length; i++) {
-            combine(combinedCCD, baseCCDs[i], priorProbabilityTable);
-        }
+        // the expanded CCDs are copies, so they can be modified when combined
+        double[] logFactorials = createLogFactorialTable(baseCCDs[0].getNumberOfLeaves());
+        return reduceByProduct(baseCCDs, true, logFactorials);
+    }
 
-        normalize(combinedCCD);
+    /*
+     * Helper method - combines the given CCDs by a balanced reduction, where in each round pairs of CCDs
+     * are combined in parallel; combined CCDs are copies unless the given ones may be modified.
+     */
+    private static AbstractCCD reduceByProduct(AbstractCCD[] ccds, boolean modifiable, double[] logFactorials) {
+        AbstractCCD[] level = ccds.clone();
+        boolean[] owned = new boolean[level.length];
+        Arrays.fill(owned, modifiable);
+
+        while (level.length > 1) {
+            AbstractCCD[] currentLevel = level;
+            boolean[] currentOwned = owned;
+            AbstractCCD[] nextLevel = new AbstractCCD[(level.length + 1) / 2];
+            boolean[] nextOwned = new boolean[nextLevel.length];
+
+            IntStream.range(0, level.length / 2).parallel().forEach(j -> {
+                AbstractCCD combinedCCD = currentOwned[2 * j] ? currentLevel[2 * j] : currentLevel[2 * j].copy();
+                combine(combinedCCD, currentLevel[2 * j + 1], logFactorials);
+                nextLevel[j] = combinedCCD;
+                nextOwned[j] = true;
+            });
+            if (level.length % 2 == 1) {
+                nextLevel[nextLevel.length - 1] = level[level.length - 1];
+                nextOwned[nextLevel.length - 1] = owned[level.length - 1];
+            }
 
-        return combinedCCD;
+            level = nextLevel;
+            owned = nextOwned;
+        }
+
+        if (!owned[0]) {
+            // a single CCD was given
+            AbstractCCD combinedCCD = level[0].copy();
+            normalize(combinedCCD);
+            return combinedCCD;
+        }
+        return level[0];
     }
 
-    /* Helper method - integrates nextCCD into combinedCCD. */
-    private static void combine(AbstractCCD combinedCCD, AbstractCCD nextCCD, double[][] priorProbabilityTable) {
+    /*
+     * Helper method - integrates nextCCD into combinedCCD; the clades are processed in parallel
+     * and the CCPs are multiplied and normalized in log space, so they do not underflow.
+     */
+    private static void combine(AbstractCCD combinedCCD, AbstractCCD nextCCD, double[] logFactorials) {
         // for every clade, we go through all clade partitions and multiply their CCPs;
         // if no expanded, spiked CCDs are used, then it might happen
         // that clade or clade partition does not exist in both CCDs
-        for (Clade clade : combinedCCD.getClades()) {
-            if (clade.isLeaf()) {
-                continue;
-            }
-
-            ArrayList<CladePartition> partitionsToRemove = new ArrayList<>();
-            Clade otherClade = nextCCD.getClade(clade.getCladeInBits());
-            if (otherClade == null) {
-                // the other CCD does not have this clade,
-                // so we remove it from this one
-                // (indirectly by dropping all its partitions);
-                // note that this does not happen with expanded, spiked CCDs
-                partitionsToRemove.addAll(clade.getPartitions());
-            } else {
-                ArrayList<CladePartition> otherPartitions = otherClade.getPartitions();
-                partitionLoop:
-                for (CladePartition partition : clade.getPartitions()) {
-                    for (CladePartition otherPartition : otherPartitions) {
-                        if (otherPartition
-                                .containsClade(partition.getChildClades()[1].getCladeInBits())) {
-                            // so otherClade has the same partition as the
-                            // current clade and we can thus update their probabilities
-                            double prior = getPartitionPriorProbability(partition, priorProbabilityTable);
-                            double unnormalizedCCP = partition.getCCP() * otherPartition.getCCP()
-                                    / prior;
-                            partition.setCCP(unnormalizedCCP);
-                            continue partitionLoop;
-                        }
-                    }
+        List<Clade> clades = new ArrayList<>(combinedCCD.getClades());
+        Queue<CladePartition> partitionsToRemove = new ConcurrentLinkedQueue<>();
+        clades.parallelStream().filter(clade -> !clade.isLeaf()).forEach(clade ->
+                combineClade(clade, nextCCD.getClade(clade.getCladeInBits()), logFactorials, partitionsToRemove));
+
+        // remove partitions only occurring in the combined CCD or with zero probability
+        for (CladePartition partition : partitionsToRemove) {
+            partition.getParentClade().removePartition(partition);
+        }
 
-                    // if this point reached, then otherClades does not have
-                    // this partition, so we have to remove it;
-                    // note that this does not happen with expanded, spiked CCDs
-                    partitionsToRemove.add(partition);
-                }
+        // clades that lost partitions in the cascade get their remaining CCPs renormalized
+        if (!combinedCCD.tidyUpCCDGraph(true)) {
+            System.err.println("After combining CCDs, we got an empty tree distribution.");
+        }
+        combinedCCD.setCacheAsDirty();
+    }
 
-            }
+    /* Helper method - multiplies the CCPs of the partitions of the given clade with those of the other clade */
+    private static void combineClade(Clade clade, Clade otherClade, double[] logFactorials,
+                                     Queue<CladePartition> partitionsToRemove) {
+        ArrayList<CladePartition> partitions = clade.getPartitions();
+        if (otherClade == null) {
+            // the other CCD does not have this clade,
+            // so we remove it from this one
+            // (indirectly by dropping all its partitions);
+            // note that this does not happen with expanded, spiked CCDs
+            partitionsToRemove.addAll(partitions);
+            return;
+        }
 
-            // remove partitions only occurring in the combined CCD
-            for (CladePartition partition : partitionsToRemove) {
-                Clade firstChild = partition.getChildClades()[0];
-                Clade secondChild = partition.getChildClades()[1];
+        // index the partitions of the other clade by their child clades
+        Map<BitSet, CladePartition> otherPartitions = new HashMap<>(4 * otherClade.getNumberOfPartitions());
+        for (CladePartition otherPartition : otherClade.getPartitions()) {
+            otherPartitions.put(otherPartition.getChildClades()[0].getCladeInBits(), otherPartition);
+            otherPartitions.put(otherPartition.getChildClades()[1].getCladeInBits(), otherPartition);
+        }
 
-                clade.getChildClades().remove(firstChild);
-                clade.getChildClades().remove(secondChild);
+        double[] logCCPs = new double[partitions.size()];
+        double maxLogCCP = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < partitions.size(); i++) {
+            CladePartition partition = partitions.get(i);
+            CladePartition otherPartition = otherPartitions.get(partition.getChildClades()[0].getCladeInBits());
+            if (otherPartition == null) {
+                // note that this does not happen with expanded, spiked CCDs
+                logCCPs[i] = Double.NEGATIVE_INFINITY;
+            } else {
+                logCCPs[i] = Math.log(partition.getCCP()) + Math.log(otherPartition.getCCP())
+                        - getLogPartitionPriorProbability(partition, logFactorials);
+                maxLogCCP = Math.max(maxLogCCP, logCCPs[i]);
+            }
+        }
 
-                firstChild.getParentClades().remove(clade);
-                secondChild.getParentClades().remove(clade);
-                clade.getPartitions().remove(partition);
+        // normalize with log-sum-exp
+        if (maxLogCCP == Double.NEGATIVE_INFINITY) {
+            partitionsToRemove.addAll(partitions);
+            return;
+        }
+        double sum = 0;
+        for (double logCCP : logCCPs) {
+            sum += Math.exp(logCCP - maxLogCCP);
+        }
+        double logSum = maxLogCCP + Math.log(sum);
+        for (int i = 0; i < partitions.size(); i++) {
+            if (logCCPs[i] == Double.NEGATIVE_INFINITY) {
+                partitionsToRemove.add(partitions.get(i));
+            } else {
+                partitions.get(i).setCCP(Math.exp(logCCPs[i] - logSum));
             }
-        } // handling clades
+        }
+    }
 
-        if (!combinedCCD.tidyUpCCDGraph(false)) {
-            System.err.println("After combining CCDs, we got an empty tree distribution.");
+    /* Helper method - table of log(n!) for n up to the given number */
+    private static double[] createLogFactorialTable(int n) {
+        double[] logFactorials = new double[n + 1];
+        for (int i = 2; i <= n; i++) {
+            logFactorials[i] = logFactorials[i - 1] + Math.log(i);
         }
+        return logFactorials;
+    }
+
+    /**
+     * Helper method - computes the log of the prior probability of the given partition as in
+     * {@link #getPartitionPriorProbability(CladePartition, double[][])},
+     * but directly in log space with a table of log factorials, so it does not underflow for large clades.
+     *
+     * @param partition     whose prior probability is computed
+     * @param logFactorials table of log(n!) for n up to the size of the parent clade
+     * @return log of the prior probability of the given partition
+     */
+    private static double getLogPartitionPriorProbability(CladePartition partition, double[] logFactorials) {
+        int nParent = partition.getParentClade().size();
+        int nChild = partition.getChildClades()[0].size();
+        double logBinom = logFactorials[nParent] - logFactorials[nChild] - logFactorials[nParent - nChild];
+        return Math.log(2 / (double) (nParent - 1)) - logBinom;
     }
 
     /**
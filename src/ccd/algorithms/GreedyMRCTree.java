@@ -5,6 +5,7 @@ import beast.base.evolution.tree.Tree;
 import ccd.model.AbstractCCD;
 import ccd.model.Clade;
 import ccd.model.HeightSettingStrategy;
+import ccd.model.TaxonTable;
 import ccd.model.bitsets.BitSet;
 
 import java.util.ArrayList;
@@ -14,7 +15,10 @@ import java.util.List;
  * This class provides a method to compute the greedy majority rule consensus
  * (MRC) tree.
  * <p>
- * Currently uses an algorithm that is not asymptotically optimal.
+ * Compatibility of the clades is checked with an index of the accepted clades,
+ * so that the greedy selection takes near-linear time in the number of clades
+ * (besides sorting them); optionally, clades incompatible with majority clades
+ * are filtered out in parallel first.
  *
  * @author Jonathan Klawitter
  */
@@ -31,6 +35,21 @@ public class GreedyMRCTree {
      * @return greedy MRC tree based on clades of given CCD
      */
     public static Tree constructTree(AbstractCCD ccd, HeightSettingStrategy heightStrategy) {
+        return constructTree(ccd, heightStrategy, false);
+    }
+
+    /**
+     * Computes the greedy majority rule consensus (MRC) tree based on the
+     * clades in the given CCD; uses registered occurrences as clade counts.
+     * Tides are broken arbitrarily but deterministically.
+     *
+     * @param ccd            based on whose clades and clade counts the MRC tree is
+     *                       constructed
+     * @param heightStrategy
+     * @param parallel       whether to filter out clades incompatible with majority clades in parallel first
+     * @return greedy MRC tree based on clades of given CCD
+     */
+    public static Tree constructTree(AbstractCCD ccd, HeightSettingStrategy heightStrategy, boolean parallel) {
         // we need all clades with counts; here counts are stored in the clades
         // as number of occurrences
         ArrayList<Clade> clades = new ArrayList<>(ccd.getNumberOfClades());
@@ -38,7 +57,8 @@ public class GreedyMRCTree {
         // System.out.println("num base clades: " + clades.size());
 
         // we then first find a set of compatible clades, that will form the tree
-        ArrayList<Clade> compatibleClades = computeCompatibleClades(clades);
+        ArrayList<Clade> compatibleClades = computeCompatibleClades(clades, ccd.getSizeOfLeavesArray(),
+                ccd.getRootClade().getNumberOfOccurrences(), parallel);
         // System.out.println("num comp. clades: " + compatibleClades.size());
 
         // sort clades by increasing size, to build tree bottom-up
@@ -55,9 +75,9 @@ public class GreedyMRCTree {
         Node[] vertices = new Node[n];
 
         // create leaves
-        Tree baseTree = ccd.getSomeBaseTree();
+        TaxonTable taxonTable = ccd.getTaxonTable();
         for (int i = 0; i < n; i++) {
-            String taxonName = baseTree.getNode(i).getID();
+            String taxonName = taxonTable.getName(i);
             Node vertex = new Node(taxonName);
             vertex.setNr(i);
             if (heightStrategy == HeightSettingStrategy.One) {
@@ -128,32 +148,155 @@ public class GreedyMRCTree {
         return tree;
     }
 
-    /* Helper method - uses pairwise comparison to build compatible set */
-    private static ArrayList<Clade> computeCompatibleClades(List<Clade> clades) {
+    /* Helper method - uses an index of the accepted clades to build compatible set */
+    private static ArrayList<Clade> computeCompatibleClades(List<Clade> clades, int numLeaves, int numTrees,
+                                                            boolean parallel) {
         // 1. we sort them in descending order of counts
         List<Clade> sortedClades = clades.stream().filter(x -> !x.isLeaf()).filter(x -> !x.isRoot())
                 .sorted((x, y) -> Integer.compare(y.getNumberOfOccurrences(),
                         x.getNumberOfOccurrences())) // sorted decreasingly
                 .toList();
 
-        // 2. build up compatible clade set by pairwise compatibility check
+        CompatibleCladeIndex index = new CompatibleCladeIndex(numLeaves, sortedClades.size());
         ArrayList<Clade> compatibleClades = new ArrayList<>();
-        for (Clade testedClade : sortedClades) {
-            boolean compatible = true;
-            for (Clade clade : compatibleClades) {
-                // two clades are compatible if one is contained in the other or they are disjoint;
-                // so they are not compatible, if they intersect properly
-                if (BitSetUtil.intersectProperly(clade.getCladeInBits(),
-                        testedClade.getCladeInBits())) {
-                    compatible = false;
-                    break;
+        if (parallel) {
+            // 2a. clades in more than half the trees are usually pairwise compatible and accepted first
+            // (unless a clade is counted more than once per tree, e.g. in a filtered CCD);
+            // a clade incompatible with an accepted one is rejected whenever it comes,
+            // which we can test for all remaining clades independently in parallel
+            int numMajorityClades = 0;
+            BitSet majorityHelperBits = BitSet.newBitSet(numLeaves);
+            while ((numMajorityClades < sortedClades.size())
+                    && (2 * sortedClades.get(numMajorityClades).getNumberOfOccurrences() > numTrees)) {
+                Clade clade = sortedClades.get(numMajorityClades++);
+                if (index.addIfCompatible(clade.getCladeInBits(), majorityHelperBits)) {
+                    compatibleClades.add(clade);
                 }
             }
-            if (compatible) {
+            sortedClades = sortedClades.subList(numMajorityClades, sortedClades.size()).parallelStream()
+                    .filter(x -> index.isCompatible(x.getCladeInBits(), BitSet.newBitSet(numLeaves)))
+                    .toList();
+        }
+
+        // 2. build up compatible clade set by checking each clade against the accepted ones
+        BitSet helperBits = BitSet.newBitSet(numLeaves);
+        for (Clade testedClade : sortedClades) {
+            if (index.addIfCompatible(testedClade.getCladeInBits(), helperBits)) {
                 compatibleClades.add(testedClade);
             }
         }
         return compatibleClades;
     }
 
+    /**
+     * The accepted clades, which form a laminar family, stored as a growing tree with
+     * the set of all taxa as root. A clade is compatible with the accepted clades iff it is
+     * the union of some children of the smallest accepted clade containing it (its LCA in the tree).
+     * The LCA is found by walking up from the smallest accepted clade containing the first taxon
+     * of the clade; the children of the LCA covering the clade are found by walking up from
+     * one taxon per child, so the check does not depend on the number of accepted clades.
+     */
+    private static class CompatibleCladeIndex {
+
+        /** Clades of the vertices of the tree; vertex 0 is the root, represented by null. */
+        private final BitSet[] vertexClades;
+
+        /** Parent vertex of each vertex. */
+        private final int[] parents;
+
+        /** Smallest accepted clade (vertex) containing each taxon. */
+        private final int[] smallestVertex;
+
+        /** Number of vertices. */
+        private int numVertices = 1;
+
+        /** Reused to collect the children of the LCA covering a clade. */
+        private final List<Integer> coveringChildren = new ArrayList<>();
+
+        CompatibleCladeIndex(int numLeaves, int maxNumClades) {
+            int maxNumVertices = Math.min(maxNumClades, numLeaves) + 1;
+            this.vertexClades = new BitSet[maxNumVertices];
+            this.parents = new int[maxNumVertices];
+            this.smallestVertex = new int[numLeaves];
+        }
+
+        /**
+         * Checks whether the given clade is compatible with all accepted clades;
+         * can be called concurrently as long as no clade is added.
+         *
+         * @param cladeInBits clade to check
+         * @param helperBits  bitset of the right size that is used and modified by this method
+         * @return whether the given clade is compatible with all accepted clades
+         */
+        boolean isCompatible(BitSet cladeInBits, BitSet helperBits) {
+            return findCoveringChildren(cladeInBits, helperBits, null) >= 0;
+        }
+
+        /**
+         * Adds the given clade as accepted clade if it is compatible with all accepted clades.
+         *
+         * @param cladeInBits clade to add
+         * @param helperBits  bitset of the right size that is used and modified by this method
+         * @return whether the given clade was compatible and has been added
+         */
+        boolean addIfCompatible(BitSet cladeInBits, BitSet helperBits) {
+            coveringChildren.clear();
+            int lca = findCoveringChildren(cladeInBits, helperBits, coveringChildren);
+            if (lca < 0) {
+                return false;
+            }
+
+            // new vertex between LCA and the covering children
+            int vertex = numVertices++;
+            vertexClades[vertex] = cladeInBits;
+            parents[vertex] = lca;
+            for (int child : coveringChildren) {
+                if (child >= 0) {
+                    parents[child] = vertex;
+                } else {
+                    smallestVertex[-child - 1] = vertex;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * Helper method; returns the LCA of the given clade or -1 if the clade is not compatible;
+         * if a list is given, the children of the LCA covering the clade are added, with a taxon i
+         * whose smallest accepted clade is the LCA stored as -i - 1.
+         */
+        private int findCoveringChildren(BitSet cladeInBits, BitSet helperBits, List<Integer> children) {
+            int lca = smallestVertex[cladeInBits.nextSetBit(0)];
+            while ((lca != 0) && !vertexClades[lca].contains(cladeInBits)) {
+                lca = parents[lca];
+            }
+
+            helperBits.clear();
+            helperBits.or(cladeInBits);
+            for (int i = helperBits.nextSetBit(0); i >= 0; i = helperBits.nextSetBit(i + 1)) {
+                int vertex = smallestVertex[i];
+                if (vertex == lca) {
+                    if (children != null) {
+                        children.add(-i - 1);
+                    }
+                    continue;
+                }
+                while (parents[vertex] != lca) {
+                    vertex = parents[vertex];
+                }
+
+                // a child of the LCA that intersects the clade has to be contained in it
+                BitSet childInBits = vertexClades[vertex];
+                if (!cladeInBits.contains(childInBits)) {
+                    return -1;
+                }
+                helperBits.andNot(childInBits);
+                if (children != null) {
+                    children.add(vertex);
+                }
+            }
+            return lca;
+        }
+    }
+
 }
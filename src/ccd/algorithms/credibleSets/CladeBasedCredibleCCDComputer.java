@@ -4,15 +4,23 @@ import beast.base.evolution.tree.Tree;
 import ccd.model.AbstractCCD;
 import ccd.model.CCD0;
 import ccd.model.Clade;
+import ccd.model.CladePartition;
 import ccd.model.WrappedBeastTree;
 import ccd.model.bitsets.BitSet;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
 
 /**
  * A credible CCD based on clades, intended for CCD0 models.
  * The credible set information is constructed by continuously removing the clade
  * chosen by specific strategy of a concrete child class.
+ * After each removal, the CCPs and clade probabilities of the remaining CCD
+ * are only updated where the removal changes them.
  *
  * @author Jonathan Klawitter
  */
@@ -57,9 +65,22 @@ public abstract class CladeBasedCredibleCCDComputer extends CredibleCCDComputer
         return null;
     }
 
+    /** Relative difference below which a recomputed value counts as unchanged and is not propagated further. */
+    private static final double RELATIVE_TOLERANCE = 1e-12;
+
+    /**
+     * Whether values are only updated where a removal changes them (default),
+     * or recomputed for the whole partial CCD after each removal.
+     */
+    public static boolean updateLocally = true;
+
     @Override
     protected void computeCredibleSetInformationHelper() {
-        // double numCladesToHandle = partialCCD.getNumberOfClades() - minNumClades;
+        // the first round renormalizes the whole partial CCD (CCD0 style);
+        // afterward, values are only updated where the removal changes them
+        boolean renormalized = false;
+        cladeProbabilitiesRecomputed();
+
         do {
             Clade nextClade = getNextClade();
 
@@ -68,27 +89,16 @@ public abstract class CladeBasedCredibleCCDComputer extends CredibleCCDComputer
 
             // then for the removed clades and partitions, set the resulting credible levels
             setCredibleLevels(removedObjects);
-
-            // double remainingNontrivialClades = numCladesToHandle - (partialCCD.getNumberOfClades() - minNumClades);
-            // while ((remainingNontrivialClades * 100 / numCladesToHandle) > donePercentage) {
-            //     donePercentage++;
-            //     // System.out.print(".");
-            // }
+            for (Clade removedClade : (List<Clade>) removedObjects[0]) {
+                cladeRemoved(removedClade);
+            }
 
             // recompute values in partial CCD
-            // if (partialCCD instanceof CCD0) {
-            partialCCD.resetSumCladeCredibilities();
-            CCD0.setPartitionProbabilities(rootClade);
-            partialCCD.computeCladeProbabilities();
-            // }
-
-            // recomputeValues;
-            remainingProbability = rootClade.computeSumCladeCredibilities() / fullCCD.getRootClade().getSumCladeCredibilities();
-            partialCCD.setCacheAsDirty();
-            partialCCD.computeCladeProbabilities();
-            // prevMAPTree = currentMAPTree;
-            // currentMAPTree = new WrappedBeastTree(partialCCD.getMAPTree());
-            // writeCurrentResult(remainingProbability);
+            if (!renormalized || !updateLocally || !updateValuesLocally((List<Clade>) removedObjects[0],
+                    (List<CladePartition>) removedObjects[1])) {
+                recomputeValues();
+                renormalized = true;
+            }
 
             // we exist when we have reduced the CCD to a CCD on a single tree
         } while (partialCCD.getNumberOfClades() != minNumClades);
@@ -97,7 +107,164 @@ public abstract class CladeBasedCredibleCCDComputer extends CredibleCCDComputer
             setCredibleLevel(clade, remainingProbability);
         }
 
+        partialCCD.setCacheAsDirty();
+    }
+
+    /* Helper method; recomputes the CCPs, clade probabilities and remaining probability of the whole partial CCD */
+    private void recomputeValues() {
+        partialCCD.setCacheAsDirty();
+        partialCCD.resetSumCladeCredibilities();
+        CCD0.setPartitionProbabilities(rootClade);
+        // resets the cache (CCPs are kept) ...
+        partialCCD.computeCladeProbabilities();
+        // ... so the sums of clade credibilities are computed (and cached) again
+        remainingProbability = rootClade.computeSumCladeCredibilities() / fullCCD.getRootClade().getSumCladeCredibilities();
+
+        cladeProbabilitiesRecomputed();
+    }
+
+    /**
+     * Updates the CCPs, clade probabilities and remaining probability of the partial CCD
+     * after the given clades and clade partitions have been removed, but only where they change:
+     * The sums of clade credibilities (and with them the CCPs) are recomputed bottom-up from the
+     * clades that lost a clade partition, through their ancestors as long as the sums change;
+     * the clade probabilities are then recomputed top-down from the children of clades with new CCPs
+     * and of removed clade partitions, through their descendants as long as the probabilities change.
+     *
+     * @param removedClades     clades removed in this round
+     * @param removedPartitions clade partitions removed in this round
+     * @return false if an underflow occurred, in which case the values have to be recomputed as a whole
+     */
+    private boolean updateValuesLocally(List<Clade> removedClades, List<CladePartition> removedPartitions) {
+        Set<Clade> removed = new HashSet<>(removedClades);
+
+        // 1. bottom-up, so children before parents
+        PriorityQueue<Clade> upQueue = new PriorityQueue<>(Comparator.comparingInt(Clade::size));
+        Set<Clade> queued = new HashSet<>();
+        for (CladePartition partition : removedPartitions) {
+            Clade parent = partition.getParentClade();
+            if (!removed.contains(parent) && queued.add(parent)) {
+                upQueue.add(parent);
+            }
+        }
+
+        List<Clade> renormalizedClades = new ArrayList<>(upQueue.size());
+        while (!upQueue.isEmpty()) {
+            Clade clade = upQueue.poll();
+            double oldSum = clade.getSumCladeCredibilities();
+            if (!setPartitionProbabilitiesLocally(clade)) {
+                return false;
+            }
+            renormalizedClades.add(clade);
+
+            if (!isClose(oldSum, clade.getSumCladeCredibilities())) {
+                for (Clade parent : clade.getParentClades()) {
+                    if (queued.add(parent)) {
+                        upQueue.add(parent);
+                    }
+                }
+            }
+        }
+
+        // 2. top-down, so parents before children;
+        // starting with the children of renormalized clades and the surviving children of removed partitions,
+        // which lost the probability they got through the removed parent
+        PriorityQueue<Clade> downQueue = new PriorityQueue<>(Comparator.comparingInt(Clade::size).reversed());
+        queued.clear();
+        for (CladePartition partition : removedPartitions) {
+            for (Clade child : partition.getChildClades()) {
+                if (!removed.contains(child) && queued.add(child)) {
+                    downQueue.add(child);
+                }
+            }
+        }
+        for (Clade clade : renormalizedClades) {
+            for (Clade child : clade.getChildClades()) {
+                if (queued.add(child)) {
+                    downQueue.add(child);
+                }
+            }
+        }
+
+        while (!downQueue.isEmpty()) {
+            Clade clade = downQueue.poll();
+            double probability = computeProbabilityFromParents(clade);
+            if (!isClose(clade.getProbability(), probability)) {
+                clade.setProbability(probability);
+                cladeProbabilityChanged(clade);
+
+                for (Clade child : clade.getChildClades()) {
+                    if (queued.add(child)) {
+                        downQueue.add(child);
+                    }
+                }
+            }
+        }
+
+        remainingProbability = rootClade.getSumCladeCredibilities() / fullCCD.getRootClade().getSumCladeCredibilities();
+
+        return true;
+    }
+
+    /* Helper method; as CCD0#setPartitionProbabilities but only for the given clade using the cached values of its children */
+    private static boolean setPartitionProbabilitiesLocally(Clade clade) {
+        double sumSubtreeProbabilities = 0.0;
+        for (CladePartition partition : clade.getPartitions()) {
+            sumSubtreeProbabilities += partition.getChildClades()[0].getSumCladeCredibilities()
+                    * partition.getChildClades()[1].getSumCladeCredibilities();
+        }
+        if (sumSubtreeProbabilities == 0) {
+            return false;
+        }
+
+        for (CladePartition partition : clade.getPartitions()) {
+            partition.setCCP(partition.getChildClades()[0].getSumCladeCredibilities()
+                    * partition.getChildClades()[1].getSumCladeCredibilities() / sumSubtreeProbabilities);
+        }
+        clade.setSumCladeCredibilities(sumSubtreeProbabilities * clade.getCladeCredibility());
+
+        return true;
+    }
+
+    /* Helper method */
+    private static double computeProbabilityFromParents(Clade clade) {
+        double probability = 0;
+        for (Clade parent : clade.getParentClades()) {
+            for (CladePartition partition : parent.getPartitions()) {
+                // only one partition of the parent can contain the clade
+                if (partition.containsChildClade(clade)) {
+                    probability += parent.getProbability() * partition.getCCP();
+                    break;
+                }
+            }
+        }
+        return Math.min(probability, 1);
+    }
+
+    /* Helper method */
+    private static boolean isClose(double oldValue, double newValue) {
+        return Math.abs(oldValue - newValue) <= RELATIVE_TOLERANCE * Math.max(Math.abs(oldValue), Math.abs(newValue));
     }
 
     abstract Clade getNextClade();
+
+    /** Called after the clade probabilities of the whole partial CCD have been (re)computed. */
+    void cladeProbabilitiesRecomputed() {
+    }
+
+    /**
+     * Called after the probability of the given clade of the partial CCD has been updated.
+     *
+     * @param clade whose probability changed
+     */
+    void cladeProbabilityChanged(Clade clade) {
+    }
+
+    /**
+     * Called after the given clade has been removed from the partial CCD.
+     *
+     * @param clade that was removed
+     */
+    void cladeRemoved(Clade clade) {
+    }
 }
@@ -3,9 +3,14 @@ package ccd.algorithms.credibleSets;
 import ccd.model.AbstractCCD;
 import ccd.model.Clade;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
 /**
  * A credible CCD based on clades, intended for CCD0 models.
- * The credible set information is constructed by continuously removing the clade with the lowest probability.
+ * The credible set information is constructed by continuously removing the clade with the lowest probability,
+ * which is maintained in an indexed min-heap of clade probabilities.
  *
  * @author Jonathan Klawitter
  */
@@ -20,27 +25,48 @@ public class CladeProbabilityCredibleCCDConstructor extends CladeBasedCredibleCC
         super(baseCCD);
     }
 
+    /** Remaining nontrivial clades by increasing probability, with larger clades first on ties. */
+    private final IndexedCladeHeap heap = new IndexedCladeHeap(
+            Comparator.comparingDouble(Clade::getProbability).thenComparing(Clade::size, Comparator.reverseOrder()));
+
     @Override
     Clade getNextClade() {
-        double min = Double.POSITIVE_INFINITY;
-        Clade minClade = null;
+        // clades with probability 1 are in all remaining trees and are never removed
+        while (!heap.isEmpty() && !isCandidate(heap.peek())) {
+            heap.remove(heap.peek());
+        }
+
+        return heap.peek();
+    }
 
+    @Override
+    void cladeProbabilitiesRecomputed() {
+        List<Clade> candidates = new ArrayList<>(partialCCD.getNumberOfClades());
         for (Clade clade : partialCCD.getClades()) {
-            if (clade.isLeaf() || clade.isRoot()) {
-                continue;
+            if (isCandidate(clade)) {
+                candidates.add(clade);
             }
-            if (Math.abs(clade.getProbability() - 1.0) < AbstractCCD.PROBABILITY_ROUNDING_EPSILON) {
-                continue;
-            }
-
-            double current = clade.getProbability();
+        }
+        heap.rebuild(candidates);
+    }
 
-            if ((current < min) || ((current == min) && (clade.size() > minClade.size()))) {
-                min = current;
-                minClade = clade;
-            }
+    @Override
+    void cladeProbabilityChanged(Clade clade) {
+        if (heap.contains(clade)) {
+            heap.update(clade);
+        } else if (isCandidate(clade)) {
+            heap.add(clade);
         }
+    }
+
+    @Override
+    void cladeRemoved(Clade clade) {
+        heap.remove(clade);
+    }
 
-        return minClade;
+    /* Helper method */
+    private static boolean isCandidate(Clade clade) {
+        return !clade.isLeaf() && !clade.isRoot()
+                && (Math.abs(clade.getProbability() - 1.0) >= AbstractCCD.PROBABILITY_ROUNDING_EPSILON);
     }
 }
@@ -4,11 +4,11 @@ import beast.base.evolution.tree.Tree;
 import ccd.model.AbstractCCD;
 import ccd.model.CCD0;
 import ccd.model.CCD2;
+import ccd.model.CCDGraphPruner;
 import ccd.model.Clade;
 import ccd.model.CladePartition;
 import ccd.model.ExtendedClade;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -232,102 +232,44 @@ public abstract class CredibleCCDComputer implements ICredibleSet {
     /**
      * Removes the given clade from the underlying CCD and then proceeds to tidy up the CCD,
      * i.e. when the removal results in another clade without parent or without clade partitions,
-     * that one gets removed as well, and so on.
+     * that one gets removed as well, and so on; see {@link CCDGraphPruner}.
      *
      * @param cladeToRemove the initial clade to remove from the underlying CCD
      * @return list of clades removed followed by list of clade partitions removed
      */
     List[] reduceCCD(Clade cladeToRemove) {
-        /* NOTE: Known partial code redundancy with AbstractCCD#tidyUpCCDGraph
-        for slightly different behavior and to extract more information. */
-
         double oldP = cladeToRemove.getProbability();
 
-        List<Clade> removedClades = new ArrayList<>();
-        List<CladePartition> removedPartitions = new ArrayList<>();
-
-        ArrayList<Clade> cladesToRemove = new ArrayList<>();
-        cladesToRemove.add(cladeToRemove);
-
-        while (!cladesToRemove.isEmpty()) {
-            Clade nextToRemove = cladesToRemove.remove(cladesToRemove.size() - 1);
-
-            // do not allow removal of trivial clades
-            if (nextToRemove.isLeaf() || (nextToRemove.isRoot())) {
-                String errorMessage = "Building partial CCD for credible set, illegal request to remove " + (nextToRemove.isLeaf() ? "leaf" : "root") + "!";
-                System.err.println("\n" + errorMessage);
-                System.err.println("Initial clade requested to remove:   " + cladeToRemove);
-                System.err.println("which had the following probability: " + oldP);
-                System.err.println("Current clade processed to remove:   " + nextToRemove);
-                System.err.println("CCD number of leaves:                " + partialCCD.getNumberOfLeaves());
-                System.err.println("CCD number of clades remaining:      " + partialCCD.getNumberOfClades());
-                System.err.println("Remaining clades: ");
-                for (Clade clade : partialCCD.getClades()) {
-                    if (!clade.isLeaf()) {
-                        System.err.println(clade.getProbability() + " - " + clade);
-                    }
-                }
-                throw new AssertionError(errorMessage);
-            }
-
-            // do not repeatedly process clades
-            if (removedClades.contains(nextToRemove)) {
-                continue;
-            }
-            removedClades.add(nextToRemove);
-
+        CCDGraphPruner pruner = new CCDGraphPruner(clade -> {
             // remove from mapping
-            partialCCD.getCladeMapping().remove(nextToRemove.getCladeInBits());
+            partialCCD.getCladeMapping().remove(clade.getCladeInBits());
             if (partialCCD instanceof CCD2) {
-                partialCCD.getClades().remove(nextToRemove);
+                partialCCD.getClades().remove(clade);
             }
-
-            // remove connection to parent clades ...
-            for (Clade parent : nextToRemove.getParentClades()) {
-                parent.getChildClades().remove(nextToRemove);
-
-                // ... and update parent clades
-                for (CladePartition parentPartition : parent.getPartitions()) {
-                    // there can only be one partition that contains
-                    // cladeToRemove under the parent clade
-                    if (parentPartition.containsChildClade(nextToRemove)) {
-                        parent.getPartitions().remove(parentPartition);
-                        removedPartitions.add(parentPartition);
-                        if (parent.getPartitions().isEmpty()) {
-                            cladesToRemove.add(parent);
-                        }
-
-                        // also update other child
-                        Clade otherChild = parentPartition.getOtherChildClade(nextToRemove);
-                        parent.getChildClades().remove(otherChild);
-                        otherChild.getParentClades().remove(parent);
-                        if (otherChild.getParentClades().isEmpty()) {
-                            cladesToRemove.add(otherChild);
-                        }
-
-                        // as only one clade partition of the parent can contain the current clade
-                        // we can break the loop here after having processed this one
-                        break;
-                    }
+            return true;
+        });
+        pruner.prune(List.of(cladeToRemove));
+
+        // do not allow removal of trivial clades
+        if (!pruner.getTrivialClades().isEmpty()) {
+            Clade trivialClade = pruner.getTrivialClades().get(0);
+            String errorMessage = "Building partial CCD for credible set, illegal request to remove " + (trivialClade.isLeaf() ? "leaf" : "root") + "!";
+            System.err.println("\n" + errorMessage);
+            System.err.println("Initial clade requested to remove:   " + cladeToRemove);
+            System.err.println("which had the following probability: " + oldP);
+            System.err.println("Current clade processed to remove:   " + trivialClade);
+            System.err.println("CCD number of leaves:                " + partialCCD.getNumberOfLeaves());
+            System.err.println("CCD number of clades remaining:      " + partialCCD.getNumberOfClades());
+            System.err.println("Remaining clades: ");
+            for (Clade clade : partialCCD.getClades()) {
+                if (!clade.isLeaf()) {
+                    System.err.println(clade.getProbability() + " - " + clade);
                 }
             }
-
-            // remove all connection to children
-            for (CladePartition partition : nextToRemove.getPartitions()) {
-                removedPartitions.add(partition);
-                for (Clade child : partition.getChildClades()) {
-                    child.getParentClades().remove(nextToRemove);
-                    if (child.getParentClades().isEmpty()) {
-                        cladesToRemove.add(child);
-                    }
-                }
-            }
-
-            // do not have to empty partitions, parent or child clades,
-            // since we dump the clade anyway
+            throw new AssertionError(errorMessage);
         }
 
-        return new List[]{removedClades, removedPartitions};
+        return new List[]{pruner.getRemovedClades(), pruner.getRemovedPartitions()};
     }
 }
 
@@ -0,0 +1,160 @@
+package ccd.algorithms.credibleSets;
+
+import ccd.model.Clade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary min-heap of clades that keeps track of the position of each clade,
+ * so that a clade can be removed or its position be updated after its key changed
+ * in logarithmic time.
+ *
+ * @author Jonathan Klawitter
+ */
+class IndexedCladeHeap {
+
+    /** Order of the clades; the minimum is at the top. */
+    private final Comparator<Clade> comparator;
+
+    /** The heap as array. */
+    private final List<Clade> heap = new ArrayList<>();
+
+    /** Position of each clade in the heap array. */
+    private final Map<Clade, Integer> positions = new HashMap<>();
+
+    /**
+     * @param comparator order of the clades; the minimum is at the top
+     */
+    IndexedCladeHeap(Comparator<Clade> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Replaces the content of this heap with the given clades in linear time.
+     *
+     * @param clades new content of this heap
+     */
+    void rebuild(Collection<Clade> clades) {
+        heap.clear();
+        positions.clear();
+        for (Clade clade : clades) {
+            positions.put(clade, heap.size());
+            heap.add(clade);
+        }
+        for (int i = heap.size() / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /** @return whether this heap is empty */
+    boolean isEmpty() {
+        return heap.isEmpty();
+    }
+
+    /** @return number of clades in this heap */
+    int size() {
+        return heap.size();
+    }
+
+    /** @return whether the given clade is in this heap */
+    boolean contains(Clade clade) {
+        return positions.containsKey(clade);
+    }
+
+    /** @return the minimum clade without removing it, or null if this heap is empty */
+    Clade peek() {
+        return heap.isEmpty() ? null : heap.get(0);
+    }
+
+    /**
+     * Adds the given clade to this heap (if not contained yet).
+     *
+     * @param clade to be added
+     */
+    void add(Clade clade) {
+        if (positions.containsKey(clade)) {
+            return;
+        }
+        positions.put(clade, heap.size());
+        heap.add(clade);
+        siftUp(heap.size() - 1);
+    }
+
+    /**
+     * Removes the given clade from this heap (if contained).
+     *
+     * @param clade to be removed
+     */
+    void remove(Clade clade) {
+        Integer position = positions.remove(clade);
+        if (position == null) {
+            return;
+        }
+
+        Clade last = heap.remove(heap.size() - 1);
+        if (position < heap.size()) {
+            heap.set(position, last);
+            positions.put(last, position);
+            siftDown(position);
+            siftUp(positions.get(last));
+        }
+    }
+
+    /**
+     * Restores the heap order after the key of the given clade changed.
+     *
+     * @param clade whose key changed
+     */
+    void update(Clade clade) {
+        Integer position = positions.get(clade);
+        if (position != null) {
+            siftUp(position);
+            siftDown(positions.get(clade));
+        }
+    }
+
+    /* Helper method */
+    private void siftUp(int position) {
+        Clade clade = heap.get(position);
+        while (position > 0) {
+            int parentPosition = (position - 1) / 2;
+            Clade parent = heap.get(parentPosition);
+            if (comparator.compare(clade, parent) >= 0) {
+                break;
+            }
+            heap.set(position, parent);
+            positions.put(parent, position);
+            position = parentPosition;
+        }
+        heap.set(position, clade);
+        positions.put(clade, position);
+    }
+
+    /* Helper method */
+    private void siftDown(int position) {
+        Clade clade = heap.get(position);
+        int half = heap.size() / 2;
+        while (position < half) {
+            int childPosition = 2 * position + 1;
+            Clade child = heap.get(childPosition);
+            if ((childPosition + 1 < heap.size()) && (comparator.compare(heap.get(childPosition + 1), child) < 0)) {
+                childPosition++;
+                child = heap.get(childPosition);
+            }
+            if (comparator.compare(clade, child) <= 0) {
+                break;
+            }
+            heap.set(position, child);
+            positions.put(child, position);
+            position = childPosition;
+        }
+        heap.set(position, clade);
+        positions.put(clade, position);
+    }
+
+}
@@ -8,8 +8,10 @@ import ccd.model.Clade;
 import ccd.model.CladePartition;
 import ccd.model.ExtendedClade;
 import ccd.model.bitsets.BitSet;
+import ccd.model.bitsets.BitSetIndex;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 
@@ -22,6 +24,22 @@ import java.util.List;
 @SuppressWarnings("unchecked")
 public class PartitionProbabilityCredibleCCDComputer extends CredibleCCDComputer {
 
+    /** Dense indices of the clades of the full CCD (not used for CCD2). */
+    private BitSetIndex cladeIndex;
+
+    /** Start index of the clade partitions of each clade (by clade index) plus the total number at the end. */
+    private int[] partitionOffsets;
+
+    /** Clade indices of the two child clades of each clade partition (by partition index). */
+    private int[] partitionFirstChild;
+    private int[] partitionSecondChild;
+
+    /** Credible level of each clade partition (by partition index). */
+    private double[] partitionCredibleLevels;
+
+    /** Reusable context for computing credible levels of trees, one per thread. */
+    private final ThreadLocal<QueryContext> queryContext = ThreadLocal.withInitial(QueryContext::new);
+
     /**
      * Default constructor not to be used directly.
      *
@@ -33,59 +51,123 @@ public class PartitionProbabilityCredibleCCDComputer extends CredibleCCDComputer
 
     @Override
     public double getCredibleLevel(Tree tree) {
-        double[] credLevel = new double[]{Double.NEGATIVE_INFINITY};
+        double credLevel;
         if (fullCCD instanceof CCD2) {
+            double[] credLevelHolder = new double[]{Double.NEGATIVE_INFINITY};
             Node root = tree.getRoot();
-            getCredibleLevelOfPartitionCCD2(root.getChild(0), root.getChild(1), credLevel);
+            getCredibleLevelOfPartitionCCD2(root.getChild(0), root.getChild(1), credLevelHolder);
+            credLevel = credLevelHolder[0];
         } else {
-            getCredibleLevelOfPartitionGeneral(tree.getRoot(), credLevel);
+            credLevel = queryContext.get().getCredibleLevel(tree);
         }
-        if (credLevel[0] <= 0) {
+        if (credLevel <= 0) {
             return -1;
         }
-        return credLevel[0];
+        return credLevel;
     }
 
-    /* Recursive helper method */
-    private BitSet getCredibleLevelOfPartitionGeneral(Node node, double[] credLevel) {
-        BitSet bits;
-        if (node.isLeaf()) {
-            bits = BitSet.newBitSet(fullCCD.getNumberOfLeaves());
-            bits.set(node.getNr());
-        } else {
-            bits = getCredibleLevelOfPartitionGeneral(node.getLeft(), credLevel);
-            if (credLevel[0] == 0) {
-                return bits;
+    /**
+     * Builds the dense indices of the clades and clade partitions of the full CCD
+     * and stores the credible levels of the clade partitions in a primitive array.
+     * The partitions of the clade with index i have the indices
+     * partitionOffsets[i] to partitionOffsets[i + 1] - 1.
+     */
+    private void buildPartitionIndex() {
+        int numClades = fullCCD.getNumberOfClades();
+        cladeIndex = new BitSetIndex(numClades);
+        for (Clade clade : fullCCD.getClades()) {
+            cladeIndex.add(clade.getCladeInBits());
+        }
+
+        partitionOffsets = new int[numClades + 1];
+        for (Clade clade : fullCCD.getClades()) {
+            partitionOffsets[cladeIndex.indexOf(clade.getCladeInBits()) + 1] = clade.getNumberOfPartitions();
+        }
+        for (int i = 0; i < numClades; i++) {
+            partitionOffsets[i + 1] += partitionOffsets[i];
+        }
+
+        int numPartitions = partitionOffsets[numClades];
+        partitionFirstChild = new int[numPartitions];
+        partitionSecondChild = new int[numPartitions];
+        partitionCredibleLevels = new double[numPartitions];
+        for (Clade clade : fullCCD.getClades()) {
+            int p = partitionOffsets[cladeIndex.indexOf(clade.getCladeInBits())];
+            for (CladePartition partition : clade.getPartitions()) {
+                partitionFirstChild[p] = cladeIndex.indexOf(partition.getChildClades()[0].getCladeInBits());
+                partitionSecondChild[p] = cladeIndex.indexOf(partition.getChildClades()[1].getCladeInBits());
+                Double credibleLevel = partitionMinCredibility.get(partition);
+                partitionCredibleLevels[p] = (credibleLevel == null) ? 0 : credibleLevel;
+                p++;
             }
-            BitSet other = getCredibleLevelOfPartitionGeneral(node.getRight(), credLevel);
-            if (credLevel[0] == 0) {
-                return bits;
+        }
+    }
+
+    /**
+     * Reusable context to compute the credible level of trees with the dense indices of the
+     * clades and clade partitions of the full CCD; the bitsets of the vertices of the queried trees
+     * are reused, so that computing the credible level of a tree does not allocate any objects.
+     * Each thread uses its own context.
+     */
+    private class QueryContext {
+
+        /** The clade of each vertex in BitSet representation, by vertex number. */
+        private BitSet[] vertexBits = new BitSet[0];
+
+        /** Current credible level of the queried tree; 0 if a clade or clade partition is not in the CCD. */
+        private double credLevel;
+
+        double getCredibleLevel(Tree tree) {
+            int numNodes = tree.getNodeCount();
+            if (vertexBits.length < numNodes) {
+                int oldLength = vertexBits.length;
+                vertexBits = Arrays.copyOf(vertexBits, numNodes);
+                for (int i = oldLength; i < numNodes; i++) {
+                    vertexBits[i] = BitSet.newBitSet(fullCCD.getSizeOfLeavesArray());
+                }
             }
 
-            Clade leftChild = fullCCD.getClade(bits);
-            Clade rightChild = fullCCD.getClade(other);
+            credLevel = Double.NEGATIVE_INFINITY;
+            computeCladeIndex(tree.getRoot());
+            return credLevel;
+        }
 
-            bits.or(other);
-            Clade parent = fullCCD.getClade(bits);
-            if (parent == null) {
-                credLevel[0] = 0;
-                // out.println("clade not found, bits = " + bits);
-                // out.println("clades in ccd:");
-                // for (Clade clade : this.getClades()) {
-                //     out.println("clade = " + clade);
-                // }
-                return bits;
+        /* Recursive helper method; returns the index of the clade of the given vertex or -1 if not in CCD */
+        private int computeCladeIndex(Node vertex) {
+            BitSet bits = vertexBits[vertex.getNr()];
+            bits.clear();
+            if (vertex.isLeaf()) {
+                bits.set(vertex.getNr());
+                return cladeIndex.indexOf(bits);
             }
 
-            CladePartition partition = parent.getCladePartition(leftChild, rightChild);
-            if (partition == null) {
-                credLevel[0] = 0;
-            } else {
-                credLevel[0] = Math.max(credLevel[0], partitionMinCredibility.get(partition));
+            int leftIndex = computeCladeIndex(vertex.getLeft());
+            if (leftIndex < 0) {
+                return -1;
+            }
+            int rightIndex = computeCladeIndex(vertex.getRight());
+            if (rightIndex < 0) {
+                return -1;
+            }
+
+            bits.or(vertexBits[vertex.getLeft().getNr()]);
+            bits.or(vertexBits[vertex.getRight().getNr()]);
+            int parentIndex = cladeIndex.indexOf(bits);
+            if (parentIndex < 0) {
+                credLevel = 0;
+                return -1;
             }
-        }
 
-        return bits;
+            // a child clade is contained in at most one partition of the parent clade
+            for (int p = partitionOffsets[parentIndex]; p < partitionOffsets[parentIndex + 1]; p++) {
+                if ((partitionFirstChild[p] == leftIndex) || (partitionSecondChild[p] == leftIndex)) {
+                    credLevel = Math.max(credLevel, partitionCredibleLevels[p]);
+                    return parentIndex;
+                }
+            }
+            credLevel = 0;
+            return -1;
+        }
     }
 
     /* Recursive helper method */
@@ -216,6 +298,10 @@ public class PartitionProbabilityCredibleCCDComputer extends CredibleCCDComputer
                 setCredibleLevel(partition, remainingProbability);
             }
         }
+
+        if (!(fullCCD instanceof CCD2)) {
+            buildPartitionIndex();
+        }
     }
 
     /**
@@ -1,9 +1,20 @@
 package ccd.algorithms.credibleSets;
 
 import beast.base.evolution.tree.Tree;
+import ccd.model.AbstractCCD;
+import ccd.model.HeightSettingStrategy;
 import ccd.model.ITreeDistribution;
+import ccd.model.KBestTreeEnumerator;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A credible set method for a {@link ITreeDistribution}, i.e a CCD or a sample distribution,
@@ -11,6 +22,24 @@ import java.util.Arrays;
  * More precisely, first sample a specified number of trees, compute their probabilities, and then sort them.
  * A tree with a higher probability than a sample tree at index i with alpha = i / numSamples has then credible level alpha.
  *
+ * <p>
+ * Probabilities are handled as log probabilities, so that they do not underflow for trees with many taxa,
+ * and the sampled log probabilities are fed into a {@link QuantileSketch} instead of being stored,
+ * so that millions of samples fit in bounded memory; trees are sampled in parallel with
+ * a sketch per thread, which are merged in the end.
+ * </p>
+ *
+ * <p>
+ * For a CCD with concentrated probability mass, the thresholds can instead be computed exactly
+ * by enumerating the trees in order of decreasing probability with a {@link KBestTreeEnumerator}
+ * until the cumulative probability reaches the highest credible level below 1;
+ * if this needs more than a given number of trees (bounding the memory used),
+ * the thresholds of the credible levels reached so far are kept and only the remaining ones
+ * are computed by sampling.
+ * An exact threshold is the probability of the tree with which the cumulative probability reaches
+ * the credible level, so that tree (and any tree at least as probable) lies in the credible set of that level.
+ * </p>
+ *
  * @author Jonathan Klawitter
  */
 public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
@@ -30,8 +59,23 @@ public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
     /** The number of thresholds used to determine credible levels ins this credible set. */
     private final int precision;
 
-    /** The stored probability thresholds determining the credible levels. */
-    private double[] sampledProbabilities;
+    /** Tolerance for rounding errors when summing up probabilities of enumerated trees. */
+    private static final double EXACT_TOLERANCE = 1e-12;
+
+    /** Minimum number of samples per thread worth sampling in parallel. */
+    private static final int MIN_SAMPLES_PER_THREAD = 10000;
+
+    /** Maximum number of threads used to sample trees. */
+    private final int threadCount;
+
+    /** The stored log probability thresholds determining the credible levels, sorted decreasingly. */
+    private double[] sampledLogProbabilities;
+
+    /** The number of (leading) thresholds computed exactly by enumerating trees. */
+    private int numExactThresholds = 0;
+
+    /** The number of trees in each credible level, or -1 if not computed exactly (and for the last one). */
+    private long[] numTreesPerCredibleLevel = null;
 
     /**
      * A probability-based credible set with default number of sampled trees and default precision (number of thresholds)
@@ -63,6 +107,9 @@ public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
      * @param precision        number of thresholds stored giving the credible level precision; preferably a divisor of numberOfSamples
      */
     public ProbabilityBasedCredibleSetComputer(ITreeDistribution treeDistribution, int numberOfSamples, int precision) {
+        if (numberOfSamples < 1) {
+            throw new IllegalArgumentException("Tree-based credible set requires at least one sampled tree.");
+        }
         this.treeDistribution = treeDistribution;
         this.numSamples = numberOfSamples;
 
@@ -73,70 +120,237 @@ public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
             precision = numberOfSamples;
         }
         this.precision = precision;
+        this.threadCount = Runtime.getRuntime().availableProcessors();
 
         initializeCredibleSetInformation();
     }
 
+    /**
+     * A probability-based credible set on the given CCD with the given precision (number of thresholds)
+     * whose thresholds are computed exactly by enumerating up to the given number of most probable trees
+     * of the CCD; the thresholds of credible levels not reached by these trees are computed
+     * by sampling the given number of trees.
+     *
+     * @param ccd             distribution of trees this credible set is based on
+     * @param numberOfSamples number of sampled trees used to determine credible levels if not computed exactly
+     * @param precision       number of thresholds stored giving the credible level precision
+     * @param maxNumTrees     maximum number of trees enumerated to compute the thresholds exactly
+     */
+    public ProbabilityBasedCredibleSetComputer(AbstractCCD ccd, int numberOfSamples, int precision, int maxNumTrees) {
+        this(ccd, numberOfSamples, precision, maxNumTrees, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * A probability-based credible set on the given CCD with the given precision (number of thresholds)
+     * whose thresholds are computed exactly by enumerating up to the given number of most probable trees
+     * of the CCD; the thresholds of credible levels not reached by these trees are computed
+     * by sampling the given number of trees with up to the given number of threads.
+     *
+     * @param ccd             distribution of trees this credible set is based on
+     * @param numberOfSamples number of sampled trees used to determine credible levels if not computed exactly
+     * @param precision       number of thresholds stored giving the credible level precision
+     * @param maxNumTrees     maximum number of trees enumerated to compute the thresholds exactly;
+     *                        0 to compute all thresholds by sampling
+     * @param threadCount     maximum number of threads used to sample trees
+     */
+    public ProbabilityBasedCredibleSetComputer(AbstractCCD ccd, int numberOfSamples, int precision, int maxNumTrees,
+                                               int threadCount) {
+        if (numberOfSamples < 1) {
+            throw new IllegalArgumentException("Tree-based credible set requires at least one sampled tree.");
+        }
+        this.treeDistribution = ccd;
+        this.numSamples = numberOfSamples;
+        this.precision = Math.max(1, precision);
+        this.threadCount = Math.max(1, threadCount);
+
+        initializeExactCredibleSetInformation(ccd, maxNumTrees);
+    }
+
+    /* Initialization method; samples for the thresholds not reached with the given number of trees. */
+    private void initializeExactCredibleSetInformation(AbstractCCD ccd, int maxNumTrees) {
+        double[] thresholds = new double[precision];
+        long[] numTrees = new long[precision];
+        Arrays.fill(numTrees, -1);
+        int level = 0;
+
+        if ((maxNumTrees > 0) && (precision > 1)) {
+            // the threshold of a credible level is the probability of the tree
+            // with which the cumulative probability reaches that level
+            KBestTreeEnumerator enumerator = new KBestTreeEnumerator(ccd, maxNumTrees, HeightSettingStrategy.None);
+            double cumulativeProbability = 0;
+            while ((level < precision - 1) && enumerator.hasNext()) {
+                double logProbability = enumerator.nextLogProbability();
+                cumulativeProbability += Math.exp(logProbability);
+                while ((level < precision - 1)
+                        && (cumulativeProbability >= (level + 1) / (double) precision - EXACT_TOLERANCE)) {
+                    thresholds[level] = logProbability;
+                    numTrees[level] = enumerator.getNumberOfEnumeratedTrees();
+                    level++;
+                }
+            }
+        }
+
+        if (level < precision - 1) {
+            if (maxNumTrees > 0) {
+                System.err.println("Exact credible set requires more than " + maxNumTrees + " trees; credible levels above "
+                        + level / (double) precision + " are computed by sampling instead.");
+            }
+            initializeCredibleSetInformation();
+            for (int i = level; i < precision - 1; i++) {
+                // keep the sampled thresholds below the exact ones
+                thresholds[i] = (level == 0) ? sampledLogProbabilities[i]
+                        : Math.min(sampledLogProbabilities[i], thresholds[level - 1]);
+            }
+        }
+        thresholds[precision - 1] = Double.NEGATIVE_INFINITY;
+
+        this.sampledLogProbabilities = thresholds;
+        this.numTreesPerCredibleLevel = numTrees;
+        this.numExactThresholds = level;
+    }
+
+    /** @return whether all credible level thresholds were computed exactly (instead of by sampling) */
+    public boolean isExact() {
+        return numExactThresholds >= precision - 1;
+    }
+
+    /** @return the highest credible level whose threshold was computed exactly, or 0 if there is none */
+    public double getHighestExactCredibleLevel() {
+        return isExact() ? 1.0 : numExactThresholds / (double) precision;
+    }
+
+    /**
+     * Returns the exact number of trees in the alpha credible set, i.e. the number of most probable trees
+     * needed to reach a cumulative probability of alpha (rounded up to the precision of this credible set).
+     *
+     * @param alpha credible level in (0,1)
+     * @return number of trees in the alpha credible set, or -1 if not computed exactly or for the highest level
+     */
+    public long getNumberOfTreesInCredibleSet(double alpha) {
+        if (numTreesPerCredibleLevel == null) {
+            return -1;
+        }
+        return numTreesPerCredibleLevel[getCredibleLevelIndex(alpha)];
+    }
+
+    /**
+     * Returns the log probability threshold of the alpha credible set, i.e. the log probability
+     * of the least probable tree in it (rounded up to the precision of this credible set).
+     *
+     * @param alpha credible level in (0,1]
+     * @return log probability threshold of the alpha credible set
+     */
+    public double getLogProbabilityThreshold(double alpha) {
+        return sampledLogProbabilities[getCredibleLevelIndex(alpha)];
+    }
+
+    /* Helper method */
+    private int getCredibleLevelIndex(double alpha) {
+        if ((alpha <= 0) || (alpha > 1)) {
+            throw new IllegalArgumentException("Credible level has to be in (0,1].");
+        }
+        return Math.max(1, Math.min(precision, (int) Math.ceil(alpha * precision - EXACT_TOLERANCE))) - 1;
+    }
+
     /* Initialization method. */
     private void initializeCredibleSetInformation() {
-        sampledProbabilities = new double[numSamples + 1];
-        // sampledLogProbabilities = new double[numSamples + 1];
-        sampledProbabilities[0] = 0;
-        // sampledLogProbabilities[0] = Double.NEGATIVE_INFINITY;
-        for (int i = 1; i <= numSamples; i++) {
-            sampledProbabilities[i] = treeDistribution.sampleTreeProbability();
-            // System.out.println(sampledProbabilities[i]);
-            // sampledLogProbabilities[i] = ccd.sampleTreeLogProbability();
-        }
-
-        Arrays.sort(sampledProbabilities);
-        // reverse
-        for (int i = 0; i < sampledProbabilities.length / 2; i++) {
-            int rightIndex = sampledProbabilities.length - 1 - i;
-            double tmp = sampledProbabilities[i];
-            sampledProbabilities[i] = sampledProbabilities[rightIndex];
-            sampledProbabilities[rightIndex] = tmp;
-        }
-
-        // filter to precision
-        if (precision < numSamples) {
-            double[] downsampledProbabilities = new double[precision];
-            double stepSize = numSamples / (double) precision;
-            for (int i = 1; i <= precision; i++) {
-                int sampleIndex = (int) Math.round(i * stepSize);
-                downsampledProbabilities[i - 1] = sampledProbabilities[sampleIndex];
+        // first sample on this thread, so that the distribution is tidied up before sampling concurrently
+        Random seeds = new Random();
+        QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K, new Random(seeds.nextLong()));
+        sketch.update(treeDistribution.sampleTreeLogProbability(new Random(seeds.nextLong())));
+
+        int numThreads = (numSamples < MIN_SAMPLES_PER_THREAD) ? 1
+                : Math.min(threadCount, numSamples / MIN_SAMPLES_PER_THREAD);
+        if (numThreads <= 1) {
+            sketch.merge(new SamplingWorker(treeDistribution, numSamples - 1, seeds.nextLong()).call());
+        } else {
+            ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<QuantileSketch>> results = new ArrayList<>(numThreads);
+                int remainingSamples = numSamples - 1;
+                for (int i = 0; i < numThreads; i++) {
+                    int numWorkerSamples = remainingSamples / (numThreads - i);
+                    remainingSamples -= numWorkerSamples;
+                    results.add(exec.submit(new SamplingWorker(treeDistribution, numWorkerSamples, seeds.nextLong())));
+                }
+                // merge in order of submission, so the result only depends on the seeds
+                for (Future<QuantileSketch> result : results) {
+                    sketch.merge(result.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while sampling trees for credible set.", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Sampling trees for credible set failed.", e.getCause());
+            } finally {
+                exec.shutdownNow();
             }
-            sampledProbabilities = downsampledProbabilities;
         }
 
-        // for (int i = 0; i < sampledProbabilities.length; i++) {
-        //     System.out.printf("i = %d, threshold = %f\n", i, sampledProbabilities[i]);
-        // }
+        // thresholds at equidistant fractions of the sampled log probabilities sorted decreasingly,
+        // where the last one is the smallest possible value
+        double[] fractions = new double[precision - 1];
+        for (int i = 1; i < precision; i++) {
+            fractions[i - 1] = 1.0 - i / (double) precision;
+        }
+        double[] quantiles = sketch.getQuantiles(fractions);
+        sampledLogProbabilities = Arrays.copyOf(quantiles, precision);
+        sampledLogProbabilities[precision - 1] = Double.NEGATIVE_INFINITY;
+    }
+
+    /* Thread worker sampling trees with its own random and sketch */
+    static class SamplingWorker implements Callable<QuantileSketch> {
+        private final ITreeDistribution treeDistribution;
+        private final int numSamples;
+        private final long seed;
+
+        SamplingWorker(ITreeDistribution treeDistribution, int numSamples, long seed) {
+            this.treeDistribution = treeDistribution;
+            this.numSamples = numSamples;
+            this.seed = seed;
+        }
+
+        @Override
+        public QuantileSketch call() {
+            Random random = new Random(seed);
+            QuantileSketch sketch = new QuantileSketch(QuantileSketch.DEFAULT_K, new Random(random.nextLong()));
+            for (int i = 0; i < numSamples; i++) {
+                sketch.update(treeDistribution.sampleTreeLogProbability(random));
+            }
+            return sketch;
+        }
     }
 
     @Override
     public double getCredibleLevel(Tree tree) {
-        // Double prob = (Double) tree.getRoot().getMetaData(AbstractCCD.PROB_SUBTREE_KEY);
-        double prob = treeDistribution.getProbabilityOfTree(tree);
-        if (prob == 0) {
+        double logProb = treeDistribution.getLogProbabilityOfTree(tree);
+        if (logProb == Double.NEGATIVE_INFINITY) {
             return -1;
         }
 
-        int indexOfNextSmallest = findIndexOfNextSmallest(prob) + 1;
-        return (indexOfNextSmallest / (double) sampledProbabilities.length);
+        int indexOfNextSmallest = findIndexOfNextSmallest(logProb) + 1;
+        return (indexOfNextSmallest / (double) sampledLogProbabilities.length);
     }
 
     /* Helper method. */
     private int findIndexOfNextSmallest(double target) {
+        // a tree as probable as an exact threshold lies in the credible set of that level,
+        // while sampled thresholds only bound credible levels from below
+        if ((numExactThresholds > 0) && (target >= sampledLogProbabilities[numExactThresholds - 1])) {
+            return findIndexOfNextSmallest(target, 0, numExactThresholds - 1, true);
+        }
+        return findIndexOfNextSmallest(target, numExactThresholds, sampledLogProbabilities.length - 1, false);
+    }
+
+    /* Helper method. */
+    private int findIndexOfNextSmallest(double target, int left, int right, boolean inclusive) {
         // binary search
-        int left = 0;
-        int right = sampledProbabilities.length - 1;
         int result = right;
 
-        // System.out.println("\ntarget = " + target);
         while (left <= right) {
             int mid = left + (right - left) / 2;
-            if (target > sampledProbabilities[mid]) {
+            double threshold = sampledLogProbabilities[mid];
+            if ((target > threshold) || (inclusive && (target == threshold))) {
                 result = mid;
                 right = mid - 1; // search in left half
             } else {
@@ -144,7 +358,6 @@ public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
             }
         }
 
-        // System.out.println("result = " + result);
         return result;
     }
 
@@ -163,41 +376,54 @@ public class ProbabilityBasedCredibleSetComputer implements ICredibleSet {
 
     private double[] getNumberOfTrees(boolean inLogUnits) {
         double[] nums = new double[DEFAULT_PRECISION];
-        double[] meanProbability = getMeanProbabilityPerCredibleLevel();
-        double bucketProbability = 1.0 / DEFAULT_PRECISION;
-        double logBucketProbability = Math.log(bucketProbability);
-        // System.out.println("bucketProbability = " + bucketProbability);
-        for (int i = 0; i < meanProbability.length; i++) {
-            if (inLogUnits) {
-                if (meanProbability[i] == 0) {
-                    nums[i] = Double.POSITIVE_INFINITY; // or any other handling mechanism
-                } else {
-                    double logMeanProbability = Math.log(meanProbability[i]);
-                    nums[i] = logBucketProbability - logMeanProbability;
-                }
+        double[] meanLogProbability = getMeanLogProbabilityPerCredibleLevel();
+        double logBucketProbability = Math.log(1.0 / DEFAULT_PRECISION);
+        for (int i = 0; i < meanLogProbability.length; i++) {
+            if (meanLogProbability[i] == Double.NEGATIVE_INFINITY) {
+                nums[i] = Double.POSITIVE_INFINITY;
             } else {
-                nums[i] = bucketProbability / meanProbability[i];
+                nums[i] = logBucketProbability - meanLogProbability[i];
+            }
+            if (!inLogUnits) {
+                nums[i] = Math.exp(nums[i]);
             }
         }
 
-
         return nums;
     }
 
     public double[] getMeanProbabilityPerCredibleLevel() {
-        double[] meanProbability = new double[DEFAULT_PRECISION];
-        int bucketLength = sampledProbabilities.length / DEFAULT_PRECISION;
-        // System.out.println("sampledProbabilities: " + Arrays.toString(sampledProbabilities));
-        // System.out.println("bucketLength = " + bucketLength);
+        double[] meanProbability = getMeanLogProbabilityPerCredibleLevel();
+        for (int i = 0; i < meanProbability.length; i++) {
+            meanProbability[i] = Math.exp(meanProbability[i]);
+        }
+        return meanProbability;
+    }
+
+    /**
+     * @return for each of the {@link #DEFAULT_PRECISION} credible levels, the log of the mean
+     * probability of the thresholds in it
+     */
+    public double[] getMeanLogProbabilityPerCredibleLevel() {
+        double[] meanLogProbability = new double[DEFAULT_PRECISION];
+        int bucketLength = Math.max(1, sampledLogProbabilities.length / DEFAULT_PRECISION);
         for (int i = 0; i < DEFAULT_PRECISION; i++) {
+            // log-sum-exp over the bucket
+            int index = Math.min(i * bucketLength, sampledLogProbabilities.length - bucketLength);
+            double max = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < bucketLength; j++) {
+                max = Math.max(max, sampledLogProbabilities[index + j]);
+            }
+            if (max == Double.NEGATIVE_INFINITY) {
+                meanLogProbability[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
             double sum = 0.0;
-            int index = i * bucketLength;
             for (int j = 0; j < bucketLength; j++) {
-                sum += sampledProbabilities[index++];
+                sum += Math.exp(sampledLogProbabilities[index + j] - max);
             }
-            meanProbability[i] = sum / bucketLength;
+            meanLogProbability[i] = max + Math.log(sum / bucketLength);
         }
-        // System.out.println("mean probs: " + Arrays.toString(meanProbability));
-        return meanProbability;
+        return meanLogProbability;
     }
 }
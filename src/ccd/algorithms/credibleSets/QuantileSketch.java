@@ -0,0 +1,208 @@
+package ccd.algorithms.credibleSets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A mergeable streaming quantile sketch (KLL sketch by
+ * <a href="https://doi.org/10.1109/FOCS.2016.17">Karnin, Lang, and Liberty, 2016</a>)
+ * that approximates the distribution of a stream of values in bounded memory.
+ * Values are kept in a hierarchy of compactors, where a value in level h represents 2^h values
+ * of the stream; when a level is full, its sorted values are halved and every other value is promoted.
+ * With parameter k, the sketch keeps O(k) values and the rank error is in the order of 1/k.
+ *
+ * <p>
+ * A sketch is not thread-safe, but sketches filled by different threads can be merged.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class QuantileSketch {
+
+    /** Default parameter k, giving a rank error of roughly 0.1%. */
+    public static final int DEFAULT_K = 2048;
+
+    /** Factor by which the capacity of a compactor decreases per level below the top. */
+    private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+    /** Parameter controlling size and accuracy of this sketch. */
+    private final int k;
+
+    /** Random used to choose which values get promoted. */
+    private final Random random;
+
+    /** The compactors; values in level h have weight 2^h. */
+    private final List<double[]> levels = new ArrayList<>();
+
+    /** Number of values in each compactor. */
+    private int[] sizes = new int[0];
+
+    /** Number of values currently kept and maximum before compacting. */
+    private int numRetained = 0;
+    private int maxRetained = 0;
+
+    /** Number of values added to this sketch (including merged sketches). */
+    private long count = 0;
+
+    /**
+     * Constructor for an empty sketch.
+     *
+     * @param k      parameter controlling size and accuracy of this sketch, at least 8
+     * @param random used to choose which values get promoted
+     */
+    public QuantileSketch(int k, Random random) {
+        if (k < 8) {
+            throw new IllegalArgumentException("Quantile sketch parameter k has to be at least 8.");
+        }
+        this.k = k;
+        this.random = random;
+        addLevel();
+    }
+
+    /**
+     * Adds the given value to this sketch.
+     *
+     * @param value to be added
+     */
+    public void update(double value) {
+        append(0, value);
+        count++;
+        if (numRetained >= maxRetained) {
+            compress();
+        }
+    }
+
+    /**
+     * Adds all values of the other sketch to this sketch; the other sketch is not modified.
+     *
+     * @param other sketch to merge into this one
+     */
+    public void merge(QuantileSketch other) {
+        while (levels.size() < other.levels.size()) {
+            addLevel();
+        }
+        for (int h = 0; h < other.levels.size(); h++) {
+            double[] otherLevel = other.levels.get(h);
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, otherLevel[i]);
+            }
+        }
+        count += other.count;
+        while (numRetained >= maxRetained) {
+            compress();
+        }
+    }
+
+    /** @return number of values added to this sketch */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the (approximate) values at the given fractions of the sorted stream,
+     * e.g. 0.5 for the median.
+     *
+     * @param fractions values in [0,1]
+     * @return for each fraction, the value at this fraction of the sorted stream
+     */
+    public double[] getQuantiles(double[] fractions) {
+        if (count == 0) {
+            throw new IllegalStateException("Quantiles requested from empty sketch.");
+        }
+
+        // collect the retained values with weights and sort them
+        double[] values = new double[numRetained];
+        long[] weights = new long[numRetained];
+        Integer[] order = new Integer[numRetained];
+        int n = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            double[] level = levels.get(h);
+            for (int i = 0; i < sizes[h]; i++) {
+                values[n] = level[i];
+                weights[n] = 1L << h;
+                order[n] = n;
+                n++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        long totalWeight = 0;
+        for (long weight : weights) {
+            totalWeight += weight;
+        }
+
+        double[] quantiles = new double[fractions.length];
+        for (int j = 0; j < fractions.length; j++) {
+            double targetWeight = fractions[j] * totalWeight;
+            long cumulativeWeight = 0;
+            quantiles[j] = values[order[n - 1]];
+            for (int i = 0; i < n; i++) {
+                cumulativeWeight += weights[order[i]];
+                if (cumulativeWeight >= targetWeight) {
+                    quantiles[j] = values[order[i]];
+                    break;
+                }
+            }
+        }
+
+        return quantiles;
+    }
+
+    /* Helper method */
+    private void addLevel() {
+        levels.add(new double[8]);
+        sizes = Arrays.copyOf(sizes, levels.size());
+        maxRetained = 0;
+        for (int h = 0; h < levels.size(); h++) {
+            maxRetained += getCapacity(h);
+        }
+    }
+
+    /* Helper method */
+    private int getCapacity(int level) {
+        int depth = levels.size() - 1 - level;
+        return Math.max(2, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, depth)));
+    }
+
+    /* Helper method */
+    private void append(int h, double value) {
+        double[] level = levels.get(h);
+        if (sizes[h] == level.length) {
+            level = Arrays.copyOf(level, 2 * level.length);
+            levels.set(h, level);
+        }
+        level[sizes[h]++] = value;
+        numRetained++;
+    }
+
+    /* Helper method; compacts the lowest level that is full */
+    private void compress() {
+        for (int h = 0; h < levels.size(); h++) {
+            if (sizes[h] >= getCapacity(h)) {
+                if (h + 1 == levels.size()) {
+                    addLevel();
+                }
+
+                double[] level = levels.get(h);
+                int size = sizes[h];
+                Arrays.sort(level, 0, size);
+
+                // with an odd number of values, the largest one stays in this level
+                int numToCompact = size - (size % 2);
+                int offset = random.nextBoolean() ? 1 : 0;
+                for (int i = offset; i < numToCompact; i += 2) {
+                    append(h + 1, level[i]);
+                }
+                if (numToCompact < size) {
+                    level[0] = level[size - 1];
+                }
+                sizes[h] = size - numToCompact;
+                numRetained -= numToCompact;
+                return;
+            }
+        }
+    }
+
+}
@@ -12,8 +12,10 @@ import ccd.model.bitsets.BitSet;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -22,6 +24,9 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
 
 /**
  * <p>
@@ -78,6 +83,9 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /** The trees this CCD is based on (burnin trees removed). */
     protected TreeSet baseTreeSet;
 
+    /** Names and indices of the taxa, built once from a base tree and shared with derived CCDs. */
+    protected TaxonTable taxonTable;
+
     /**
      * Whether to store the trees used to create this CCD.
      */
@@ -251,7 +259,11 @@ public abstract class AbstractCCD implements ITreeDistribution {
     public void addTree(Tree tree) {
         this.numBaseTrees++;
         this.cladifyTree(tree);
-        this.setCacheAsDirty();
+        if (updateCachesLocally) {
+            this.resetCachedValues(collectCladesAndAncestors(getCladeToNodeMap(tree).keySet()));
+        } else {
+            this.setCacheAsDirty();
+        }
     }
 
     /* Helper method; process one tree into this CCD */
@@ -329,6 +341,30 @@ public abstract class AbstractCCD implements ITreeDistribution {
             System.err.println("WARNING: Removing tree from CCD that was not part of it.");
         }
 
+        if (updateCachesLocally) {
+            // the ancestors have to be collected before clade partitions get removed
+            Set<Clade> treeClades = getCladeToNodeMap(tree).keySet();
+            Set<Clade> dirtyClades = collectCladesAndAncestors(treeClades);
+
+            this.reduceCladeCount(tree.getRoot());
+            this.numBaseTrees--;
+
+            if (tidyUpCCDGraph) {
+                // clades of the tree without occurrences have lost all their
+                // clade partitions and parent clades already, so only the mapping is left
+                for (Clade clade : treeClades) {
+                    if (!clade.isLeaf() && (clade != rootClade) && (clade.getNumberOfOccurrences() == 0)
+                            && clade.getPartitions().isEmpty() && clade.getParentClades().isEmpty()) {
+                        this.cladeMapping.remove(clade.getCladeInBits());
+                        dirtyClades.remove(clade);
+                    }
+                }
+            }
+
+            this.resetCachedValues(dirtyClades);
+            return;
+        }
+
         this.reduceCladeCount(tree.getRoot());
         this.numBaseTrees--;
 
@@ -385,7 +421,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /**
      * Tidy up this CCD by removing nontrivial clades that have no clade
      * partitions and clade partitions whose parent or child clades have been
-     * removed.
+     * removed; see {@link CCDGraphPruner}.
      *
      * @param renormalize whether to renormalize CCPs of clade partitions under a clade where ones was removed
      * @return whether this CCD is still complete, i.e. returns {@code false}
@@ -395,9 +431,6 @@ public abstract class AbstractCCD implements ITreeDistribution {
         boolean complete = true;
         ArrayList<Clade> cladesToRemove = new ArrayList<Clade>();
 
-        int numCladesRemoved = 0;
-        int numPartitionsRemoved = 0;
-
         // check if any (nontrivial) clade should be removed, because
         // - has no parents anymore
         // - has no children (clades/clade partitions) anymore
@@ -423,71 +456,20 @@ public abstract class AbstractCCD implements ITreeDistribution {
         }
 
         // when removing a clades, have to check their (old) parents/children
-        while (!cladesToRemove.isEmpty()) {
-            Clade cladeToRemove = cladesToRemove.remove(cladesToRemove.size() - 1);
-            // out.println("clade to remove: " + cladeToRemove.getCladeInBits());
-
-            // keep trivial clades
-            if (cladeToRemove.isLeaf() || (cladeToRemove == this.rootClade)) {
-                out.println("- request to remove " + (cladeToRemove.isLeaf() ? "leaf" : "root") + "!");
-                complete = false;
-                continue;
-            }
+        CCDGraphPruner pruner = new CCDGraphPruner(clade -> this.cladeMapping.remove(clade.getCladeInBits()) != null);
+        pruner.setRenormalize(renormalize);
+        pruner.prune(cladesToRemove);
+
+        // keep trivial clades
+        for (Clade trivialClade : pruner.getTrivialClades()) {
+            out.println("- request to remove " + (trivialClade.isLeaf() ? "leaf" : "root") + "!");
+            complete = false;
+        }
 
-            // a) take clade out of mapping,
-            // which we might have already done before
-            // (clade could be added to removal list multiple times)
-            if (this.cladeMapping.remove(cladeToRemove.getCladeInBits()) == null) {
-                continue;
-            }
+        int numCladesRemoved = pruner.getRemovedClades().size();
+        int numPartitionsRemoved = pruner.getRemovedPartitions().size();
+        if (numCladesRemoved > 0) {
             setCacheAsDirty();
-            numCladesRemoved++;
-
-            // b) remove connection to parent clades ...
-            for (Clade parent : cladeToRemove.getParentClades()) {
-                if (!parent.getChildClades().remove(cladeToRemove)) {
-                    continue;
-                }
-
-                // ... and update parent clades
-                for (CladePartition parentPartition : parent.getPartitions()) {
-                    // there can only be one partition that contains
-                    // cladeToRemove under the parent clade
-                    if (parentPartition.containsChildClade(cladeToRemove)) {
-                        parent.getPartitions().remove(parentPartition);
-                        numPartitionsRemoved++;
-                        if (parent.getPartitions().isEmpty()) {
-                            cladesToRemove.add(parent);
-                        } else {
-                            if (renormalize) {
-                                parent.normalizeCCPs();
-                            }
-                        }
-
-                        // also update other child
-                        Clade otherChild = parentPartition.getOtherChildClade(cladeToRemove);
-                        parent.getChildClades().remove(otherChild);
-                        otherChild.getParentClades().remove(parent);
-                        if (otherChild.getParentClades().isEmpty()) {
-                            cladesToRemove.add(otherChild);
-                        }
-
-                        break;
-                    }
-                }
-
-            }
-
-            // c) remove all connection of children to parent
-            for (CladePartition partition : cladeToRemove.getPartitions()) {
-                for (Clade child : partition.getChildClades()) {
-                    child.getParentClades().remove(cladeToRemove);
-                    if (child.getParentClades().isEmpty()) {
-                        cladesToRemove.add(child);
-                    }
-                }
-            }
-            // do not have to empty partitions of clade, since it is dumped anyway
         }
 
         /*- if ((numCladesRemoved > 0) || (numPartitionsRemoved > 0)) {
@@ -633,6 +615,16 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return baseTrees.get(0);
     }
 
+    /**
+     * @return the table of the taxa of this CCD, which is shared with CCDs derived from this one
+     */
+    public TaxonTable getTaxonTable() {
+        if (taxonTable == null) {
+            taxonTable = TaxonTable.of(getSomeBaseTree());
+        }
+        return taxonTable;
+    }
+
     /** @return whether this CCD stores all trees used to construct it */
     protected boolean storesBaseTrees() {
         return storeBaseTrees;
@@ -681,6 +673,46 @@ public abstract class AbstractCCD implements ITreeDistribution {
         commonAncestorHeightsDirty = true;
     }
 
+    /**
+     * Whether adding and removing trees only invalidates the cached values of
+     * the clades of the tree and their ancestors instead of all cached values.
+     * Only sound if the CCPs of a clade's partitions only depend on the counts of
+     * that clade, as for a {@link CCD1}; see {@link CCD1#setToUpdateCachesLocally()}.
+     */
+    protected boolean updateCachesLocally = false;
+
+    /**
+     * Resets the cached values of the given clades, but keeps the cached values
+     * of all other clades. The given clades have to be closed under taking ancestors,
+     * since cached values such as the entropy or the max subtree probability
+     * of a clade depend on all its descendants.
+     * Clade probabilities are computed top-down and thus always recomputed as a whole.
+     *
+     * @param clades whose cached values are reset
+     */
+    protected void resetCachedValues(Collection<Clade> clades) {
+        for (Clade clade : clades) {
+            clade.resetCachedValues();
+        }
+        // resetting the root marks the clade probabilities as out of date
+        rootClade.resetCachedValues();
+        commonAncestorHeightsDirty = true;
+        credibleSets.clear();
+    }
+
+    /* Helper method; collects the given clades and all their ancestor clades */
+    protected static Set<Clade> collectCladesAndAncestors(Collection<Clade> clades) {
+        Set<Clade> collected = new HashSet<>(4 * clades.size());
+        ArrayDeque<Clade> stack = new ArrayDeque<>(clades);
+        while (!stack.isEmpty()) {
+            Clade clade = stack.pop();
+            if (collected.add(clade)) {
+                stack.addAll(clade.getParentClades());
+            }
+        }
+        return collected;
+    }
+
     /* Helper method. */
     protected void resetCacheIfProbabilitiesDirty() {
         if (probabilitiesDirty) {
@@ -739,6 +771,8 @@ public abstract class AbstractCCD implements ITreeDistribution {
      * The number of parameters depends on the specific CCD.
      * The log likelihood is computed as the log of the product of the probability of each tree used to construct this CCD;
      * thus the method requires that this CCD knows the TreeSet it was constructed with.
+     * To score several CCDs on the same trees, use a {@link MultiCCDScorer} instead,
+     * which reads the trees only once.
      *
      * @return the AIC score of this CCD
      * @throws IOException
@@ -749,22 +783,33 @@ public abstract class AbstractCCD implements ITreeDistribution {
             return -1;
         }
 
-        double twoK = 2 * this.getNumberOfParameters();
-        double logL = 0.0;
-
-        baseTreeSet.reset();
-        while (baseTreeSet.hasNext()) {
-            logL += Math.log(getProbabilityOfTree(baseTreeSet.next()));
-        }
+        return new MultiCCDScorer(this).computeAICScores(baseTreeSet)[0];
+    }
 
-        return twoK - 2 * logL;
+    /**
+     * Returns the AIC score of this CCD for the given log likelihood.
+     *
+     * @param logLikelihood log likelihood of the trees under this CCD
+     * @return the AIC score of this CCD
+     */
+    public double getAICScore(double logLikelihood) {
+        return 2 * this.getNumberOfParameters() - 2 * logLikelihood;
     }
 
     /** @return the number of parameters this CCD model has */
     abstract protected double getNumberOfParameters();
 
-    /** @return the log likelihood of this CCD based on the trees it was constructed with */
+    /**
+     * Returns the log likelihood of this CCD based on the trees it was constructed with.
+     * The value is computed from the occurrence counts of the clade partitions,
+     * which is only equal to the sum of the log probabilities of the base trees
+     * if {@link #hasCountBasedLikelihood()} holds.
+     *
+     * @return the log likelihood of this CCD based on the trees it was constructed with
+     */
     public double getLogLikelihood() {
+        tidyUpCacheIfDirty();
+
         double logP = 0;
         for (Clade c : this.getClades()) {
             for (CladePartition p : c.getPartitions()) {
@@ -777,55 +822,110 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return logP;
     }
 
+    /**
+     * Whether the occurrence counts of the clade partitions of this CCD are exactly
+     * those of the trees it was constructed with, so that {@link #getLogLikelihood()}
+     * equals the sum of the log probabilities of these trees.
+     * This does not hold for CCDs that were derived from another CCD (e.g. filtered).
+     *
+     * @return whether the log likelihood can be computed from the occurrence counts
+     */
+    protected boolean hasCountBasedLikelihood() {
+        return false;
+    }
+
     /**
      * Computes and returns the Fair Proportion Diversity Index of the taxa in this CCD
      * by using branch length derived from heights set by the given strategy
      *
+     * <p>
+     * The diversity contributed by the edges to a child clade is first aggregated per child clade
+     * (in parallel over the parent clades with one accumulator per thread)
+     * and then pushed down to the leaves in one top-down pass, where each clade passes
+     * its accumulated diversity to the two child clades of one of its partitions,
+     * which reaches each of its leaves exactly once.
+     * </p>
+     *
      * @param heightStrategy used to set clade heights
      * @return Fair Proportion Diversity Index of the taxa in this CCD
      */
     public double[] getFairProportionIndex(HeightSettingStrategy heightStrategy) {
         this.computeCladeProbabilitiesIfDirty();
+        ToDoubleFunction<Clade> heights;
         if (heightStrategy == HeightSettingStrategy.CommonAncestorHeights) {
             setupCommonAncestorHeightsIfDirty();
+            heights = Clade::getCommonAncestorHeight;
+        } else if (heightStrategy == HeightSettingStrategy.MeanOccurredHeights) {
+            heights = Clade::getMeanOccurredHeight;
+        } else {
+            heights = clade -> 0;
         }
 
-        double max = 0;
-
-        double[] index = new double[this.getSizeOfLeavesArray()];
-
-        for (Clade parent : this.getClades()) {
-            double pClade = parent.getProbability();
+        // clades ordered by decreasing size, so parents come before their children
+        List<Clade> clades = new ArrayList<>(this.getClades());
+        clades.sort(Comparator.comparingInt(Clade::size).reversed());
+        Map<Clade, Integer> indices = new HashMap<>(4 * clades.size() / 3 + 1);
+        for (int i = 0; i < clades.size(); i++) {
+            indices.put(clades.get(i), i);
+        }
 
-            for (CladePartition partition : parent.getPartitions()) {
-                double pPartition = partition.getCCP();
+        // 1. aggregate diversity per child clade
+        double[] diversities = aggregateChildDiversities(clades, indices, heights);
 
-                for (Clade child : partition.getChildClades()) {
-                    double branchLength = 0;
-                    if (heightStrategy == HeightSettingStrategy.CommonAncestorHeights) {
-                        branchLength = parent.getCommonAncestorHeight() - child.getCommonAncestorHeight();
-                    } else if (heightStrategy == HeightSettingStrategy.MeanOccurredHeights) {
-                        branchLength = parent.getMeanOccurredHeight() - child.getMeanOccurredHeight();
-                    }
+        // 2. push diversity down to the leaves
+        double[] index = new double[this.getSizeOfLeavesArray()];
+        for (int i = 0; i < clades.size(); i++) {
+            Clade clade = clades.get(i);
+            if (clade.isLeaf()) {
+                index[clade.getCladeInBits().nextSetBit(0)] += diversities[i];
+            } else if (!clade.getPartitions().isEmpty()) {
+                for (Clade child : clade.getPartitions().get(0).getChildClades()) {
+                    diversities[indices.get(child)] += diversities[i];
+                }
+            } else if (diversities[i] != 0) {
+                // without partitions, we have to distribute it to the leaves directly
+                BitSet bitset = clade.getCladeInBits();
+                for (int j = bitset.nextSetBit(0); j != -1; j = bitset.nextSetBit(j + 1)) {
+                    index[j] += diversities[i];
+                }
+            }
+        }
 
-                    if (branchLength < 0) {
-                        throw new AssertionError("Negative branch length.");
-                    }
+        return index;
+    }
 
-                    int size = child.size();
-                    double diversity = pClade * pPartition * branchLength / size;
+    /* Helper method - diversity of the edges to each child clade, normalized by its size */
+    private static double[] aggregateChildDiversities(List<Clade> clades, Map<Clade, Integer> indices,
+                                                      ToDoubleFunction<Clade> heights) {
+        int numClades = clades.size();
+        int numChunks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), numClades / 1024));
+        return IntStream.range(0, numChunks).parallel().mapToObj(chunk -> {
+            double[] accumulator = new double[numClades];
+            for (int i = chunk; i < numClades; i += numChunks) {
+                Clade parent = clades.get(i);
+                double pClade = parent.getProbability();
+                double parentHeight = heights.applyAsDouble(parent);
+
+                for (CladePartition partition : parent.getPartitions()) {
+                    double pPartition = partition.getCCP();
+
+                    for (Clade child : partition.getChildClades()) {
+                        double branchLength = parentHeight - heights.applyAsDouble(child);
+                        if (branchLength < 0) {
+                            throw new AssertionError("Negative branch length.");
+                        }
 
-                    BitSet bitset = child.getCladeInBits();
-                    int i = bitset.nextSetBit(0);
-                    while (i != -1) {
-                        index[i] += diversity;
-                        i = bitset.nextSetBit(i + 1);
+                        accumulator[indices.get(child)] += pClade * pPartition * branchLength / child.size();
                     }
                 }
             }
-        }
-
-        return index;
+            return accumulator;
+        }).reduce((first, second) -> {
+            for (int i = 0; i < numClades; i++) {
+                first[i] += second[i];
+            }
+            return first;
+        }).orElseThrow();
     }
 
 
@@ -851,6 +951,25 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return getTreeBasedOnStrategy(SamplingStrategy.MAP, heightStrategy);
     }
 
+    /**
+     * Returns the k most probable trees of this CCD in decreasing order of probability
+     * (fewer if this CCD contains fewer trees); the probability of a tree is stored
+     * at its root with key {@link #PROB_SUBTREE_KEY}.
+     * Use a {@link KBestTreeEnumerator} to stream the trees instead.
+     *
+     * @param k              number of trees
+     * @param heightStrategy used to set the heights of the trees
+     * @return the k most probable trees of this CCD
+     */
+    public List<Tree> getKBestTrees(int k, HeightSettingStrategy heightStrategy) {
+        KBestTreeEnumerator enumerator = new KBestTreeEnumerator(this, k, heightStrategy);
+        List<Tree> trees = new ArrayList<>(Math.min(k, 1024));
+        while (enumerator.hasNext()) {
+            trees.add(enumerator.next());
+        }
+        return trees;
+    }
+
     /* Helper for methods to assign indices to inner vertices */
     private int runningInnerIndex;
 
@@ -883,7 +1002,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
         Node vertex = null;
         if (clade.isLeaf()) {
             int leafNr = clade.getCladeInBits().nextSetBit(0);
-            String taxonName = this.getSomeBaseTree().getTaxaNames()[leafNr];
+            String taxonName = this.getTaxonTable().getName(leafNr);
 
             vertex = new Node(taxonName);
             vertex.setNr(leafNr);
@@ -981,6 +1100,115 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return (double) sampleTree().getRoot().getMetaData(LOG_PROB_SUBTREE_KEY);
     }
 
+    @Override
+    public double sampleTreeLogProbability(Random random) {
+        tidyUpCacheIfDirty();
+        resetCacheIfProbabilitiesDirty();
+
+        return sampleSubtreeLogProbability(rootClade, random);
+    }
+
+    /* Recursive helper method; only reads CCPs, so can be run concurrently */
+    private static double sampleSubtreeLogProbability(Clade clade, Random random) {
+        if (clade.isLeaf()) {
+            return 0;
+        }
+
+        CladePartition partition = samplePartition(clade, random);
+        return Math.log(partition.getCCP())
+                + sampleSubtreeLogProbability(partition.getChildClades()[0], random)
+                + sampleSubtreeLogProbability(partition.getChildClades()[1], random);
+    }
+
+    /* Helper method; samples a clade partition of the given clade based on the CCPs */
+    private static CladePartition samplePartition(Clade clade, Random random) {
+        ArrayList<CladePartition> partitions = clade.getPartitions();
+
+        // the sum of probabilities over all partitions of a clade
+        // should be 1, so we can sample with a random value
+        double sampleWithMe = random.nextDouble();
+        double probabilitySum = 0;
+        for (CladePartition nextPartition : partitions) {
+            probabilitySum += nextPartition.getCCP();
+            if (sampleWithMe < probabilitySum) {
+                return nextPartition;
+            }
+        }
+
+        // sum might not exactly add up to 1.0, so for robustness then pick the last partition
+        return partitions.get(partitions.size() - 1);
+    }
+
+    /**
+     * Prepares this CCD for sampling trees concurrently with
+     * {@link #appendSampledNewick(Random, HeightSettingStrategy, String[], StringBuilder)},
+     * i.e. computes all values needed for sampling, so that sampling afterwards only reads this CCD.
+     *
+     * @param heightStrategy the strategy the sampled trees will use to set vertex heights
+     */
+    public void prepareConcurrentSampling(HeightSettingStrategy heightStrategy) {
+        tidyUpCacheIfDirty();
+        computeCladeProbabilitiesIfDirty();
+        if (heightStrategy == HeightSettingStrategy.CommonAncestorHeights) {
+            setupCommonAncestorHeightsIfDirty();
+        }
+    }
+
+    /**
+     * Samples a tree from this CCD and appends it in Newick format (terminated by a semicolon)
+     * to the given builder, with the same annotations as {@link #sampleTree(HeightSettingStrategy)};
+     * no tree is created. Since the given random is used and this CCD is only read,
+     * this can be run concurrently after {@link #prepareConcurrentSampling(HeightSettingStrategy)}.
+     *
+     * @param random         used for sampling
+     * @param heightStrategy strategy to set vertex heights; {@link HeightSettingStrategy#None}
+     *                       for no branch lengths, otherwise the heights have to be given by the clades,
+     *                       i.e. common ancestor heights or mean occurred heights
+     * @param leafLabels     label of each leaf by its index
+     * @param newick         to which the Newick string of the sampled tree is appended
+     */
+    public void appendSampledNewick(Random random, HeightSettingStrategy heightStrategy, String[] leafLabels,
+                                    StringBuilder newick) {
+        if ((heightStrategy != HeightSettingStrategy.None)
+                && (heightStrategy != HeightSettingStrategy.CommonAncestorHeights)
+                && (heightStrategy != HeightSettingStrategy.MeanOccurredHeights)) {
+            throw new IllegalArgumentException("Height setting strategy " + heightStrategy
+                    + " not supported for sampling Newick strings.");
+        }
+
+        appendSampledSubtreeNewick(rootClade, Double.NaN, random, heightStrategy, leafLabels, newick);
+        newick.append(";");
+    }
+
+    /* Recursive helper method; the parent height is NaN for the root, which then gets branch length 0 */
+    private static void appendSampledSubtreeNewick(Clade clade, double parentHeight, Random random,
+                                                   HeightSettingStrategy heightStrategy, String[] leafLabels,
+                                                   StringBuilder newick) {
+        double height;
+        if (clade.isLeaf()) {
+            newick.append(leafLabels[clade.getCladeInBits().nextSetBit(0)]);
+            height = clade.getMeanOccurredHeight();
+        } else {
+            height = (heightStrategy == HeightSettingStrategy.CommonAncestorHeights)
+                    ? clade.getCommonAncestorHeight() : clade.getMeanOccurredHeight();
+
+            CladePartition partition = samplePartition(clade, random);
+            newick.append("(");
+            appendSampledSubtreeNewick(partition.getChildClades()[0], height, random, heightStrategy, leafLabels, newick);
+            newick.append(",");
+            appendSampledSubtreeNewick(partition.getChildClades()[1], height, random, heightStrategy, leafLabels, newick);
+            newick.append(")");
+
+            if (heightStrategy != HeightSettingStrategy.None) {
+                newick.append("[&").append(CLADE_SUPPORT_KEY).append("=").append(clade.getProbability()).append("]");
+            }
+        }
+
+        if (heightStrategy != HeightSettingStrategy.None) {
+            newick.append(":").append(Double.isNaN(parentHeight) ? 0.0 : parentHeight - height);
+        }
+    }
+
     /**
      * Returns the probability of the most likely tree. Note that this can
      * underflow for large trees. It is recommended to use {@link #getMaxLogTreeProbability()}
@@ -1012,27 +1240,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
                 break;
             }
             case Sampling: {
-                ArrayList<CladePartition> partitions = clade.getPartitions();
-
-                // the sum of probabilities over all partitions of a clade
-                // should be 1, so we can sample with a random value
-                double sampleWithMe = random.nextDouble();
-
-                double probabilitySum = 0;
-                for (CladePartition nextPartition : partitions) {
-                    probabilitySum += nextPartition.getCCP();
-                    if (sampleWithMe < probabilitySum) {
-                        partition = nextPartition;
-                        break;
-                    }
-                }
-
-                // sum might not exactly add up to 1.0, so for robustness then
-                // pick the last partition
-                if (partition == null) {
-                    partition = partitions.get(partitions.size() - 1);
-                }
-
+                partition = samplePartition(clade, random);
                 break;
             }
             case MaxSumCladeCredibility:
@@ -1274,6 +1482,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
      * @param tree whose log probability is requested
      * @return the log probability of the given tree
      */
+    @Override
     public double getLogProbabilityOfTree(Tree tree) {
         resetCacheIfProbabilitiesDirty();
 
@@ -1352,7 +1561,8 @@ public abstract class AbstractCCD implements ITreeDistribution {
         if (clade == null) {
             return 0;
         } else {
-            if (clade.getProbability() < 0) {
+            // with local cache updates, only the root is guaranteed to be reset
+            if ((clade.getProbability() < 0) || (rootClade.getProbability() < 0)) {
                 computeCladeProbabilities();
             }
             return clade.getProbability();
@@ -1541,35 +1751,57 @@ public abstract class AbstractCCD implements ITreeDistribution {
      * @return average RF distance of the given tree to this CCD
      */
     public double expectedRFDistances(Tree tree) {
-        WrappedBeastTree wrappedTree = new WrappedBeastTree(tree);
-        HashMap<Clade, Double> cladeRFs = new HashMap<Clade, Double>(this.cladeMapping.size());
-        return averageRFDistance(this.rootClade, wrappedTree, cladeRFs);
+        return expectedRFDistances(List.of(tree))[0];
     }
 
-    /* Recursive helper method */
-    private double averageRFDistance(Clade clade, WrappedBeastTree wrappedTree,
-                                     HashMap<Clade, Double> cladeRFs) {
-        double cladeRF = 0.0;
-        if (clade.isLeaf()) {
-            cladeRF = 0.0;
-        } else {
-            for (CladePartition partition : clade.getPartitions()) {
-                Clade firstChild = partition.getChildClades()[0];
-                Clade secondChild = partition.getChildClades()[1];
-
-                double firstRF = cladeRFs.containsKey(firstChild) ? cladeRFs.get(firstChild)
-                        : averageRFDistance(firstChild, wrappedTree, cladeRFs);
-                double secondRF = cladeRFs.containsKey(secondChild) ? cladeRFs.get(secondChild)
-                        : averageRFDistance(secondChild, wrappedTree, cladeRFs);
+    /**
+     * Returns the expected RF distances of the given trees to the trees of this
+     * CCD weighted by their probability.
+     *
+     * <p>
+     * The expected number of clades of a tree of this CCD that are not in a given tree T is
+     * the sum of the probabilities of all non-leaf clades minus the sum of the probabilities
+     * of the non-leaf clades of T. The first sum does not depend on T and is computed once,
+     * so each tree only costs a lookup of the probability of each of its clades
+     * (via {@link #getCladeProbability(BitSet)}); the trees are processed in parallel.
+     * </p>
+     *
+     * @param trees whose average RF distances we compute
+     * @return average RF distance of each given tree to this CCD
+     */
+    public double[] expectedRFDistances(List<Tree> trees) {
+        this.computeCladeProbabilitiesIfDirty();
 
-                cladeRF += partition.getCCP() * (firstRF + secondRF);
+        double sumCladeProbabilities = 0;
+        for (Clade clade : this.getClades()) {
+            if (!clade.isLeaf()) {
+                sumCladeProbabilities += clade.getProbability();
             }
-
-            cladeRF += wrappedTree.containsClade(clade.getCladeInBits()) ? 0 : 1;
         }
 
-        cladeRFs.put(clade, cladeRF);
-        return cladeRF;
+        double expectedNumberOfClades = sumCladeProbabilities;
+        return trees.parallelStream()
+                .mapToDouble(tree -> {
+                    double[] sumTreeCladeProbabilities = new double[1];
+                    sumCladeProbabilities(tree.getRoot(), sumTreeCladeProbabilities);
+                    return expectedNumberOfClades - sumTreeCladeProbabilities[0];
+                })
+                .toArray();
+    }
+
+    /* Recursive helper method - adds the probabilities of the non-leaf clades of the given subtree to the sum */
+    private BitSet sumCladeProbabilities(Node vertex, double[] sum) {
+        BitSet cladeInBits = BitSet.newBitSet(leafArraySize);
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+        } else {
+            for (Node child : vertex.getChildren()) {
+                cladeInBits.or(sumCladeProbabilities(child, sum));
+            }
+            // not a direct lookup, since some CCDs (CCD2) do not store all their clades in the clade mapping
+            sum[0] += getCladeProbability(cladeInBits);
+        }
+        return cladeInBits;
     }
 
     public double lostProbability(Set<Clade> excludedClades) {
@@ -1613,6 +1845,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
 
     /* General copy helper method for all types of CCD */
     protected static void buildCopy(AbstractCCD original, AbstractCCD copy) {
+        copy.taxonTable = original.getTaxonTable();
         for (Clade originalClade : original.getClades()) {
             Clade copiedClade = originalClade.copy(copy);
             copy.cladeMapping.put(originalClade.getCladeInBits(), copiedClade);
@@ -1660,10 +1893,10 @@ public abstract class AbstractCCD implements ITreeDistribution {
      * @return names of taxa concatenated with given separator
      */
     public String getTaxaNames(BitSet mask, String separator) {
-        Tree tree = this.getSomeBaseTree();
+        TaxonTable taxonTable = this.getTaxonTable();
         StringBuilder taxa = new StringBuilder("{");
         for (int j = mask.nextSetBit(0); j >= 0; j = mask.nextSetBit(j + 1)) {
-            taxa.append(tree.getNode(j).getID()).append(separator);
+            taxa.append(taxonTable.getName(j)).append(separator);
         }
         return taxa.substring(0, taxa.length() - separator.length()) + "}";
     }
@@ -1675,11 +1908,10 @@ public abstract class AbstractCCD implements ITreeDistribution {
      * @return set of names of taxa
      */
     public Set<String> getTaxaNamesList(BitSet mask) {
-        Tree tree = this.getSomeBaseTree();
+        TaxonTable taxonTable = this.getTaxonTable();
         Set<String> names = new HashSet<>(mask.cardinality());
-        int index = 0;
         for (int j = mask.nextSetBit(0); j >= 0; j = mask.nextSetBit(j + 1)) {
-            names.add(tree.getNode(j).getID());
+            names.add(taxonTable.getName(j));
         }
         return names;
     }
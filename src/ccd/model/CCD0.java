@@ -12,9 +12,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
@@ -49,6 +52,18 @@ public class CCD0 extends AbstractCCD {
     /** Whether expand should use the monophyletic clade speedup. */
     private boolean useMonophyleticCladeSpeedup = false;
 
+    /**
+     * Whether expand, normalization and the MAP tree computation should run
+     * on the monophyletic blocks of the CCD graph independently.
+     */
+    private boolean useBlockDecomposition = false;
+
+    /**
+     * Maximum fraction of all clades in the largest monophyletic block for the block
+     * decomposition to be used; otherwise the standard expand step is used.
+     */
+    public static final double MAX_BLOCK_FRACTION = 0.5;
+
     /** Whether expand should run update online (instead of from scratch). */
     private boolean updateOnline = false;
 
@@ -91,6 +106,15 @@ public class CCD0 extends AbstractCCD {
      */
     private int maxExpansionFactor = -1;
 
+    /**
+     * If given, the expand step processes clades in order of decreasing occurrence
+     * and stops once this budget is exhausted.
+     */
+    private ExpansionBudget expansionBudget = null;
+
+    /** The budget used by the current expand step (null if none). */
+    private ExpansionBudget activeBudget = null;
+
     // variables for parallelization
     /** Threshold of number of clades on whether to use parallelization for expand. */
     public static final int NUM_CLADES_PARALLELIZATION_THRESHOLD = 20000;
@@ -264,6 +288,35 @@ public class CCD0 extends AbstractCCD {
         this.newClades = new ArrayList<>();
     }
 
+    /**
+     * Configure this CCD0 to decompose the CCD graph at monophyletic clades
+     * (clades in all base trees) into {@link MonophyleticBlock}s when initializing,
+     * which are then expanded, normalized and solved for the MAP tree independently and in parallel.
+     * The result is the same as without decomposition, but for a CCD with a well-supported backbone
+     * this is considerably faster. Not used when updating online or when the expansion is limited,
+     * and neither when the largest block contains more than {@link #MAX_BLOCK_FRACTION} of all clades.
+     */
+    public void setToUseBlockDecomposition() {
+        this.useBlockDecomposition = true;
+    }
+
+    /**
+     * Limit the expand step by the given resource budget; clades are then expanded
+     * in order of decreasing occurrence until the budget is exhausted.
+     * The budget is ignored when the expand step runs online,
+     * and with a (limited) budget the monophyletic clade speedup is not used.
+     *
+     * @param expansionBudget budget for the expand step, or null for no budget
+     */
+    public void setExpansionBudget(ExpansionBudget expansionBudget) {
+        this.expansionBudget = expansionBudget;
+    }
+
+    /** @return the budget of the expand step (which reports on the last expand step), or null if none set */
+    public ExpansionBudget getExpansionBudget() {
+        return expansionBudget;
+    }
+
     /** Forbids reinitializing of CCD0 (no expand and resetting CCPs). */
     public void forbidReinitializing() {
         this.allowReinitializing = false;
@@ -325,8 +378,8 @@ public class CCD0 extends AbstractCCD {
     }
 
     /**
-     * Set up this CCD0 after adding/removing trees. Assumes reset/not-set
-     * values in CCD graph.
+     * Set up this CCD0 after adding/removing trees. Resets the cached values
+     * in the CCD graph first, so it can be called again after further trees were added.
      */
     @Override
     public void initialize() {
@@ -334,6 +387,20 @@ public class CCD0 extends AbstractCCD {
             // this.dirtyStructure = false;
             return;
         }
+        // values computed since the last initialization (e.g. the entropy) would be stale
+        super.resetCache();
+
+        if (canUseBlockDecomposition()) {
+            List<List<MonophyleticBlock>> levels = MonophyleticBlock.decompose(this);
+            // with little monophyly, one large block would replace the parallel, bucket-pruned expand step
+            if (MonophyleticBlock.getMaxBlockSize(levels) <= MAX_BLOCK_FRACTION * cladeMapping.size()) {
+                initializeByBlocks(levels);
+                this.dirtyStructure = false;
+                super.setCacheAsDirty();
+                this.probabilitiesDirty = false;
+                return;
+            }
+        }
 
         // need to find all clade partitions that could exist but were not
         // observed in base trees
@@ -365,6 +432,93 @@ public class CCD0 extends AbstractCCD {
         this.probabilitiesDirty = false;
     }
 
+    /* Helper method - whether the monophyletic blocks decomposition can and should be used */
+    private boolean canUseBlockDecomposition() {
+        if (!useBlockDecomposition || updateOnline || (maxExpansionFactor != -1)
+                || ((expansionBudget != null) && expansionBudget.isLimited())) {
+            return false;
+        }
+
+        // clades without occurrences (e.g. of removed trees) need not be
+        // compatible with the monophyletic clades, so the graph might not decompose
+        for (Clade clade : cladeMapping.values()) {
+            if (clade.getNumberOfOccurrences() == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Set up this CCD0 with its decomposition into {@link MonophyleticBlock}s by
+     * expanding all blocks in parallel, and then normalizing and computing the max CCP subtrees
+     * level by level (bottom-up) in parallel, since a block only depends on the roots of its sub-blocks.
+     *
+     * @param levels the blocks grouped by height
+     */
+    private void initializeByBlocks(List<List<MonophyleticBlock>> levels) {
+        List<MonophyleticBlock> blocks = new ArrayList<>();
+        for (List<MonophyleticBlock> level : levels) {
+            blocks.addAll(level);
+        }
+        if ((progressStream != null) && verbose) {
+            progressStream.println("Expanding CCD0: processing " + cladeMapping.size() + " clades in "
+                    + blocks.size() + " monophyletic blocks");
+        }
+
+        int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), blocks.size()));
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            // 1. expand all blocks at once
+            runOnBlocks(exec, blocks, block -> block.expand(cladeMapping));
+
+            // 2. set clade partition probabilities, bottom-up
+            try {
+                for (List<MonophyleticBlock> level : levels) {
+                    runOnBlocks(exec, level, block -> setPartitionProbabilities(block.getRoot()));
+                }
+            } catch (UnderflowException exception) {
+                System.err.println("An underflow was detected. We switch to log space.");
+                this.resetSumCladeCredibilities();
+                setPartitionLogProbabilities(this.rootClade);
+            }
+
+            // 3. compute max CCP subtrees (for the MAP tree), bottom-up
+            for (List<MonophyleticBlock> level : levels) {
+                runOnBlocks(exec, level, block -> block.getRoot().getMaxSubtreeLogCCP());
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+
+        if ((progressStream != null) && verbose) {
+            progressStream.println("... done.");
+        }
+        progressStream = null;
+    }
+
+    /* Helper method - runs the given task on all given blocks and waits for them */
+    private static void runOnBlocks(ExecutorService exec, List<MonophyleticBlock> blocks,
+                                    Consumer<MonophyleticBlock> task) {
+        List<Future<?>> futures = new ArrayList<>(blocks.size());
+        for (MonophyleticBlock block : blocks) {
+            futures.add(exec.submit(() -> task.accept(block)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing monophyletic blocks.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException("Processing monophyletic blocks failed.", e.getCause());
+        }
+    }
+
     /**
      * Expand CCD graph with clade partitions where parent and children were
      * observed, but not that clade partition.
@@ -389,12 +543,23 @@ public class CCD0 extends AbstractCCD {
         List<Clade> clades = cladesToExpand.sorted(Comparator.comparingInt(x -> x.size())).toList();
         if ((progressStream != null) && verbose) {
             progressStream.println("Expanding CCD0: processing " + clades.size() + " clades");
-            if (clades.size() > 100000 && maxExpansionFactor == -1) {
+            if (clades.size() > 100000 && maxExpansionFactor == -1 && expansionBudget == null) {
                 progressStream.println("If this takes too long, consider using Approximated CCD0 instead.");
                 progressStream.println("This generally runs faster and gives reasonably good point estimates.");
             }
         }
 
+        // with a budget, we process the most frequent parent clades first,
+        // so that we stop with the most relevant ones expanded
+        List<Clade> parentClades = clades;
+        activeBudget = ((expansionBudget != null) && expansionBudget.isLimited() && !updateOnline) ? expansionBudget : null;
+        if (activeBudget != null) {
+            parentClades = clades.stream().sorted(
+                    Comparator.comparingInt((Clade x) -> -x.getNumberOfOccurrences()).thenComparingInt(Clade::size)
+            ).toList();
+            activeBudget.start(parentClades.size());
+        }
+
         // 3. clade buckets
         // for easier matching of child clades, we want to group them by size
         cladeBuckets = processCladeBuckets(clades, leafArraySize);
@@ -405,7 +570,7 @@ public class CCD0 extends AbstractCCD {
         if (threadCount <= 1 || clades.size() < NUM_CLADES_PARALLELIZATION_THRESHOLD
                 || updateOnline) {
             threadCount = 1;
-            findChildPartitions(clades);
+            findChildPartitions(parentClades);
         } else {
             try {
                 if ((progressStream != null) && verbose) {
@@ -413,9 +578,9 @@ public class CCD0 extends AbstractCCD {
                 }
                 countDown = new CountDownLatch(threadCount);
                 ExecutorService exec = Executors.newFixedThreadPool(threadCount);
-                int end = clades.size();
+                int end = parentClades.size();
                 for (int i = 0; i < threadCount; i++) {
-                    ExpandWorker coreRunnable = new ExpandWorker(clades, i, end);
+                    ExpandWorker coreRunnable = new ExpandWorker(parentClades, i, end);
                     exec.execute(coreRunnable);
                 }
                 countDown.await();
@@ -429,6 +594,13 @@ public class CCD0 extends AbstractCCD {
         if ((progressStream != null) && verbose) {
             progressStream.println("... done.");
         }
+        if (activeBudget != null) {
+            activeBudget.finish();
+            if (progressStream != null) {
+                progressStream.println(activeBudget.getReport());
+            }
+            activeBudget = null;
+        }
         // Log.warning("Expanded CCD0 in " + (end - start) / 1000 + " seconds.");
         progressStream = null;
 
@@ -564,7 +736,12 @@ public class CCD0 extends AbstractCCD {
         int progressed = 0;
         int i = 0;
         for (Clade parent : parentClades) {
-            findChildPartitionsOf(parent, helperBits);
+            if ((activeBudget != null) && activeBudget.isExhausted()) {
+                break;
+            }
+            if (findChildPartitionsOf(parent, helperBits) && (activeBudget != null)) {
+                activeBudget.countExpandedClade();
+            }
             if ((progressStream != null) && verbose) {
                 while (progressed < (i * 61 / parentClades.size())) {
                     progressStream.print(".");
@@ -579,11 +756,11 @@ public class CCD0 extends AbstractCCD {
         }
     }
 
-    /* Helper method - do the work for one particular clade */
-    private void findChildPartitionsOf(Clade parent, BitSet helperBits) {
+    /* Helper method - do the work for one particular clade; returns false if stopped by the budget */
+    private boolean findChildPartitionsOf(Clade parent, BitSet helperBits) {
         // we skip leaves and cherries as they have no/only one partition
         if (parent.isLeaf() || parent.isCherry()) {
-            return;
+            return true;
         }
 
         BitSet parentBits = parent.getCladeInBits();
@@ -608,13 +785,16 @@ public class CCD0 extends AbstractCCD {
                     }
 
                     BitSet childBits = child.getCladeInBits();
-                    findPartitionHelper(child, parent, helperBits, parentBits, childBits);
+                    if (!findPartitionHelper(child, parent, helperBits, parentBits, childBits)) {
+                        return false;
+                    }
                 }
             }
         }
 
-        // remove clades below monophyletic clades
-        if (useMonophyleticCladeSpeedup && parent.isMonophyletic()) {
+        // remove clades below monophyletic clades;
+        // not with a budget, as then descendants may be processed after their monophyletic ancestor
+        if (useMonophyleticCladeSpeedup && (activeBudget == null) && parent.isMonophyletic()) {
             if (threadCount <= 1) {
                 Set<Clade> descendants = parent.getDescendantClades(true);
                 for (Clade descendant : descendants) {
@@ -639,6 +819,7 @@ public class CCD0 extends AbstractCCD {
                 }
             }
         }
+        return true;
     }
 
     /**
@@ -665,8 +846,8 @@ public class CCD0 extends AbstractCCD {
         }
     }
 
-    /* Helper method */
-    private void findPartitionHelper(Clade child, Clade parent, BitSet helperBits, BitSet parentBits, BitSet childBits) {
+    /* Helper method - returns false if the budget is exhausted before the found clade partition could be added */
+    private boolean findPartitionHelper(Clade child, Clade parent, BitSet helperBits, BitSet parentBits, BitSet childBits) {
         // check whether child clade is contained in parent clade
         helperBits.clear();
         helperBits.or(parentBits);
@@ -679,6 +860,9 @@ public class CCD0 extends AbstractCCD {
             helperBits.xor(parentBits);
             Clade otherChild = cladeMapping.get(helperBits);
             if (otherChild != null) {
+                if ((activeBudget != null) && activeBudget.isExhausted()) {
+                    return false;
+                }
                 if (threadCount > 1) {
                     synchronized (this) {
                         parent.createCladePartition(child, otherChild);
@@ -686,8 +870,12 @@ public class CCD0 extends AbstractCCD {
                 } else {
                     parent.createCladePartition(child, otherChild);
                 }
+                if (activeBudget != null) {
+                    activeBudget.countAddedPartition();
+                }
             }
         }
+        return true;
     }
 
     /* Thread worker for embarrassingly parallelizing parts of the expand step */
@@ -708,7 +896,12 @@ public class CCD0 extends AbstractCCD {
             try {
                 BitSet helperBits = BitSet.newBitSet(clades.get(0).getCCD().getSizeOfLeavesArray());
                 while (i < end) {
-                    findChildPartitionsOf(clades.get(i), helperBits);
+                    if ((activeBudget != null) && activeBudget.isExhausted()) {
+                        break;
+                    }
+                    if (findChildPartitionsOf(clades.get(i), helperBits) && (activeBudget != null)) {
+                        activeBudget.countExpandedClade();
+                    }
                     i += threadCount;
 
                     if (progressStream != null) {
@@ -987,6 +1180,7 @@ public class CCD0 extends AbstractCCD {
         if (this.useMonophyleticCladeSpeedup) {
             copy.setToUseMonophyleticCladeSpeedup();
         }
+        copy.useBlockDecomposition = this.useBlockDecomposition;
         copy.dirtyStructure = this.dirtyStructure;
 
         return copy;
@@ -1002,4 +1196,9 @@ public class CCD0 extends AbstractCCD {
         return this.getNumberOfClades();
     }
 
+    @Override
+    protected boolean hasCountBasedLikelihood() {
+        return true;
+    }
+
 }
@@ -114,6 +114,17 @@ public class CCD1 extends AbstractCCD {
         resetCacheIfProbabilitiesDirty();
     }
 
+    /**
+     * Sets this CCD to only invalidate the cached values of the clades affected by
+     * adding or removing a tree, namely the clades of that tree and their ancestors,
+     * instead of all cached values. Since the CCPs of a clade only depend on its own counts,
+     * the entropy (see {@link #getEntropyLewis()}), the max tree probability and the MAP tree
+     * are then only recomputed for these clades; see also {@link SlidingWindowCCD}.
+     */
+    public void setToUpdateCachesLocally() {
+        this.updateCachesLocally = true;
+    }
+
     @Override
     protected boolean removeCladePartitionIfNecessary(Clade clade, CladePartition partition) {
         // when a partition has no registered occurrences more, we remove it
@@ -151,6 +162,11 @@ public class CCD1 extends AbstractCCD {
         return this.getNumberOfCladePartitions();
     }
 
+    @Override
+    protected boolean hasCountBasedLikelihood() {
+        return true;
+    }
+
     public double getProbOfHeldOutTree(Tree tree, double alpha) {
         resetCacheIfProbabilitiesDirty();
 
@@ -8,10 +8,10 @@ import ccd.model.bitsets.BitSet;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * This class represents a tree distribution using an extended CCD graph
@@ -41,9 +41,14 @@ import java.util.Map;
  */
 public class CCD2 extends AbstractCCD {
 
-    private Map<BitSet, Map<BitSet, ExtendedClade>> extendedCladeMapping;
+    /** The non-leaf extended clades (except the root) by clade and sibling. */
+    private ExtendedCladeIndex extendedCladeIndex;
 
-    private HashSet<Clade> clades;
+    /** All clades, namely root and leaves of the clade mapping and the extended clades of the index. */
+    private final Collection<Clade> clades = new CladeCollection();
+
+    /** Reusable bitsets of the vertices of processed trees (by vertex number), one array per thread. */
+    private final ThreadLocal<BitSet[]> vertexBits = ThreadLocal.withInitial(() -> new BitSet[0]);
 
     /* -- CONSTRUCTORS & CONSTRUCTION METHODS -- */
 
@@ -105,10 +110,8 @@ public class CCD2 extends AbstractCCD {
         try {
             treeSet.reset();
             Tree tree = treeSet.next();
-            extendedCladeMapping = new HashMap<>(10 * tree.getLeafNodeCount());
-            clades = new HashSet<>(10 * tree.getLeafNodeCount());
+            extendedCladeIndex = new ExtendedCladeIndex(10 * tree.getLeafNodeCount());
             super.initializeRootClade(tree.getLeafNodeCount());
-            clades.add(this.rootClade);
 
             if (verbose) {
                 out.println("Constructing CCD2 with " + (treeSet.totalTrees - treeSet.burninCount) + " trees...");
@@ -150,8 +153,7 @@ public class CCD2 extends AbstractCCD {
      */
     public CCD2(int numLeaves, boolean storeBaseTrees) {
         super(numLeaves, storeBaseTrees);
-        extendedCladeMapping = new HashMap<>(10 * numLeaves);
-        clades = new HashSet<>(10 * numLeaves);
+        extendedCladeIndex = new ExtendedCladeIndex(10 * numLeaves);
     }
 
     @Override
@@ -163,7 +165,7 @@ public class CCD2 extends AbstractCCD {
         }
 
         Node root = tree.getRoot();
-        ExtendedClade[] children = cladifyVertices(root.getChild(0), root.getChild(1));
+        ExtendedClade[] children = cladifyVertices(root.getChild(0), root.getChild(1), getVertexBits(tree));
 
         CladePartition rootPartition = this.rootClade.getCladePartition(children[0], children[1]);
         if (rootPartition == null) {
@@ -174,13 +176,13 @@ public class CCD2 extends AbstractCCD {
     }
 
     /* Recursive helper method */
-    private ExtendedClade[] cladifyVertices(Node leftVertex, Node rightVertex) {
-        BitSet leftInBits = BitSet.newBitSet(leafArraySize);
-        BitSet rightInBits = BitSet.newBitSet(leafArraySize);
+    private ExtendedClade[] cladifyVertices(Node leftVertex, Node rightVertex, BitSet[] vertexBits) {
+        BitSet leftInBits = getClearedBits(leftVertex, vertexBits);
+        BitSet rightInBits = getClearedBits(rightVertex, vertexBits);
 
         // 1. process the children: create them, return bundled, set bits in BitSet
-        ExtendedClade[] leftChildren = processChildrenCladifying(leftVertex, leftInBits);
-        ExtendedClade[] rightChildren = processChildrenCladifying(rightVertex, rightInBits);
+        ExtendedClade[] leftChildren = processChildrenCladifying(leftVertex, leftInBits, vertexBits);
+        ExtendedClade[] rightChildren = processChildrenCladifying(rightVertex, rightInBits, vertexBits);
 
         // 2. create extended clades, if they don't exist yet
         ExtendedClade leftClade = getExtendedClade(leftInBits, rightInBits);
@@ -206,12 +208,12 @@ public class CCD2 extends AbstractCCD {
     }
 
     /* Helper method */
-    private ExtendedClade[] processChildrenCladifying(Node parent, BitSet cladeInBits) {
+    private ExtendedClade[] processChildrenCladifying(Node parent, BitSet cladeInBits, BitSet[] vertexBits) {
         ExtendedClade[] children = null;
         if (parent.isLeaf()) {
             cladeInBits.set(parent.getNr());
         } else {
-            children = cladifyVertices(parent.getChildren().get(0), parent.getChildren().get(1));
+            children = cladifyVertices(parent.getChildren().get(0), parent.getChildren().get(1), vertexBits);
             cladeInBits.or(children[0].getCladeInBits());
             cladeInBits.or(children[1].getCladeInBits());
         }
@@ -220,11 +222,12 @@ public class CCD2 extends AbstractCCD {
 
     /* Helper method */
     private ExtendedClade addNewClade(BitSet cladeInBits, Node vertex, ExtendedClade sibling, BitSet siblingInBits, Node siblingVertex) {
+        // the given bitsets are reused, so the new clade gets its own copy
         ExtendedClade clade;
         if (vertex.isLeaf()) {
-            clade = new ExtendedClade(cladeInBits, this);
+            clade = new ExtendedClade(BitSet.newBitSet(cladeInBits), this);
         } else {
-            clade = new ExtendedClade(cladeInBits, sibling, this);
+            clade = new ExtendedClade(BitSet.newBitSet(cladeInBits), sibling, this);
         }
 
         if (sibling == null) {
@@ -235,21 +238,37 @@ public class CCD2 extends AbstractCCD {
             }
         }
 
-        clades.add(clade);
         if (vertex.isLeaf()) {
-            cladeMapping.put(cladeInBits, clade);
+            cladeMapping.put(clade.getCladeInBits(), clade);
         } else {
-            Map<BitSet, ExtendedClade> map = extendedCladeMapping.get(cladeInBits);
-            if (map == null) {
-                map = new HashMap<>();
-                extendedCladeMapping.put(cladeInBits, map);
-            }
-            map.put(siblingInBits, clade);
+            extendedCladeIndex.add(clade);
         }
 
         return clade;
     }
 
+    /* Helper method; returns the reusable bitsets of this thread for the vertices of the given tree */
+    private BitSet[] getVertexBits(Tree tree) {
+        BitSet[] bits = vertexBits.get();
+        int numNodes = tree.getNodeCount();
+        if (bits.length < numNodes) {
+            int oldLength = bits.length;
+            bits = Arrays.copyOf(bits, numNodes);
+            for (int i = oldLength; i < numNodes; i++) {
+                bits[i] = BitSet.newBitSet(leafArraySize);
+            }
+            vertexBits.set(bits);
+        }
+        return bits;
+    }
+
+    /* Helper method */
+    private static BitSet getClearedBits(Node vertex, BitSet[] vertexBits) {
+        BitSet bits = vertexBits[vertex.getNr()];
+        bits.clear();
+        return bits;
+    }
+
     /* Helper method */
     private static void processCladePartitionCladifying(Node vertex, ExtendedClade clade, ExtendedClade[] children) {
         if (!vertex.isLeaf()) {
@@ -273,9 +292,8 @@ public class CCD2 extends AbstractCCD {
             // if it is a leaf, then do not consider sibling
             return (ExtendedClade) cladeMapping.get(cladeInBits);
         } else {
-            // otherwise have to use extended mapping with two get requests
-            Map<BitSet, ExtendedClade> map = extendedCladeMapping.get(cladeInBits);
-            return (map == null) ? null : map.get(siblingInBits);
+            // otherwise use extended index keyed by clade and sibling
+            return extendedCladeIndex.get(cladeInBits, siblingInBits);
         }
     }
 
@@ -292,7 +310,7 @@ public class CCD2 extends AbstractCCD {
         }
 
         Node root = tree.getRoot();
-        ExtendedClade[] children = reduceCladeCount(root.getLeft(), root.getRight());
+        ExtendedClade[] children = reduceCladeCount(root.getLeft(), root.getRight(), getVertexBits(tree));
 
         if (tidyUpCCDGraph) {
             this.tidyUpCCDGraph(false);
@@ -302,13 +320,13 @@ public class CCD2 extends AbstractCCD {
     }
 
     /* Recursive helper method */
-    private ExtendedClade[] reduceCladeCount(Node leftVertex, Node rightVertex) {
-        BitSet leftInBits = BitSet.newBitSet(leafArraySize);
-        BitSet rightInBits = BitSet.newBitSet(leafArraySize);
+    private ExtendedClade[] reduceCladeCount(Node leftVertex, Node rightVertex, BitSet[] vertexBits) {
+        BitSet leftInBits = getClearedBits(leftVertex, vertexBits);
+        BitSet rightInBits = getClearedBits(rightVertex, vertexBits);
 
         // 1. build BitSet to retrieve clade and call recursion
-        ExtendedClade[] leftChildren = processChildrenRemoving(leftVertex, leftInBits);
-        ExtendedClade[] rightChildren = processChildrenRemoving(rightVertex, rightInBits);
+        ExtendedClade[] leftChildren = processChildrenRemoving(leftVertex, leftInBits, vertexBits);
+        ExtendedClade[] rightChildren = processChildrenRemoving(rightVertex, rightInBits, vertexBits);
 
         // 2. retrieve clades and reduce count
         ExtendedClade leftClade = getExtendedClade(leftInBits, rightInBits);
@@ -324,12 +342,12 @@ public class CCD2 extends AbstractCCD {
     }
 
     /* Recursive helper method */
-    private ExtendedClade[] processChildrenRemoving(Node parent, BitSet cladeInBits) {
+    private ExtendedClade[] processChildrenRemoving(Node parent, BitSet cladeInBits, BitSet[] vertexBits) {
         ExtendedClade[] children = null;
         if (parent.isLeaf()) {
             cladeInBits.set(parent.getNr());
         } else {
-            children = reduceCladeCount(parent.getChildren().get(0), parent.getChildren().get(1));
+            children = reduceCladeCount(parent.getChildren().get(0), parent.getChildren().get(1), vertexBits);
             cladeInBits.or(children[0].getCladeInBits());
             cladeInBits.or(children[1].getCladeInBits());
         }
@@ -362,10 +380,8 @@ public class CCD2 extends AbstractCCD {
     @Override
     public int getNumberOfCladePartitions() {
         int count = rootClade.getNumberOfPartitions();
-        for (Map<BitSet, ExtendedClade> map : extendedCladeMapping.values()) {
-            for (ExtendedClade clade : map.values()) {
-                count += clade.getNumberOfPartitions();
-            }
+        for (ExtendedClade clade : extendedCladeIndex) {
+            count += clade.getNumberOfPartitions();
         }
         return count;
     }
@@ -374,18 +390,14 @@ public class CCD2 extends AbstractCCD {
     public double getCladeProbability(BitSet cladeInBits) {
         resetCacheIfProbabilitiesDirty();
 
-        if (cladeInBits.cardinality() == cladeInBits.length()) {
-            // root clade
+        int cardinality = cladeInBits.cardinality();
+        if ((cardinality == 1) || (cardinality == this.getNumberOfLeaves())) {
+            // leaf or root clade
             return 1;
         }
 
-        Map<BitSet, ExtendedClade> map = extendedCladeMapping.get(cladeInBits);
-        if (map == null) {
-            return 0;
-        }
-
         double probability = 0;
-        for (ExtendedClade clade : map.values()) {
+        for (ExtendedClade clade = extendedCladeIndex.getFirst(cladeInBits); clade != null; clade = clade.nextWithSameClade) {
             if (clade.getProbability() < 0) {
                 computeCladeProbabilities();
             }
@@ -410,10 +422,8 @@ public class CCD2 extends AbstractCCD {
 
     @Override
     protected void resetCache() {
-        for (Map<BitSet, ExtendedClade> map : extendedCladeMapping.values()) {
-            for (ExtendedClade clade : map.values()) {
-                clade.resetCachedValues();
-            }
+        for (ExtendedClade clade : extendedCladeIndex) {
+            clade.resetCachedValues();
         }
         super.resetCache();
     }
@@ -438,7 +448,8 @@ public class CCD2 extends AbstractCCD {
 
         double[] runningProbability = new double[]{1};
         Node root = tree.getRoot();
-        ExtendedClade[] children = computeProbabilityOfVertices(root.getChild(0), root.getChild(1), runningProbability);
+        ExtendedClade[] children = computeProbabilityOfVertices(root.getChild(0), root.getChild(1), runningProbability, false,
+                getVertexBits(tree));
         if (runningProbability[0] == 0) {
             return 0;
         } else {
@@ -451,16 +462,39 @@ public class CCD2 extends AbstractCCD {
         }
     }
 
+    @Override
+    public double getLogProbabilityOfTree(Tree tree) {
+        resetCacheIfProbabilitiesDirty();
+
+        double[] runningProbability = new double[]{0};
+        Node root = tree.getRoot();
+        ExtendedClade[] children = computeProbabilityOfVertices(root.getChild(0), root.getChild(1), runningProbability, true,
+                getVertexBits(tree));
+        if (children == null) {
+            return Double.NEGATIVE_INFINITY;
+        } else {
+            CladePartition partition = rootClade.getCladePartition(children[0], children[1]);
+            if (partition != null) {
+                return runningProbability[0] + partition.getLogCCP();
+            } else {
+                return Double.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
     /* Recursive helper method */
-    private ExtendedClade[] computeProbabilityOfVertices(Node leftVertex, Node rightVertex, double[] runningProbability) {
-        BitSet leftInBits = BitSet.newBitSet(leafArraySize);
-        BitSet rightInBits = BitSet.newBitSet(leafArraySize);
+    private ExtendedClade[] computeProbabilityOfVertices(Node leftVertex, Node rightVertex, double[] runningProbability,
+                                                         boolean computeLog, BitSet[] vertexBits) {
+        BitSet leftInBits = getClearedBits(leftVertex, vertexBits);
+        BitSet rightInBits = getClearedBits(rightVertex, vertexBits);
 
-        ExtendedClade[] leftChildren = computeProbabilityOfChildren(leftVertex, leftInBits, runningProbability);
+        ExtendedClade[] leftChildren = computeProbabilityOfChildren(leftVertex, leftInBits, runningProbability, computeLog,
+                vertexBits);
         if (!leftVertex.isLeaf() && (leftChildren == null)) {
             return null;
         }
-        ExtendedClade[] rightChildren = computeProbabilityOfChildren(rightVertex, rightInBits, runningProbability);
+        ExtendedClade[] rightChildren = computeProbabilityOfChildren(rightVertex, rightInBits, runningProbability, computeLog,
+                vertexBits);
         if (!rightVertex.isLeaf() && (rightChildren == null)) {
             return null;
         }
@@ -468,41 +502,30 @@ public class CCD2 extends AbstractCCD {
         ExtendedClade leftClade = getExtendedClade(leftInBits, rightInBits);
         ExtendedClade rightClade = getExtendedClade(rightInBits, leftInBits);
         if ((leftClade == null) || (rightClade == null)) {
-            runningProbability[0] = 0;
+            setComputedNoProbability(runningProbability, computeLog);
             return null;
         }
 
-        if (!leftVertex.isLeaf()) {
-            CladePartition partition = leftClade.getCladePartition(leftChildren[0], leftChildren[1]);
-            if (partition != null) {
-                runningProbability[0] *= partition.getCCP();
-            } else {
-                runningProbability[0] = 0;
-                return null;
-            }
+        if (!leftVertex.isLeaf() && !multiplyWithPartition(leftClade, leftChildren, runningProbability, computeLog)) {
+            return null;
         }
-        if (!rightVertex.isLeaf()) {
-            CladePartition partition = rightClade.getCladePartition(rightChildren[0], rightChildren[1]);
-            if (partition != null) {
-                runningProbability[0] *= partition.getCCP();
-            } else {
-                runningProbability[0] = 0;
-                return null;
-            }
+        if (!rightVertex.isLeaf() && !multiplyWithPartition(rightClade, rightChildren, runningProbability, computeLog)) {
+            return null;
         }
 
         return new ExtendedClade[]{leftClade, rightClade};
     }
 
     /* Helper method */
-    private ExtendedClade[] computeProbabilityOfChildren(Node vertex, BitSet cladeInBits, double[] runningProbability) {
+    private ExtendedClade[] computeProbabilityOfChildren(Node vertex, BitSet cladeInBits, double[] runningProbability,
+                                                         boolean computeLog, BitSet[] vertexBits) {
         ExtendedClade[] leftChildren = null;
         if (vertex.isLeaf()) {
             int index = vertex.getNr();
             cladeInBits.set(index);
         } else {
             leftChildren = computeProbabilityOfVertices(vertex.getChildren().get(0),
-                    vertex.getChildren().get(1), runningProbability);
+                    vertex.getChildren().get(1), runningProbability, computeLog, vertexBits);
 
             if (leftChildren == null) {
                 return null;
@@ -515,6 +538,68 @@ public class CCD2 extends AbstractCCD {
         return leftChildren;
     }
 
+    /* Helper method - returns false if the partition does not exist */
+    private static boolean multiplyWithPartition(ExtendedClade clade, ExtendedClade[] children,
+                                                 double[] runningProbability, boolean computeLog) {
+        CladePartition partition = clade.getCladePartition(children[0], children[1]);
+        if (partition == null) {
+            setComputedNoProbability(runningProbability, computeLog);
+            return false;
+        }
+
+        if (computeLog) {
+            runningProbability[0] += partition.getLogCCP();
+        } else {
+            runningProbability[0] *= partition.getCCP();
+        }
+        return true;
+    }
+
+
+    /**
+     * View of all clades of this CCD, namely the root and the leaves in the clade mapping
+     * and the extended clades in the index; removing a clade removes it from the respective structure.
+     */
+    private class CladeCollection extends AbstractCollection<Clade> {
+
+        @Override
+        public int size() {
+            return cladeMapping.size() + extendedCladeIndex.size();
+        }
+
+        @Override
+        public boolean contains(Object object) {
+            return extendedCladeIndex.contains(object)
+                    || ((object instanceof Clade clade) && (cladeMapping.get(clade.getCladeInBits()) == clade));
+        }
+
+        @Override
+        public boolean remove(Object object) {
+            if (extendedCladeIndex.remove(object)) {
+                return true;
+            }
+            return (object instanceof Clade clade) && cladeMapping.remove(clade.getCladeInBits(), clade);
+        }
+
+        @Override
+        public Iterator<Clade> iterator() {
+            return new Iterator<>() {
+                private final Iterator<Clade> mappedClades = cladeMapping.values().iterator();
+                private final Iterator<ExtendedClade> extendedClades = extendedCladeIndex.iterator();
+
+                @Override
+                public boolean hasNext() {
+                    return mappedClades.hasNext() || extendedClades.hasNext();
+                }
+
+                @Override
+                public Clade next() {
+                    return mappedClades.hasNext() ? mappedClades.next() : extendedClades.next();
+                }
+            };
+        }
+    }
+
 
     /* -- OTHER METHODS -- */
 
@@ -533,4 +618,9 @@ public class CCD2 extends AbstractCCD {
         return this.getNumberOfCladePartitions();
     }
 
+    @Override
+    protected boolean hasCountBasedLikelihood() {
+        return true;
+    }
+
 }
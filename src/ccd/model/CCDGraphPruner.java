@@ -0,0 +1,198 @@
+package ccd.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Removes clades from a CCD graph and then tidies it up, i.e. when a removal results in
+ * another clade without parent clades or without clade partitions, that one gets removed as well,
+ * and so on. Leaves and the root clade are never removed.
+ *
+ * <p>
+ * The removal status of clades and clade partitions is tracked with hash sets and the number of
+ * remaining parent clades and clade partitions with counters, so the cascade does not modify
+ * any adjacency lists; these are compacted once at the end for the surviving clades that lost
+ * a neighbour. The whole removal thus takes time linear in the size of the removed sub-graph
+ * and the adjacency of its neighbours, no matter how large the cascade is.
+ * </p>
+ *
+ * <p>
+ * Used by {@link AbstractCCD#tidyUpCCDGraph(boolean)} and to reduce CCDs for credible sets.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class CCDGraphPruner {
+
+    /** Takes a clade out of the CCD (e.g. its mapping); returns false if it should not be processed. */
+    private final Predicate<Clade> detach;
+
+    /** Whether to renormalize the CCPs of clades that lost some of their clade partitions. */
+    private boolean renormalize = false;
+
+    // state of the removal
+    private final Set<Clade> removedClades = new HashSet<>();
+    private final List<Clade> removedCladeList = new ArrayList<>();
+    private final Set<CladePartition> removedPartitions = new HashSet<>();
+    private final List<CladePartition> removedPartitionList = new ArrayList<>();
+    private final List<Clade> trivialClades = new ArrayList<>();
+    private final ArrayDeque<Clade> cladesToRemove = new ArrayDeque<>();
+    private final Map<Clade, Integer> remainingPartitions = new HashMap<>();
+    private final Map<Clade, Integer> remainingParents = new HashMap<>();
+    private final Map<Clade, Map<Clade, CladePartition>> partitionsByChild = new HashMap<>();
+    private final Map<Clade, Set<Clade>> lostParents = new HashMap<>();
+
+    /**
+     * Constructor for a pruner that takes each removed clade out of the CCD
+     * with the given function, e.g. out of the clade mapping.
+     *
+     * @param detach takes a clade out of the CCD; if it returns false,
+     *               the clade is considered as handled already and not processed further
+     */
+    public CCDGraphPruner(Predicate<Clade> detach) {
+        this.detach = detach;
+    }
+
+    /**
+     * Set whether to renormalize the CCPs of the remaining clade partitions
+     * of a clade where some were removed; default is false.
+     *
+     * @param renormalize whether to renormalize
+     */
+    public void setRenormalize(boolean renormalize) {
+        this.renormalize = renormalize;
+    }
+
+    /**
+     * Removes the given clades and all clades that have no parent clades
+     * or no clade partitions left as a consequence.
+     *
+     * @param clades initial clades to remove
+     */
+    public void prune(Collection<Clade> clades) {
+        cladesToRemove.addAll(clades);
+
+        while (!cladesToRemove.isEmpty()) {
+            Clade clade = cladesToRemove.pop();
+
+            // do not repeatedly process clades
+            if (removedClades.contains(clade)) {
+                continue;
+            }
+            // keep trivial clades
+            if (clade.isLeaf() || clade.isRoot()) {
+                trivialClades.add(clade);
+                continue;
+            }
+            if (!detach.test(clade)) {
+                continue;
+            }
+            removedClades.add(clade);
+            removedCladeList.add(clade);
+
+            // remove connection to parent clades; only one partition of a parent can contain the clade
+            for (Clade parent : clade.parentClades) {
+                if (!removedClades.contains(parent)) {
+                    CladePartition parentPartition = getPartitionsByChild(parent).get(clade);
+                    if (parentPartition != null) {
+                        removePartition(parentPartition);
+                    }
+                }
+            }
+
+            // remove connection to children
+            for (CladePartition partition : clade.partitions) {
+                removePartition(partition);
+            }
+        }
+
+        compact();
+    }
+
+    /* Helper method */
+    private void removePartition(CladePartition partition) {
+        if (!removedPartitions.add(partition)) {
+            return;
+        }
+        removedPartitionList.add(partition);
+
+        Clade parent = partition.getParentClade();
+        if (!removedClades.contains(parent)) {
+            int remaining = remainingPartitions.getOrDefault(parent, parent.partitions.size()) - 1;
+            remainingPartitions.put(parent, remaining);
+            if (remaining == 0) {
+                cladesToRemove.push(parent);
+            }
+        }
+
+        for (Clade child : partition.getChildClades()) {
+            if (!removedClades.contains(child)) {
+                lostParents.computeIfAbsent(child, c -> new HashSet<>()).add(parent);
+                int remaining = remainingParents.getOrDefault(child, child.parentClades.size()) - 1;
+                remainingParents.put(child, remaining);
+                if (remaining == 0) {
+                    cladesToRemove.push(child);
+                }
+            }
+        }
+    }
+
+    /* Helper method */
+    private Map<Clade, CladePartition> getPartitionsByChild(Clade parent) {
+        return partitionsByChild.computeIfAbsent(parent, p -> {
+            Map<Clade, CladePartition> map = new HashMap<>(4 * p.partitions.size());
+            for (CladePartition partition : p.partitions) {
+                map.put(partition.getChildClades()[0], partition);
+                map.put(partition.getChildClades()[1], partition);
+            }
+            return map;
+        });
+    }
+
+    /* Helper method; updates the adjacency lists of surviving clades in one go */
+    private void compact() {
+        for (Clade clade : remainingPartitions.keySet()) {
+            if (removedClades.contains(clade)) {
+                continue;
+            }
+            clade.partitions.removeIf(removedPartitions::contains);
+            clade.childClades.clear();
+            for (CladePartition partition : clade.partitions) {
+                clade.childClades.add(partition.getChildClades()[0]);
+                clade.childClades.add(partition.getChildClades()[1]);
+            }
+            if (renormalize && !clade.partitions.isEmpty()) {
+                clade.normalizeCCPs();
+            }
+        }
+
+        for (Map.Entry<Clade, Set<Clade>> entry : lostParents.entrySet()) {
+            if (!removedClades.contains(entry.getKey())) {
+                entry.getKey().parentClades.removeIf(entry.getValue()::contains);
+            }
+        }
+    }
+
+    /** @return the removed clades in order of removal */
+    public List<Clade> getRemovedClades() {
+        return removedCladeList;
+    }
+
+    /** @return the removed clade partitions in order of removal */
+    public List<CladePartition> getRemovedPartitions() {
+        return removedPartitionList;
+    }
+
+    /** @return the leaves and root clade that were requested to be removed, but were kept */
+    public List<Clade> getTrivialClades() {
+        return trivialClades;
+    }
+
+}
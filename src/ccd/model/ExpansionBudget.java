@@ -0,0 +1,164 @@
+package ccd.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resource budget for the expand step of a {@link CCD0}, which can be
+ * limited by wall-clock time, the number of added clade partitions,
+ * and a heap watermark (fraction of the maximum heap size in use).
+ * With a budget, the CCD0 expands its clades in order of decreasing occurrence
+ * and stops once the budget is exhausted; the result is then an approximation
+ * of the CCD0 as with a maximum expansion factor, but one with predictable costs.
+ *
+ * <p>
+ * A budget also records how much was expanded, see {@link #getReport()};
+ * it is reset whenever the CCD0 starts to expand.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class ExpansionBudget {
+
+    /** Which limit stopped the expansion (if any). */
+    public enum Limit {
+        None, Time, Partitions, Memory
+    }
+
+    /** Maximum wall-clock time in milliseconds; non-positive for no limit. */
+    private final long maxMillis;
+
+    /** Maximum number of added clade partitions; non-positive for no limit. */
+    private final long maxAddedPartitions;
+
+    /** Maximum fraction of the maximum heap size in use; non-positive for no limit. */
+    private final double maxHeapFraction;
+
+    // state of the current expansion
+    private long startTime;
+    private long endTime;
+    private int numCladesToExpand;
+    private final AtomicInteger numExpandedClades = new AtomicInteger();
+    private final AtomicLong numAddedPartitions = new AtomicLong();
+    private volatile Limit reachedLimit = Limit.None;
+
+    /**
+     * Constructor for a budget; a non-positive value means no limit.
+     *
+     * @param maxMillis          maximum wall-clock time of the expand step in milliseconds
+     * @param maxAddedPartitions maximum number of clade partitions added by the expand step
+     * @param maxHeapFraction    maximum fraction of the maximum heap size in use, e.g. 0.9
+     */
+    public ExpansionBudget(long maxMillis, long maxAddedPartitions, double maxHeapFraction) {
+        if (maxHeapFraction > 1) {
+            throw new IllegalArgumentException("Heap watermark has to be a fraction of at most 1.");
+        }
+        this.maxMillis = maxMillis;
+        this.maxAddedPartitions = maxAddedPartitions;
+        this.maxHeapFraction = maxHeapFraction;
+    }
+
+    /** @return whether this budget has any limit */
+    public boolean isLimited() {
+        return (maxMillis > 0) || (maxAddedPartitions > 0) || (maxHeapFraction > 0);
+    }
+
+    /* Resets the state for a new expand step of the given number of clades. */
+    void start(int numCladesToExpand) {
+        this.startTime = System.currentTimeMillis();
+        this.endTime = -1;
+        this.numCladesToExpand = numCladesToExpand;
+        this.numExpandedClades.set(0);
+        this.numAddedPartitions.set(0);
+        this.reachedLimit = Limit.None;
+    }
+
+    /**
+     * Checks whether this budget is exhausted; once exhausted it stays so
+     * (until the next expand step starts).
+     *
+     * @return whether this budget is exhausted
+     */
+    boolean isExhausted() {
+        if (reachedLimit != Limit.None) {
+            return true;
+        }
+
+        if ((maxMillis > 0) && (System.currentTimeMillis() - startTime > maxMillis)) {
+            reachedLimit = Limit.Time;
+        } else if ((maxAddedPartitions > 0) && (numAddedPartitions.get() >= maxAddedPartitions)) {
+            reachedLimit = Limit.Partitions;
+        } else if ((maxHeapFraction > 0) && (getUsedHeapFraction() > maxHeapFraction)) {
+            reachedLimit = Limit.Memory;
+        }
+
+        return reachedLimit != Limit.None;
+    }
+
+    /* Marks the end of the expand step. */
+    void finish() {
+        this.endTime = System.currentTimeMillis();
+    }
+
+    /* Helper method */
+    private static double getUsedHeapFraction() {
+        Runtime runtime = Runtime.getRuntime();
+        return (runtime.totalMemory() - runtime.freeMemory()) / (double) runtime.maxMemory();
+    }
+
+    /* Records that a clade was fully expanded. */
+    void countExpandedClade() {
+        numExpandedClades.incrementAndGet();
+    }
+
+    /* Records that a clade partition was added. */
+    void countAddedPartition() {
+        numAddedPartitions.incrementAndGet();
+    }
+
+    /** @return number of clades fully expanded in the last expand step */
+    public int getNumberOfExpandedClades() {
+        return numExpandedClades.get();
+    }
+
+    /** @return number of clades that would have been expanded in the last expand step without budget */
+    public int getNumberOfCladesToExpand() {
+        return numCladesToExpand;
+    }
+
+    /** @return number of clade partitions added in the last expand step */
+    public long getNumberOfAddedPartitions() {
+        return numAddedPartitions.get();
+    }
+
+    /** @return the limit that stopped the last expand step, or {@link Limit#None} if it completed */
+    public Limit getReachedLimit() {
+        return reachedLimit;
+    }
+
+    /** @return whether the last expand step completed without exhausting this budget */
+    public boolean isComplete() {
+        return reachedLimit == Limit.None;
+    }
+
+    /** @return a one-line report on how much the last expand step expanded */
+    public String getReport() {
+        long millis = ((endTime < 0) ? System.currentTimeMillis() : endTime) - startTime;
+        String report = "Expanded " + numExpandedClades.get() + " of " + numCladesToExpand + " clades, "
+                + "added " + numAddedPartitions.get() + " clade partitions in " + (millis / 1000.0) + " seconds";
+        switch (reachedLimit) {
+            case Time -> report += "; stopped by time limit of " + (maxMillis / 1000.0) + " seconds";
+            case Partitions -> report += "; stopped by limit of " + maxAddedPartitions + " added clade partitions";
+            case Memory -> report += "; stopped by heap watermark of " + maxHeapFraction;
+            default -> report += "; complete";
+        }
+        return report + ".";
+    }
+
+    @Override
+    public String toString() {
+        return "ExpansionBudget [maxMillis = " + maxMillis + ", maxAddedPartitions = " + maxAddedPartitions
+                + ", maxHeapFraction = " + maxHeapFraction + "]";
+    }
+
+}
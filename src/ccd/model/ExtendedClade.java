@@ -13,6 +13,9 @@ public class ExtendedClade extends Clade {
 
     ExtendedClade sibling;
 
+    /** Next extended clade on the same taxa (but with another sibling) in the {@link ExtendedCladeIndex} of the CCD. */
+    ExtendedClade nextWithSameClade;
+
     /**
      * Construct a new Clade on the taxa specified by the given BitSet and being
      * part of the given CCD.
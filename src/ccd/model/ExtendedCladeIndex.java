@@ -0,0 +1,263 @@
+package ccd.model;
+
+import ccd.model.bitsets.BitSet;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Index of the non-leaf {@link ExtendedClade}s of a {@link CCD2} by their clade and sibling clade,
+ * stored in a single open-addressing hash table with linear probing over an array.
+ * The key of an entry is the pair (clade, sibling) of the stored extended clade itself,
+ * with the hash values of both bitsets combined, so a lookup neither allocates
+ * nor goes through a map per clade. Additionally, the extended clades on the same clade
+ * are linked in a list whose head is found in a second table keyed by the clade only,
+ * which is used to iterate over all extended clades of a clade.
+ *
+ * <p>
+ * Removal uses backward-shift deletion, so no tombstones accumulate.
+ * Lookups are thread-safe as long as the index is not modified concurrently.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+class ExtendedCladeIndex extends AbstractCollection<ExtendedClade> {
+
+    /** Maximum fill ratio of the hash tables before they are doubled. */
+    private static final double MAX_LOAD = 0.5;
+
+    /** Hash table of the extended clades keyed by (clade, sibling). */
+    private ExtendedClade[] pairTable;
+
+    /** Hash table of the first extended clade of each clade keyed by clade. */
+    private ExtendedClade[] headTable;
+
+    /** Number of extended clades in this index. */
+    private int size = 0;
+
+    /**
+     * Constructor for an empty index.
+     *
+     * @param expectedSize expected number of extended clades
+     */
+    ExtendedCladeIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.pairTable = new ExtendedClade[capacity];
+        this.headTable = new ExtendedClade[capacity];
+    }
+
+    /**
+     * Returns the extended clade with the given clade and sibling.
+     *
+     * @param cladeInBits   clade in bits
+     * @param siblingInBits sibling in bits
+     * @return extended clade with given clade and sibling or null if not contained
+     */
+    ExtendedClade get(BitSet cladeInBits, BitSet siblingInBits) {
+        int mask = pairTable.length - 1;
+        int slot = pairHash(cladeInBits, siblingInBits) & mask;
+        ExtendedClade entry;
+        while ((entry = pairTable[slot]) != null) {
+            if (entry.getCladeInBits().equals(cladeInBits) && entry.sibling.getCladeInBits().equals(siblingInBits)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first of the extended clades with the given clade;
+     * the others follow via {@link ExtendedClade#nextWithSameClade}.
+     *
+     * @param cladeInBits clade in bits
+     * @return first extended clade with given clade or null if there is none
+     */
+    ExtendedClade getFirst(BitSet cladeInBits) {
+        int slot = findHeadSlot(cladeInBits);
+        return headTable[slot];
+    }
+
+    /**
+     * Adds the given extended clade, whose sibling has to be set already.
+     *
+     * @param clade to be added; must not be contained yet
+     */
+    @Override
+    public boolean add(ExtendedClade clade) {
+        if (2 * (size + 1) > pairTable.length) {
+            rehash(2 * pairTable.length);
+        }
+
+        insertIntoPairTable(clade);
+        size++;
+
+        int headSlot = findHeadSlot(clade.getCladeInBits());
+        clade.nextWithSameClade = headTable[headSlot];
+        headTable[headSlot] = clade;
+
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object object) {
+        if (!(object instanceof ExtendedClade clade) || (clade.sibling == null)) {
+            return false;
+        }
+        int slot = findPairSlot(clade);
+        if (slot < 0) {
+            return false;
+        }
+        deleteSlot(pairTable, slot, true);
+        size--;
+
+        // unlink from list of clades on the same taxa
+        int headSlot = findHeadSlot(clade.getCladeInBits());
+        if (headTable[headSlot] == clade) {
+            if (clade.nextWithSameClade != null) {
+                headTable[headSlot] = clade.nextWithSameClade;
+            } else {
+                deleteSlot(headTable, headSlot, false);
+            }
+        } else {
+            ExtendedClade previous = headTable[headSlot];
+            while (previous.nextWithSameClade != clade) {
+                previous = previous.nextWithSameClade;
+            }
+            previous.nextWithSameClade = clade.nextWithSameClade;
+        }
+        clade.nextWithSameClade = null;
+
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return (object instanceof ExtendedClade clade) && (clade.sibling != null) && (findPairSlot(clade) >= 0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<ExtendedClade> iterator() {
+        return new Iterator<>() {
+            private int slot = advance(0);
+
+            private int advance(int from) {
+                while ((from < pairTable.length) && (pairTable[from] == null)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < pairTable.length;
+            }
+
+            @Override
+            public ExtendedClade next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ExtendedClade clade = pairTable[slot];
+                slot = advance(slot + 1);
+                return clade;
+            }
+        };
+    }
+
+    /* Helper method */
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /* Helper method */
+    private static int pairHash(BitSet cladeInBits, BitSet siblingInBits) {
+        return spread(31 * cladeInBits.hashCode() + siblingInBits.hashCode());
+    }
+
+    /* Helper method */
+    private static int homeSlot(ExtendedClade clade, boolean pairKey, int mask) {
+        int hash = pairKey
+                ? pairHash(clade.getCladeInBits(), clade.sibling.getCladeInBits())
+                : spread(clade.getCladeInBits().hashCode());
+        return hash & mask;
+    }
+
+    /* Helper method; returns slot of given clade in pair table or -1 */
+    private int findPairSlot(ExtendedClade clade) {
+        int mask = pairTable.length - 1;
+        int slot = homeSlot(clade, true, mask);
+        while (pairTable[slot] != null) {
+            if (pairTable[slot] == clade) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /* Helper method; returns slot of given clade in head table or the empty slot where it belongs */
+    private int findHeadSlot(BitSet cladeInBits) {
+        int mask = headTable.length - 1;
+        int slot = spread(cladeInBits.hashCode()) & mask;
+        while ((headTable[slot] != null) && !headTable[slot].getCladeInBits().equals(cladeInBits)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Helper method */
+    private void insertIntoPairTable(ExtendedClade clade) {
+        int mask = pairTable.length - 1;
+        int slot = homeSlot(clade, true, mask);
+        while (pairTable[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        pairTable[slot] = clade;
+    }
+
+    /* Helper method; empties the given slot and shifts back later entries of its probe run */
+    private static void deleteSlot(ExtendedClade[] table, int slot, boolean pairKey) {
+        int mask = table.length - 1;
+        table[slot] = null;
+        int next = (slot + 1) & mask;
+        while (table[next] != null) {
+            int home = homeSlot(table[next], pairKey, mask);
+            // move entry if its home slot is not cyclically in (slot, next]
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                table[slot] = table[next];
+                table[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+    }
+
+    /* Helper method */
+    private void rehash(int capacity) {
+        ExtendedClade[] oldPairTable = pairTable;
+        ExtendedClade[] oldHeadTable = headTable;
+        pairTable = new ExtendedClade[capacity];
+        headTable = new ExtendedClade[capacity];
+
+        for (ExtendedClade clade : oldPairTable) {
+            if (clade != null) {
+                insertIntoPairTable(clade);
+            }
+        }
+        // the lists of clades on the same taxa stay intact, only their heads move
+        for (ExtendedClade head : oldHeadTable) {
+            if (head != null) {
+                headTable[findHeadSlot(head.getCladeInBits())] = head;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,476 @@
+package ccd.model;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
+import ccd.model.bitsets.BitSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a {@link CCD1} or {@link CCD0} from trees with bounded heap usage during construction,
+ * for tree sets with so many different clades that the clade mapping and clade objects
+ * built while processing the trees do not fit in memory.
+ *
+ * <p>
+ * For each vertex of a tree, a record (clade, clade partition, count, sum of heights) is
+ * aggregated in memory; when more than a given number of different records are held,
+ * they are sorted and written to a temporary file (a sorted run). In the end, the runs are merged
+ * into one sorted file, in which the records of a clade are consecutive. Then only the clades
+ * with at least a given support (clade credibility) are loaded, and in a second pass over the
+ * merged file their clade partitions between loaded clades. With a support threshold of 0,
+ * all clades are loaded, without the intermediate hash-based bookkeeping per tree.
+ * </p>
+ *
+ * <p>
+ * The resulting CCD consists of the usual {@link Clade} and {@link CladePartition} objects,
+ * so only the construction has bounded heap usage; with a support threshold of 0,
+ * the CCD itself needs as much memory as one built directly from the trees.
+ * Typical usage is
+ * <pre>
+ * try (ExternalMemoryCCDBuilder builder = new ExternalMemoryCCDBuilder(numLeaves, maxRecordsInMemory, null)) {
+ *     for (Tree tree : trees) {
+ *         builder.addTree(tree);
+ *     }
+ *     ccd = builder.build(CCDType.CCD1, minCladeSupport);
+ * }
+ * </pre>
+ * or {@link #build(TreeSet, CCDType, int, double)}, which the CCD1 point estimate uses
+ * if the setting {@code CCD1ExternalMemoryRecords} is given.
+ * </p>
+ *
+ * <p>
+ * A clade partition is stored by the child clade containing the smallest taxon.
+ * Leaves are stored with an empty child clade, so that their heights are kept as well.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class ExternalMemoryCCDBuilder implements Closeable {
+
+    /** Default maximum number of different records held in memory before they are written to disk. */
+    public static final int DEFAULT_MAX_RECORDS_IN_MEMORY = 1 << 20;
+
+    /** Number of leaves of the trees. */
+    private final int numLeaves;
+
+    /** Number of longs to store a clade. */
+    private final int numWords;
+
+    /** Maximum number of different records held in memory. */
+    private final int maxRecordsInMemory;
+
+    /** Directory for the temporary files. */
+    private final Path tempDirectory;
+
+    /** Records aggregated in memory, with count and sum of heights. */
+    private final Map<RecordKey, double[]> records = new HashMap<>();
+
+    /** The sorted runs written to disk so far. */
+    private final List<Path> runs = new ArrayList<>();
+
+    /** Merged file of all runs, once built. */
+    private Path mergedFile = null;
+
+    /** Number of trees added. */
+    private int numTrees = 0;
+
+    /** First tree added, used for the taxa of the CCD. */
+    private Tree firstTree = null;
+
+    /**
+     * Constructor for a builder for trees with the given number of leaves.
+     *
+     * @param numLeaves          number of leaves of the trees
+     * @param maxRecordsInMemory maximum number of different records held in memory
+     *                           before they are written to disk
+     * @param tempDirectory      directory for the temporary files; null for the default temporary directory
+     * @throws IOException if the temporary directory cannot be created
+     */
+    public ExternalMemoryCCDBuilder(int numLeaves, int maxRecordsInMemory, Path tempDirectory) throws IOException {
+        if (maxRecordsInMemory < 1) {
+            throw new IllegalArgumentException("Maximum number of records in memory has to be positive.");
+        }
+        this.numLeaves = numLeaves;
+        this.numWords = (numLeaves + 63) / 64;
+        this.maxRecordsInMemory = maxRecordsInMemory;
+        this.tempDirectory = (tempDirectory != null)
+                ? Files.createTempDirectory(tempDirectory, "ccd")
+                : Files.createTempDirectory("ccd");
+    }
+
+    /**
+     * Builds a CCD of the given type from all trees of the given tree set with bounded heap usage
+     * during construction; see {@link #build(CCDType, double)}.
+     *
+     * @param treeSet            an iterable set of trees, which contains no burnin trees
+     * @param ccdType            type of CCD, either CCD0 or CCD1
+     * @param maxRecordsInMemory maximum number of different records held in memory
+     * @param minCladeSupport    minimum clade credibility of loaded clades in [0,1]
+     * @return CCD of given type based on the given trees
+     * @throws IOException if reading the trees or writing/reading temporary files fails
+     */
+    public static AbstractCCD build(TreeSet treeSet, CCDType ccdType, int maxRecordsInMemory,
+                                    double minCladeSupport) throws IOException {
+        treeSet.reset();
+        Tree tree = treeSet.next();
+        try (ExternalMemoryCCDBuilder builder =
+                     new ExternalMemoryCCDBuilder(tree.getLeafNodeCount(), maxRecordsInMemory, null)) {
+            int numTreesToUse = treeSet.totalTrees - treeSet.burninCount;
+            while ((tree != null) && (builder.numTrees < numTreesToUse)) {
+                builder.addTree(tree);
+                tree = treeSet.hasNext() ? treeSet.next() : null;
+            }
+            return builder.build(ccdType, minCladeSupport);
+        }
+    }
+
+    /**
+     * Adds the records of the given tree; may write a sorted run to disk.
+     *
+     * @param tree to be added
+     * @throws IOException if writing a run fails
+     */
+    public void addTree(Tree tree) throws IOException {
+        if (mergedFile != null) {
+            throw new IllegalStateException("Trees cannot be added after the CCD was built.");
+        }
+        if (firstTree == null) {
+            firstTree = tree;
+        }
+        numTrees++;
+        addVertex(tree.getRoot());
+
+        if (records.size() > maxRecordsInMemory) {
+            writeRun();
+        }
+    }
+
+    /** @return number of sorted runs written to disk so far */
+    public int getNumberOfRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Builds the CCD of the given type from the added trees, where only the clades
+     * with at least the given clade credibility (and leaves and the root clade) are loaded.
+     * The clade partitions between loaded clades are loaded; clades left without clade partitions
+     * or parent clades are removed and, for a CCD1, the CCPs of clades that lost some partitions
+     * are renormalized.
+     *
+     * @param ccdType         type of CCD, either CCD0 or CCD1
+     * @param minCladeSupport minimum clade credibility of loaded clades in [0,1]; 0 to load all clades
+     * @return CCD of given type based on the added trees
+     * @throws IOException if writing/reading temporary files fails
+     */
+    public AbstractCCD build(CCDType ccdType, double minCladeSupport) throws IOException {
+        if (numTrees == 0) {
+            throw new IllegalStateException("No trees added.");
+        }
+        AbstractCCD ccd;
+        if (ccdType == CCDType.CCD0) {
+            ccd = new CCD0(numLeaves, false);
+        } else if (ccdType == CCDType.CCD1) {
+            ccd = new CCD1(numLeaves, false);
+        } else {
+            throw new IllegalArgumentException("External memory construction only supports CCD0 and CCD1.");
+        }
+
+        if (mergedFile == null) {
+            writeRun();
+            mergedFile = mergeRuns();
+        }
+
+        ccd.baseTrees.add(firstTree);
+        ccd.setNumBaseTrees(numTrees);
+        loadClades(ccd, minCladeSupport);
+        boolean complete = loadPartitions(ccd);
+
+        if (!complete) {
+            ccd.tidyUpCCDGraph(false);
+            if (ccdType == CCDType.CCD1) {
+                for (Clade clade : ccd.getClades()) {
+                    if (!clade.isLeaf() && (getNumberOfPartitionOccurrences(clade) != clade.getNumberOfOccurrences())) {
+                        clade.normalizeCCPs();
+                    }
+                }
+            }
+        }
+        ccd.setCacheAsDirty();
+
+        return ccd;
+    }
+
+    /** Deletes the temporary files. */
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        if (mergedFile != null) {
+            Files.deleteIfExists(mergedFile);
+        }
+        Files.deleteIfExists(tempDirectory);
+    }
+
+    /* Recursive helper method - adds the records of the subtree and returns its clade */
+    private long[] addVertex(Node vertex) {
+        long[] clade = new long[numWords];
+        long[] firstChild = null;
+        if (vertex.isLeaf()) {
+            int index = vertex.getNr();
+            clade[index >>> 6] |= 1L << index;
+        } else {
+            long[] childClade = addVertex(vertex.getChildren().get(0));
+            long[] otherChildClade = addVertex(vertex.getChildren().get(1));
+            for (int i = 0; i < numWords; i++) {
+                clade[i] = childClade[i] | otherChildClade[i];
+            }
+            firstChild = (compareSmallestTaxon(childClade, otherChildClade) < 0) ? childClade : otherChildClade;
+        }
+
+        long[] key = Arrays.copyOf(clade, 2 * numWords);
+        if (firstChild != null) {
+            System.arraycopy(firstChild, 0, key, numWords, numWords);
+        }
+        double[] values = records.computeIfAbsent(new RecordKey(key), k -> new double[2]);
+        values[0]++;
+        values[1] += vertex.getHeight();
+
+        return clade;
+    }
+
+    /* Helper method - negative if the first clade contains the smallest taxon of both (disjoint) clades */
+    private static int compareSmallestTaxon(long[] first, long[] second) {
+        for (int i = 0; i < first.length; i++) {
+            if ((first[i] != 0) || (second[i] != 0)) {
+                return Long.compareUnsigned(Long.lowestOneBit(first[i]) - 1, Long.lowestOneBit(second[i]) - 1);
+            }
+        }
+        return 0;
+    }
+
+    /* Helper method - writes the records in memory as sorted run to disk */
+    private void writeRun() throws IOException {
+        List<Map.Entry<RecordKey, double[]>> entries = new ArrayList<>(records.entrySet());
+        entries.sort((a, b) -> Arrays.compare(a.getKey().words, b.getKey().words));
+
+        Path run = Files.createTempFile(tempDirectory, "run", ".bin");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (Map.Entry<RecordKey, double[]> entry : entries) {
+                writeRecord(out, entry.getKey().words, (long) entry.getValue()[0], entry.getValue()[1]);
+            }
+        }
+        records.clear();
+    }
+
+    /* Helper method - merges all runs into one sorted file with aggregated records */
+    private Path mergeRuns() throws IOException {
+        Path merged = Files.createTempFile(tempDirectory, "merged", ".bin");
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> Arrays.compare(a.key, b.key));
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(merged)))) {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run, 2 * numWords);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                long[] key = reader.key.clone();
+                long count = 0;
+                double heightSum = 0;
+                // aggregate the records with the same key over all runs
+                while (true) {
+                    count += reader.count;
+                    heightSum += reader.heightSum;
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                    if (queue.isEmpty() || !Arrays.equals(queue.peek().key, key)) {
+                        break;
+                    }
+                    reader = queue.poll();
+                }
+                writeRecord(out, key, count, heightSum);
+            }
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+
+        // the runs are not needed anymore
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        return merged;
+    }
+
+    /* Helper method - first pass over the merged records, loads the clades with enough support */
+    private void loadClades(AbstractCCD ccd, double minCladeSupport) throws IOException {
+        double minCount = minCladeSupport * numTrees;
+        try (RunReader reader = new RunReader(mergedFile, 2 * numWords)) {
+            boolean hasNext = reader.advance();
+            while (hasNext) {
+                long[] clade = Arrays.copyOf(reader.key, numWords);
+                long count = 0;
+                double heightSum = 0;
+                do {
+                    count += reader.count;
+                    heightSum += reader.heightSum;
+                    hasNext = reader.advance();
+                } while (hasNext && Arrays.equals(reader.key, 0, numWords, clade, 0, numWords));
+
+                BitSet cladeInBits = toBitSet(clade, 0);
+                int size = cladeInBits.cardinality();
+                if ((size == 1) || (size == numLeaves) || (count >= minCount)) {
+                    Clade loadedClade = ccd.cladeMapping.get(cladeInBits);
+                    if (loadedClade == null) {
+                        loadedClade = ccd.addNewClade(cladeInBits);
+                    }
+                    loadedClade.increaseOccurrenceCountBy((int) count, heightSum / count);
+                }
+            }
+        }
+    }
+
+    /* Helper method - second pass over the merged records, loads the partitions between loaded clades;
+     * returns whether all partitions of all loaded clades were loaded */
+    private boolean loadPartitions(AbstractCCD ccd) throws IOException {
+        boolean complete = true;
+        try (RunReader reader = new RunReader(mergedFile, 2 * numWords)) {
+            while (reader.advance()) {
+                BitSet firstChildInBits = toBitSet(reader.key, numWords);
+                if (firstChildInBits.isEmpty()) {
+                    // leaf
+                    continue;
+                }
+                Clade clade = ccd.cladeMapping.get(toBitSet(reader.key, 0));
+                if (clade == null) {
+                    continue;
+                }
+
+                BitSet secondChildInBits = BitSet.newBitSet(clade.getCladeInBits());
+                secondChildInBits.xor(firstChildInBits);
+                Clade firstChild = ccd.cladeMapping.get(firstChildInBits);
+                Clade secondChild = ccd.cladeMapping.get(secondChildInBits);
+                if ((firstChild == null) || (secondChild == null)) {
+                    complete = false;
+                    continue;
+                }
+
+                CladePartition partition = clade.createCladePartition(firstChild, secondChild);
+                partition.increaseOccurrenceCountBy((int) reader.count, reader.heightSum / reader.count);
+            }
+        }
+        return complete;
+    }
+
+    /* Helper method */
+    private static int getNumberOfPartitionOccurrences(Clade clade) {
+        int sum = 0;
+        for (CladePartition partition : clade.getPartitions()) {
+            sum += partition.getNumberOfOccurrences();
+        }
+        return sum;
+    }
+
+    /* Helper method */
+    private BitSet toBitSet(long[] words, int offset) {
+        BitSet bits = BitSet.newBitSet(numLeaves);
+        for (int i = 0; i < numWords; i++) {
+            long word = words[offset + i];
+            while (word != 0) {
+                bits.set(64 * i + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return bits;
+    }
+
+    /* Helper method */
+    private static void writeRecord(DataOutputStream out, long[] key, long count, double heightSum) throws IOException {
+        for (long word : key) {
+            out.writeLong(word);
+        }
+        out.writeLong(count);
+        out.writeDouble(heightSum);
+    }
+
+    /* Key of a record, the words of the clade followed by the words of the first child clade */
+    private static class RecordKey {
+        final long[] words;
+        final int hash;
+
+        RecordKey(long[] words) {
+            this.words = words;
+            this.hash = Arrays.hashCode(words);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof RecordKey other) && Arrays.equals(words, other.words);
+        }
+    }
+
+    /* Sequential reader of a file of records */
+    private static class RunReader implements Closeable {
+        private final DataInputStream in;
+        final long[] key;
+        long count;
+        double heightSum;
+
+        RunReader(Path file, int keyLength) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            this.key = new long[keyLength];
+        }
+
+        /* Reads the next record; returns false at the end of the file */
+        boolean advance() throws IOException {
+            try {
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = in.readLong();
+                }
+                count = in.readLong();
+                heightSum = in.readDouble();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+}
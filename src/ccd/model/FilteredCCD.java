@@ -56,6 +56,7 @@ public class FilteredCCD extends AbstractCCD {
         this.rootCCD = prevCCD;
         this.removedTaxaMask = taxaToRemove;
         this.baseTrees = baseCCD.getBaseTrees();
+        this.taxonTable = baseCCD.getTaxonTable();
         this.numBaseTrees = baseCCD.getNumberOfBaseTrees();
 
         // construction
@@ -6,6 +6,7 @@ import ccd.model.bitsets.BitSet;
 
 import java.math.BigInteger;
 import java.util.Collection;
+import java.util.Random;
 
 public interface ITreeDistribution {
 
@@ -32,6 +33,16 @@ public interface ITreeDistribution {
      */
     public double sampleTreeProbability();
 
+    /**
+     * Return the log probability of a tree randomly sampled from this distribution
+     * with the given random, without building the tree. Safe to be called concurrently
+     * with different randoms once this distribution has been used (tidied up) before.
+     *
+     * @param random used for sampling
+     * @return log probability of randomly sampled tree
+     */
+    public double sampleTreeLogProbability(Random random);
+
     /**
      * Returns the tree (without heights set) with maximum probability in this
      * distribution.
@@ -60,6 +71,14 @@ public interface ITreeDistribution {
      */
     public double getProbabilityOfTree(Tree tree);
 
+    /**
+     * Return the log probability of the given tree in this distribution.
+     *
+     * @param tree whose log probability is requested
+     * @return the log probability of the given tree
+     */
+    public double getLogProbabilityOfTree(Tree tree);
+
     /**
      * Returns whether this distribution contains the given tree.
      *
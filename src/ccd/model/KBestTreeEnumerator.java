@@ -0,0 +1,248 @@
+package ccd.model;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Enumerates the trees of a CCD in order of decreasing probability,
+ * lazily, based on the k-best derivations algorithm by
+ * <a href="https://doi.org/10.3115/1654494.1654500">Huang and Chiang, 2005</a> (Algorithm 3)
+ * on the CCD graph.
+ *
+ * <p>
+ * The r-th best subtree of a clade is given by a clade partition {C1, C2} and the
+ * ranks i and j of the subtrees of C1 and C2, with log probability
+ * log CCP(C1, C2) + log p_i(C1) + log p_j(C2).
+ * Each clade keeps the subtrees found so far (in decreasing order) and a priority queue of
+ * candidates; when a subtree (i, j) of a partition is taken, its successors (i, j + 1) and,
+ * if j = 0, (i + 1, 0) become candidates, which enumerates each pair of ranks exactly once.
+ * Subtrees of child clades are only computed when a parent requests them, so at most k
+ * subtrees are stored for each clade touched when k trees are enumerated.
+ * </p>
+ *
+ * <p>
+ * The enumerated trees are only valid as long as the CCD is not modified.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class KBestTreeEnumerator implements Iterator<Tree> {
+
+    /** The CCD whose trees are enumerated. */
+    private final AbstractCCD ccd;
+
+    /** Used to set the heights of the enumerated trees. */
+    private final HeightSettingStrategy heightStrategy;
+
+    /** Maximum number of trees to enumerate. */
+    private final int maxNumTrees;
+
+    /** The states of the clades touched so far. */
+    private final Map<Clade, CladeState> states = new HashMap<>();
+
+    /** Number of trees enumerated so far. */
+    private int numEnumeratedTrees = 0;
+
+    /** Helper for assigning indices to inner vertices. */
+    private int runningInnerIndex;
+
+    /**
+     * Constructor for an enumerator of the (at most) k most probable trees of the given CCD.
+     *
+     * @param ccd            whose trees are enumerated; must not be modified while enumerating
+     * @param k              maximum number of trees to enumerate; bounds the memory used
+     * @param heightStrategy used to set the heights of the enumerated trees
+     */
+    public KBestTreeEnumerator(AbstractCCD ccd, int k, HeightSettingStrategy heightStrategy) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Number of trees to enumerate has to be positive.");
+        }
+        this.ccd = ccd;
+        this.maxNumTrees = k;
+        this.heightStrategy = heightStrategy;
+
+        ccd.tidyUpCacheIfDirty();
+        ccd.computeCladeProbabilitiesIfDirty();
+        if (heightStrategy == HeightSettingStrategy.CommonAncestorHeights) {
+            ccd.setupCommonAncestorHeightsIfDirty();
+        }
+    }
+
+    /** @return whether there is another tree to enumerate */
+    @Override
+    public boolean hasNext() {
+        return (numEnumeratedTrees < maxNumTrees) && (getSubtree(ccd.getRootClade(), numEnumeratedTrees) != null);
+    }
+
+    /**
+     * Returns the next most probable tree, where the root has its probability and log probability
+     * stored as metadata with keys {@link AbstractCCD#PROB_SUBTREE_KEY} and {@link AbstractCCD#LOG_PROB_SUBTREE_KEY}.
+     *
+     * @return the next most probable tree
+     */
+    @Override
+    public Tree next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        runningInnerIndex = ccd.getSizeOfLeavesArray();
+        Node root = getVertex(ccd.getRootClade(), numEnumeratedTrees++);
+
+        if (ccd instanceof FilteredCCD) {
+            return new FilteredTree(root);
+        } else {
+            return new Tree(root);
+        }
+    }
+
+    /**
+     * Skips the next most probable tree (without constructing it) and returns its log probability.
+     *
+     * @return log probability of the next most probable tree
+     */
+    public double nextLogProbability() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return getSubtree(ccd.getRootClade(), numEnumeratedTrees++).logProbability;
+    }
+
+    /** @return number of trees enumerated so far */
+    public int getNumberOfEnumeratedTrees() {
+        return numEnumeratedTrees;
+    }
+
+    /** @return number of clades touched so far, which bounds the memory used together with k */
+    public int getNumberOfTouchedClades() {
+        return states.size();
+    }
+
+    /* Helper method - returns the subtree of the given rank of the given clade or null if there is none */
+    private Subtree getSubtree(Clade clade, int rank) {
+        if (clade.isLeaf()) {
+            return (rank == 0) ? Subtree.LEAF : null;
+        }
+
+        CladeState state = states.get(clade);
+        if (state == null) {
+            state = new CladeState();
+            List<CladePartition> partitions = clade.getPartitions();
+            for (int p = 0; p < partitions.size(); p++) {
+                pushCandidate(state, partitions.get(p), p, 0, 0);
+            }
+            states.put(clade, state);
+        }
+
+        // lazily find the subtrees up to the requested rank
+        while ((state.subtrees.size() <= rank) && (state.subtrees.size() < maxNumTrees)
+                && !state.candidates.isEmpty()) {
+            Subtree subtree = state.candidates.poll();
+            state.subtrees.add(subtree);
+
+            CladePartition partition = clade.getPartitions().get(subtree.partitionIndex);
+            if (subtree.secondRank == 0) {
+                pushCandidate(state, partition, subtree.partitionIndex, subtree.firstRank + 1, 0);
+            }
+            pushCandidate(state, partition, subtree.partitionIndex, subtree.firstRank, subtree.secondRank + 1);
+        }
+
+        return (rank < state.subtrees.size()) ? state.subtrees.get(rank) : null;
+    }
+
+    /* Helper method */
+    private void pushCandidate(CladeState state, CladePartition partition, int partitionIndex,
+                               int firstRank, int secondRank) {
+        double logCCP = partition.getLogCCP();
+        if (logCCP == Double.NEGATIVE_INFINITY) {
+            return;
+        }
+        Subtree first = getSubtree(partition.getChildClades()[0], firstRank);
+        if (first == null) {
+            return;
+        }
+        Subtree second = getSubtree(partition.getChildClades()[1], secondRank);
+        if (second == null) {
+            return;
+        }
+        state.candidates.add(new Subtree(partitionIndex, firstRank, secondRank,
+                logCCP + first.logProbability + second.logProbability));
+    }
+
+    /* Recursive helper method - constructs the subtree of the given rank of the given clade */
+    private Node getVertex(Clade clade, int rank) {
+        Subtree subtree = getSubtree(clade, rank);
+
+        Node vertex;
+        if (clade.isLeaf()) {
+            int leafNr = clade.getCladeInBits().nextSetBit(0);
+            vertex = new Node(ccd.getTaxonTable().getName(leafNr));
+            vertex.setNr(leafNr);
+            if (heightStrategy != HeightSettingStrategy.None) {
+                vertex.setHeight(clade.getMeanOccurredHeight());
+            }
+        } else {
+            CladePartition partition = clade.getPartitions().get(subtree.partitionIndex);
+            Node firstChild = getVertex(partition.getChildClades()[0], subtree.firstRank);
+            Node secondChild = getVertex(partition.getChildClades()[1], subtree.secondRank);
+
+            vertex = new Node();
+            vertex.setNr(runningInnerIndex++);
+            vertex.addChild(firstChild);
+            vertex.addChild(secondChild);
+            double cladeProbability = clade.getProbability();
+            vertex.setMetaData(AbstractCCD.CLADE_SUPPORT_KEY, cladeProbability);
+            vertex.metaDataString = AbstractCCD.CLADE_SUPPORT_KEY + "=" + cladeProbability;
+
+            if (heightStrategy == HeightSettingStrategy.MeanOccurredHeights) {
+                vertex.setHeight(clade.getMeanOccurredHeight());
+            } else if (heightStrategy == HeightSettingStrategy.One) {
+                vertex.setHeight(Math.max(firstChild.getHeight(), secondChild.getHeight()) + 1);
+            } else if (heightStrategy == HeightSettingStrategy.CommonAncestorHeights) {
+                vertex.setHeight(clade.getCommonAncestorHeight());
+            }
+        }
+
+        vertex.setMetaData(AbstractCCD.PROB_SUBTREE_KEY, Math.exp(subtree.logProbability));
+        vertex.setMetaData(AbstractCCD.LOG_PROB_SUBTREE_KEY, subtree.logProbability);
+        return vertex;
+    }
+
+    /* Subtree of a clade given by a clade partition and the ranks of the subtrees of its child clades */
+    private static class Subtree implements Comparable<Subtree> {
+        static final Subtree LEAF = new Subtree(-1, -1, -1, 0);
+
+        final int partitionIndex;
+        final int firstRank;
+        final int secondRank;
+        final double logProbability;
+
+        Subtree(int partitionIndex, int firstRank, int secondRank, double logProbability) {
+            this.partitionIndex = partitionIndex;
+            this.firstRank = firstRank;
+            this.secondRank = secondRank;
+            this.logProbability = logProbability;
+        }
+
+        /* More probable subtrees come first */
+        @Override
+        public int compareTo(Subtree other) {
+            return Double.compare(other.logProbability, this.logProbability);
+        }
+    }
+
+    /* Subtrees of a clade found so far and candidates for the next ones */
+    private static class CladeState {
+        final List<Subtree> subtrees = new ArrayList<>();
+        final PriorityQueue<Subtree> candidates = new PriorityQueue<>();
+    }
+
+}
@@ -0,0 +1,291 @@
+package ccd.model;
+
+import ccd.model.bitsets.BitSet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A block of a CCD graph rooted at a monophyletic clade, i.e. a clade that
+ * appears in all base trees. Since every observed clade is compatible with a
+ * monophyletic clade, the CCD graph decomposes at these clades into independent
+ * sub-problems: the clades of a block only partition into clades of the same block
+ * or into the roots of its sub-blocks (with leaves as trivial sub-blocks).
+ * Blocks can thus be expanded, normalized, and solved for the MAP tree on their own,
+ * and the CCD graph is the union of its blocks.
+ *
+ * <p>
+ * This is used by {@link CCD0} to run these steps on many small blocks in parallel
+ * instead of on the whole graph, which for a well-supported backbone
+ * with a few uncertain parts is a lot cheaper.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class MonophyleticBlock {
+
+    /** The monophyletic clade this block is rooted at. */
+    private final Clade root;
+
+    /** The clades of this block (including its root). */
+    private final List<Clade> members = new ArrayList<>();
+
+    /** The roots of the sub-blocks and the leaves directly below this block. */
+    private final List<Clade> boundary = new ArrayList<>();
+
+    /** The blocks directly below this block. */
+    private final List<MonophyleticBlock> subBlocks = new ArrayList<>();
+
+    /** Number of blocks on the longest path from this block down to a block without sub-blocks. */
+    private int height = 0;
+
+    private MonophyleticBlock(Clade root) {
+        this.root = root;
+        this.members.add(root);
+    }
+
+    /**
+     * Decomposes the CCD graph of the given CCD into blocks rooted at monophyletic clades.
+     * The blocks are returned grouped by height, i.e., the blocks at index i only have
+     * sub-blocks at indices less than i; the last group contains the block of the root clade.
+     *
+     * @param ccd whose CCD graph is decomposed
+     * @return the blocks grouped by height
+     */
+    public static List<List<MonophyleticBlock>> decompose(AbstractCCD ccd) {
+        int numTrees = ccd.getRootClade().getNumberOfOccurrences();
+
+        // 1. blocks for monophyletic clades, sorted by size
+        List<Clade> monophyleticClades = new ArrayList<>();
+        for (Clade clade : ccd.getClades()) {
+            if (!clade.isLeaf() && (clade.getNumberOfOccurrences() == numTrees)) {
+                monophyleticClades.add(clade);
+            }
+        }
+        monophyleticClades.sort(Comparator.comparingInt(Clade::size));
+        Map<Clade, MonophyleticBlock> blockOfRoot = new HashMap<>(2 * monophyleticClades.size());
+        List<MonophyleticBlock> blocks = new ArrayList<>(monophyleticClades.size());
+        for (Clade clade : monophyleticClades) {
+            MonophyleticBlock block = new MonophyleticBlock(clade);
+            blockOfRoot.put(clade, block);
+            blocks.add(block);
+        }
+
+        // 2. for each taxon, the chain of monophyletic clades containing it (by increasing size)
+        int numLeaves = ccd.getSizeOfLeavesArray();
+        List<List<MonophyleticBlock>> chains = new ArrayList<>(numLeaves);
+        for (int i = 0; i < numLeaves; i++) {
+            chains.add(new ArrayList<>());
+        }
+        for (MonophyleticBlock block : blocks) {
+            BitSet bits = block.root.getCladeInBits();
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                chains.get(i).add(block);
+            }
+        }
+
+        // 3. assign each clade to the smallest block strictly containing it;
+        // since the clade is compatible with all monophyletic clades,
+        // this is the first block in the chain of any of its taxa that is larger than the clade
+        for (Clade clade : ccd.getClades()) {
+            if (clade == ccd.getRootClade()) {
+                continue;
+            }
+
+            MonophyleticBlock parentBlock = null;
+            for (MonophyleticBlock block : chains.get(clade.getCladeInBits().nextSetBit(0))) {
+                if (block.root.size() > clade.size()) {
+                    parentBlock = block;
+                    break;
+                }
+            }
+            if (parentBlock == null) {
+                throw new AssertionError("Clade not contained in root clade.");
+            }
+
+            MonophyleticBlock ownBlock = blockOfRoot.get(clade);
+            if (clade.isLeaf() || (ownBlock != null)) {
+                parentBlock.boundary.add(clade);
+                if (ownBlock != null) {
+                    parentBlock.subBlocks.add(ownBlock);
+                }
+            } else {
+                parentBlock.members.add(clade);
+            }
+        }
+
+        // 4. group by height; blocks are sorted by size, so sub-blocks come first
+        List<List<MonophyleticBlock>> levels = new ArrayList<>();
+        for (MonophyleticBlock block : blocks) {
+            for (MonophyleticBlock subBlock : block.subBlocks) {
+                block.height = Math.max(block.height, subBlock.height + 1);
+            }
+            while (levels.size() <= block.height) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(block.height).add(block);
+        }
+
+        return levels;
+    }
+
+    /**
+     * Adds all clade partitions to the clades of this block that can be formed
+     * by clades of this block and the roots of its sub-blocks, but were not observed.
+     * Only clades of this block (and the parent clade lists of its boundary) are modified,
+     * so different blocks can be expanded concurrently.
+     *
+     * <p>
+     * As in the expand step of {@link CCD0}, the candidate child clades are grouped into
+     * buckets by size and sorted by their first set bit, so for a parent clade only the
+     * candidates of one child size within the range of its first and last set bit are checked.
+     * </p>
+     *
+     * @param cladeMapping of the CCD this block belongs to
+     * @return number of added clade partitions
+     */
+    int expand(Map<BitSet, Clade> cladeMapping) {
+        // buckets of candidate child clades by size, sorted by first set bit
+        List<List<Clade>> buckets = new ArrayList<>(root.size());
+        for (int i = 0; i < root.size(); i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (Clade clade : members) {
+            buckets.get(clade.size() - 1).add(clade);
+        }
+        for (Clade clade : boundary) {
+            buckets.get(clade.size() - 1).add(clade);
+        }
+        int[][] firstBits = new int[buckets.size()][];
+        for (int i = 0; i < buckets.size(); i++) {
+            List<Clade> bucket = buckets.get(i);
+            bucket.sort(Comparator.comparingInt(clade -> clade.getCladeInBits().nextSetBit(0)));
+            firstBits[i] = new int[bucket.size()];
+            for (int c = 0; c < bucket.size(); c++) {
+                firstBits[i][c] = bucket.get(c).getCladeInBits().nextSetBit(0);
+            }
+        }
+
+        int numAdded = 0;
+        BitSet helperBits = BitSet.newBitSet(root.getCCD().getSizeOfLeavesArray());
+        for (Clade parent : members) {
+            // cherries have only one partition, which was observed
+            if (parent.isCherry()) {
+                continue;
+            }
+
+            BitSet parentBits = parent.getCladeInBits();
+            int parentSize = parent.size();
+            int min = parentBits.nextSetBit(0);
+            int max = parentBits.lastSetBit();
+            Set<Clade> existingChildren = new HashSet<>(parent.childClades);
+
+            for (int j = 1; j <= parentSize / 2; j++) {
+                // every clade partition has a child of size j and one of size parentSize - j,
+                // so we only check the bucket with fewer candidates in the range
+                int smallIndex = j - 1;
+                int largeIndex = parentSize - j - 1;
+                int smallStart = lowerBound(firstBits[smallIndex], min);
+                int largeStart = lowerBound(firstBits[largeIndex], min);
+                int bucketIndex = (lowerBound(firstBits[smallIndex], max + 1) - smallStart
+                        <= lowerBound(firstBits[largeIndex], max + 1) - largeStart) ? smallIndex : largeIndex;
+                List<Clade> bucket = buckets.get(bucketIndex);
+
+                for (int c = (bucketIndex == smallIndex) ? smallStart : largeStart; c < bucket.size(); c++) {
+                    if (firstBits[bucketIndex][c] > max) {
+                        break;
+                    }
+                    Clade child = bucket.get(c);
+                    if (existingChildren.contains(child)) {
+                        continue;
+                    }
+
+                    BitSet childBits = child.getCladeInBits();
+                    helperBits.clear();
+                    helperBits.or(parentBits);
+                    helperBits.and(childBits);
+                    if (helperBits.equals(childBits)) {
+                        helperBits.xor(parentBits);
+                        Clade otherChild = cladeMapping.get(helperBits);
+                        if (otherChild != null) {
+                            parent.createCladePartition(child, otherChild);
+                            existingChildren.add(child);
+                            existingChildren.add(otherChild);
+                            numAdded++;
+                        }
+                    }
+                }
+            }
+        }
+
+        return numAdded;
+    }
+
+    /* Helper method - index of the first value in the given sorted array that is at least the given key */
+    private static int lowerBound(int[] values, int key) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the number of clades of the largest of the given blocks.
+     *
+     * @param levels blocks grouped by height as returned by {@link #decompose(AbstractCCD)}
+     * @return number of clades of the largest block
+     */
+    public static int getMaxBlockSize(List<List<MonophyleticBlock>> levels) {
+        int maxSize = 0;
+        for (List<MonophyleticBlock> level : levels) {
+            for (MonophyleticBlock block : level) {
+                maxSize = Math.max(maxSize, block.members.size());
+            }
+        }
+        return maxSize;
+    }
+
+    /** @return the monophyletic clade this block is rooted at */
+    public Clade getRoot() {
+        return root;
+    }
+
+    /** @return the clades of this block (including its root) */
+    public List<Clade> getMembers() {
+        return members;
+    }
+
+    /** @return the roots of the sub-blocks and the leaves directly below this block */
+    public List<Clade> getBoundary() {
+        return boundary;
+    }
+
+    /** @return the blocks directly below this block */
+    public List<MonophyleticBlock> getSubBlocks() {
+        return subBlocks;
+    }
+
+    /** @return number of blocks on the longest path from this block down to a block without sub-blocks */
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "MonophyleticBlock [root = " + root.getCladeInBits() + ", members = " + members.size()
+                + ", boundary = " + boundary.size() + ", sub-blocks = " + subBlocks.size() + "]";
+    }
+
+}
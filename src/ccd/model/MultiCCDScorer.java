@@ -0,0 +1,220 @@
+package ccd.model;
+
+import beast.base.evolution.tree.Tree;
+import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class scores several CCDs on the same set of trees, e.g. to select
+ * a CCD model via the Akaike information criterion (AIC), reading the trees at most once.
+ *
+ * <p>
+ * For a CCD whose clade partition occurrence counts are exactly those of
+ * the scored trees (see {@link AbstractCCD#hasCountBasedLikelihood()}),
+ * the log likelihood is computed in closed form from the counts without reading any tree.
+ * All other CCDs are evaluated together in a single pass over the trees,
+ * where batches of parsed trees are scored in parallel.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class MultiCCDScorer {
+
+    /** Number of trees scored by a worker at once. */
+    public static final int BATCH_SIZE = 256;
+
+    /** The CCDs to score. */
+    private final AbstractCCD[] ccds;
+
+    /** Number of threads used to score trees. */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /** Whether to use the closed-form log likelihood where possible. */
+    private boolean useClosedForm = true;
+
+    /**
+     * Constructor for a scorer of the given CCDs, which are all scored on the same trees.
+     *
+     * @param ccds the CCDs to score
+     */
+    public MultiCCDScorer(AbstractCCD... ccds) {
+        if (ccds.length == 0) {
+            throw new IllegalArgumentException("At least one CCD required for scoring.");
+        }
+        this.ccds = ccds;
+    }
+
+    /**
+     * Set the number of threads used to score trees; by default, the number of available processors.
+     *
+     * @param threadCount number of threads, at least 1
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Set whether to compute the log likelihood of a CCD in closed form (if possible)
+     * instead of evaluating the probability of each tree; default is true.
+     *
+     * @param useClosedForm whether to use the closed-form log likelihood
+     */
+    public void setUseClosedForm(boolean useClosedForm) {
+        this.useClosedForm = useClosedForm;
+    }
+
+    /**
+     * Computes the AIC score of each CCD based on the given trees.
+     *
+     * @param treeSet the trees used to construct the CCDs
+     * @return the AIC scores in the order of the CCDs
+     * @throws IOException if the trees cannot be read
+     */
+    public double[] computeAICScores(TreeSet treeSet) throws IOException {
+        double[] logLikelihoods = computeLogLikelihoods(treeSet);
+        double[] scores = new double[ccds.length];
+        for (int i = 0; i < ccds.length; i++) {
+            scores[i] = ccds[i].getAICScore(logLikelihoods[i]);
+        }
+        return scores;
+    }
+
+    /**
+     * Computes the log likelihood of each CCD based on the given trees,
+     * so the sum of the log probabilities of the trees.
+     *
+     * @param treeSet the trees used to construct the CCDs
+     * @return the log likelihoods in the order of the CCDs
+     * @throws IOException if the trees cannot be read
+     */
+    public double[] computeLogLikelihoods(TreeSet treeSet) throws IOException {
+        int numTrees = treeSet.totalTrees - treeSet.burninCount;
+        double[] logLikelihoods = new double[ccds.length];
+
+        // 1. closed form where counts match trees, otherwise remember for streaming
+        List<AbstractCCD> streamed = new ArrayList<>(ccds.length);
+        int[] streamedIndices = new int[ccds.length];
+        for (int i = 0; i < ccds.length; i++) {
+            AbstractCCD ccd = ccds[i];
+            // makes sure the CCD is not modified (lazily) while trees are scored concurrently
+            ccd.tidyUpCacheIfDirty();
+            ccd.resetCacheIfProbabilitiesDirty();
+
+            if (useClosedForm && ccd.hasCountBasedLikelihood()
+                    && (ccd.getRootClade().getNumberOfOccurrences() == numTrees)) {
+                logLikelihoods[i] = ccd.getLogLikelihood();
+            } else {
+                streamedIndices[streamed.size()] = i;
+                streamed.add(ccd);
+            }
+        }
+        if (streamed.isEmpty()) {
+            return logLikelihoods;
+        }
+
+        // 2. single pass over the trees for all other CCDs
+        double[] streamedLogLikelihoods = (threadCount <= 1)
+                ? scoreSequentially(streamed, treeSet)
+                : scoreInParallel(streamed, treeSet);
+        for (int j = 0; j < streamed.size(); j++) {
+            logLikelihoods[streamedIndices[j]] = streamedLogLikelihoods[j];
+        }
+
+        return logLikelihoods;
+    }
+
+    /* Helper method */
+    private static double[] scoreSequentially(List<AbstractCCD> streamed, TreeSet treeSet) throws IOException {
+        double[] logLikelihoods = new double[streamed.size()];
+        treeSet.reset();
+        while (treeSet.hasNext()) {
+            Tree tree = treeSet.next();
+            for (int j = 0; j < streamed.size(); j++) {
+                logLikelihoods[j] += streamed.get(j).getLogProbabilityOfTree(tree);
+            }
+        }
+        return logLikelihoods;
+    }
+
+    /* Helper method */
+    private double[] scoreInParallel(List<AbstractCCD> streamed, TreeSet treeSet) throws IOException {
+        double[] logLikelihoods = new double[streamed.size()];
+
+        // trees are parsed on this thread and scored in batches by the workers;
+        // we collect the results in order of submission, so the sums are deterministic,
+        // and bound the number of pending batches, so memory stays bounded
+        int maxPendingBatches = 2 * threadCount;
+        LinkedList<Future<double[]>> pending = new LinkedList<>();
+        ExecutorService exec = Executors.newFixedThreadPool(threadCount);
+        try {
+            treeSet.reset();
+            List<Tree> batch = new ArrayList<>(BATCH_SIZE);
+            while (treeSet.hasNext()) {
+                batch.add(treeSet.next());
+                if (batch.size() == BATCH_SIZE) {
+                    pending.add(exec.submit(new ScoringWorker(streamed, batch)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    if (pending.size() >= maxPendingBatches) {
+                        addUp(logLikelihoods, pending.removeFirst());
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(exec.submit(new ScoringWorker(streamed, batch)));
+            }
+            while (!pending.isEmpty()) {
+                addUp(logLikelihoods, pending.removeFirst());
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+
+        return logLikelihoods;
+    }
+
+    /* Helper method */
+    private static void addUp(double[] logLikelihoods, Future<double[]> result) throws IOException {
+        try {
+            double[] batchLogLikelihoods = result.get();
+            for (int j = 0; j < logLikelihoods.length; j++) {
+                logLikelihoods[j] += batchLogLikelihoods[j];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scoring trees.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scoring trees failed.", e.getCause());
+        }
+    }
+
+    /* Thread worker computing the summed log probabilities of a batch of trees in each CCD */
+    static class ScoringWorker implements java.util.concurrent.Callable<double[]> {
+        private final List<AbstractCCD> ccds;
+        private final List<Tree> trees;
+
+        ScoringWorker(List<AbstractCCD> ccds, List<Tree> trees) {
+            this.ccds = ccds;
+            this.trees = trees;
+        }
+
+        @Override
+        public double[] call() {
+            double[] logLikelihoods = new double[ccds.size()];
+            for (Tree tree : trees) {
+                for (int j = 0; j < ccds.size(); j++) {
+                    logLikelihoods[j] += ccds.get(j).getLogProbabilityOfTree(tree);
+                }
+            }
+            return logLikelihoods;
+        }
+    }
+
+}
@@ -255,38 +255,39 @@ public class SampleDistribution implements ITreeDistribution {
 
     @Override
     public Tree sampleTree(HeightSettingStrategy heightStrategy) {
-        this.tidyUpIfDirty();
-
-        int pick = this.getRandom().nextInt(numBaseTrees);
-        int next = 0;
-        for (WrappedBeastTree tree : trees) {
-            next += tree.getCount();
-
-            if (pick <= next) {
-                return tree.getWrappedTree();
-            }
-        }
-
-        System.err.println("No tree sampled. Suspect number of tree counts does not add up to number of base trees.");
-        return null;
+        WrappedBeastTree tree = sampleWrappedTree(this.getRandom());
+        return (tree == null) ? null : tree.getWrappedTree();
     }
 
     @Override
     public double sampleTreeProbability() {
+        WrappedBeastTree tree = sampleWrappedTree(this.getRandom());
+        return (tree == null) ? -1 : tree.getCount() / (double) this.numBaseTrees;
+    }
+
+    @Override
+    public double sampleTreeLogProbability(Random random) {
+        WrappedBeastTree tree = sampleWrappedTree(random);
+        return (tree == null) ? Double.NEGATIVE_INFINITY : Math.log(tree.getCount() / (double) this.numBaseTrees);
+    }
+
+    /* Helper method - samples a tree proportional to its count, or returns null if the counts do not add up */
+    private WrappedBeastTree sampleWrappedTree(Random random) {
         this.tidyUpIfDirty();
 
-        int pick = this.getRandom().nextInt(numBaseTrees);
+        // pick is in [0, numBaseTrees), so tree i is picked if it lies in [counts up to tree i-1, counts up to tree i)
+        int pick = random.nextInt(numBaseTrees);
         int next = 0;
         for (WrappedBeastTree tree : trees) {
             next += tree.getCount();
 
-            if (pick <= next) {
-                return tree.getCount() / (double) this.numBaseTrees;
+            if (pick < next) {
+                return tree;
             }
         }
 
-        System.err.println("No tree probability sampled. Suspect number of tree counts does not add up to number of base trees.");
-        return -1;
+        System.err.println("No tree sampled. Suspect number of tree counts does not add up to number of base trees.");
+        return null;
     }
 
     @Override
@@ -410,6 +411,11 @@ public class SampleDistribution implements ITreeDistribution {
         return 0;
     }
 
+    @Override
+    public double getLogProbabilityOfTree(Tree tree) {
+        return Math.log(getProbabilityOfTree(tree));
+    }
+
     @Override
     public boolean containsTree(Tree tree) {
         WrappedBeastTree wrappedTree = new WrappedBeastTree(tree);
@@ -0,0 +1,135 @@
+package ccd.model;
+
+import beast.base.evolution.tree.Tree;
+import ccd.model.bitsets.BitSet;
+
+import java.util.ArrayDeque;
+
+/**
+ * A {@link CCD1} over a sliding window of trees, e.g. of a running MCMC chain:
+ * new trees are added at the end of the window and, once the window is full,
+ * the oldest trees are removed again; the first trees can also be discarded explicitly as burn-in.
+ *
+ * <p>
+ * Adding or removing a tree only changes the counts of the clades of that tree, so only
+ * their cached values and those of their ancestors are invalidated
+ * (see {@link CCD1#setToUpdateCachesLocally()}). Hence, querying the entropy or the
+ * MAP tree after each batch of trees only recomputes these values for the affected clades
+ * instead of for the whole CCD graph. Clade probabilities are computed top-down from the root,
+ * whose CCPs change with every tree, and are thus recomputed as a whole when requested.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class SlidingWindowCCD {
+
+    /** The CCD over the trees in the window. */
+    private final CCD1 ccd;
+
+    /** Maximum number of trees in the window; non-positive for no limit. */
+    private final int windowSize;
+
+    /** The trees in the window, oldest first. */
+    private final ArrayDeque<Tree> window = new ArrayDeque<>();
+
+    /**
+     * Constructor for an empty sliding window CCD.
+     *
+     * @param numLeaves  number of leaves of the trees that this CCD will be based on
+     * @param windowSize maximum number of trees in the window; non-positive for no limit,
+     *                   in which case only trees discarded explicitly are removed
+     */
+    public SlidingWindowCCD(int numLeaves, int windowSize) {
+        this.ccd = new CCD1(numLeaves, false);
+        this.ccd.setToUpdateCachesLocally();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Adds the given tree to the window and removes the oldest tree if the window is full.
+     *
+     * @param tree to be added
+     */
+    public void addTree(Tree tree) {
+        ccd.addTree(tree);
+        window.addLast(tree);
+
+        if (windowSize > 0) {
+            while (window.size() > windowSize) {
+                ccd.removeTree(window.removeFirst(), true);
+            }
+        }
+    }
+
+    /**
+     * Adds the given trees to the window in the given order.
+     *
+     * @param trees to be added
+     */
+    public void addTrees(Iterable<Tree> trees) {
+        for (Tree tree : trees) {
+            addTree(tree);
+        }
+    }
+
+    /**
+     * Removes the given number of oldest trees from the window, e.g. as burn-in.
+     *
+     * @param numTrees number of trees to remove; the last tree in the window is always kept
+     */
+    public void discardOldestTrees(int numTrees) {
+        int numRemoved = 0;
+        while ((numRemoved < numTrees) && (window.size() > 1)) {
+            ccd.removeTree(window.removeFirst(), true);
+            numRemoved++;
+        }
+        if (numRemoved < numTrees) {
+            System.err.println("WARNING: Kept last tree in sliding window, since the CCD cannot be empty.");
+        }
+    }
+
+    /** @return the CCD over the trees in the window */
+    public CCD1 getCCD() {
+        return ccd;
+    }
+
+    /** @return maximum number of trees in the window; non-positive for no limit */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /** @return the number of trees currently in the window */
+    public int getNumberOfTrees() {
+        return window.size();
+    }
+
+    /** @return the entropy of the CCD over the trees in the window */
+    public double getEntropy() {
+        return ccd.getEntropyLewis();
+    }
+
+    /** @return the log probability of the MAP tree of the CCD over the trees in the window */
+    public double getMaxLogTreeProbability() {
+        return ccd.getMaxLogTreeProbability();
+    }
+
+    /** @return the MAP tree of the CCD over the trees in the window */
+    public Tree getMAPTree() {
+        return ccd.getMAPTree();
+    }
+
+    /**
+     * @param cladeInBits clade in BitSet representation
+     * @return the probability of the given clade in the CCD over the trees in the window
+     */
+    public double getCladeProbability(BitSet cladeInBits) {
+        return ccd.getCladeProbability(cladeInBits);
+    }
+
+    @Override
+    public String toString() {
+        return "SlidingWindowCCD [windowSize = " + windowSize + ", numTrees = " + window.size()
+                + ", ccd = " + ccd + "]";
+    }
+
+}
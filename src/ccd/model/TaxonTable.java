@@ -0,0 +1,74 @@
+package ccd.model;
+
+import beast.base.evolution.tree.Tree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable table of the taxa of a CCD, mapping the index of each taxon
+ * (its leaf number and bit in the clade bitsets) to its (interned) name and back.
+ * It is built once from a base tree and then shared by all CCDs derived from that CCD,
+ * such as copies and filtered CCDs, so that constructing trees from a CCD
+ * does not need to access its base trees.
+ *
+ * @author Jonathan Klawitter
+ */
+public final class TaxonTable {
+
+    /** Name of each taxon by its index. */
+    private final String[] names;
+
+    /** Index of each taxon by its name. */
+    private final Map<String, Integer> indices;
+
+    private TaxonTable(String[] names) {
+        this.names = names;
+        this.indices = new HashMap<>(2 * names.length);
+        for (int i = 0; i < names.length; i++) {
+            indices.put(names[i], i);
+        }
+    }
+
+    /**
+     * Builds the taxon table of the given tree, where the leaf numbers are the indices of the taxa.
+     *
+     * @param tree whose taxa are used
+     * @return taxon table of the given tree
+     */
+    public static TaxonTable of(Tree tree) {
+        String[] names = new String[tree.getLeafNodeCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = tree.getNode(i).getID().intern();
+        }
+        return new TaxonTable(names);
+    }
+
+    /** @return number of taxa */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param index of a taxon
+     * @return the name of the taxon with the given index
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @param name of a taxon
+     * @return the index of the taxon with the given name or -1 if there is no such taxon
+     */
+    public int getIndex(String name) {
+        Integer index = indices.get(name);
+        return (index == null) ? -1 : index;
+    }
+
+    /** @return a copy of the names of the taxa by their index */
+    public String[] getNames() {
+        return names.clone();
+    }
+
+}
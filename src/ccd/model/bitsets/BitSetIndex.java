@@ -0,0 +1,120 @@
+package ccd.model.bitsets;
+
+import java.util.Arrays;
+
+/**
+ * Assigns dense indices 0, 1, 2, ... to bitsets and looks them up again,
+ * based on an open-addressing hash table with linear probing over primitive arrays.
+ * A lookup thus neither allocates objects nor boxes values, so values associated with
+ * the bitsets can be stored in primitive arrays indexed by these indices.
+ *
+ * <p>
+ * The added bitsets are stored by reference and must not be modified afterwards.
+ * Lookups are thread-safe as long as no bitsets are added concurrently.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class BitSetIndex {
+
+    /** Maximum fill ratio of the hash table before it is doubled. */
+    private static final double MAX_LOAD = 0.5;
+
+    /** The bitsets by their index. */
+    private BitSet[] keys;
+
+    /** Hash table with index + 1 of the bitset in the slot, or 0 for an empty slot. */
+    private int[] slots;
+
+    /** Bit mask to map hash values to slots. */
+    private int mask;
+
+    /** Number of bitsets in this index. */
+    private int size = 0;
+
+    /**
+     * Constructor for an empty index.
+     *
+     * @param expectedSize expected number of bitsets to be added
+     */
+    public BitSetIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / MAX_LOAD)) - 1) << 1;
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        this.keys = new BitSet[Math.max(4, expectedSize)];
+    }
+
+    /**
+     * Adds the given bitset to this index, if not contained yet, and returns its index.
+     *
+     * @param bits to be added; stored by reference
+     * @return the index of the given bitset
+     */
+    public int add(BitSet bits) {
+        int slot = findSlot(bits);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * keys.length);
+        }
+        keys[size] = bits;
+        slots[slot] = ++size;
+        if (size > MAX_LOAD * slots.length) {
+            rehash();
+        }
+
+        return size - 1;
+    }
+
+    /**
+     * @param bits bitset to look up
+     * @return the index of the given bitset or -1 if not contained
+     */
+    public int indexOf(BitSet bits) {
+        return slots[findSlot(bits)] - 1;
+    }
+
+    /**
+     * @param index of a bitset in this index
+     * @return the bitset with the given index
+     */
+    public BitSet get(int index) {
+        return keys[index];
+    }
+
+    /** @return number of bitsets in this index */
+    public int size() {
+        return size;
+    }
+
+    /* Helper method; returns the slot containing the given bitset or the empty slot where it belongs */
+    private int findSlot(BitSet bits) {
+        int slot = spread(bits.hashCode()) & mask;
+        while ((slots[slot] != 0) && !keys[slots[slot] - 1].equals(bits)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Helper method */
+    private void rehash() {
+        slots = new int[2 * slots.length];
+        mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = spread(keys[i].hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /* Helper method; the bitset hash codes have weak lower bits for small bitsets */
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -11,6 +11,7 @@ import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.treeannotator.services.TopologySettingService;
 import ccd.model.AbstractCCD;
 import ccd.model.CCD0;
+import ccd.model.ExpansionBudget;
 import ccd.model.HeightSettingStrategy;
 
 
@@ -22,6 +23,11 @@ public class CCD0ApproxPointEstimate extends PointEstimate implements TopologySe
     // default used to cap number of clades considered to DEFAULT_MULTIPLIER x number of taxa
     final static int DEFAULT_MULTIPLIER = 100;
 
+    // the expand step can further be limited by the following settings (system property or environment variable):
+    // CCD0ApproxTimeLimit (seconds), CCD0ApproxMaxPartitions (added clade partitions),
+    // and CCD0ApproxHeapWatermark (fraction of maximum heap size in use);
+    // then the most frequent clades are expanded first until the budget is exhausted
+
     @Override
     public Tree setTopology(TreeSet treeSet, PrintStream progressStream, TreeAnnotator annotator)
             throws IOException {
@@ -33,29 +39,20 @@ public class CCD0ApproxPointEstimate extends PointEstimate implements TopologySe
         treeSet.reset();
         Tree tree = treeSet.next();
         Tree firstTree = tree;
-        int CCD0ApproxMultiplier = DEFAULT_MULTIPLIER;
-
-        if (System.getProperty("CCD0ApproxMultiplier") != null) {
-            try {
-                CCD0ApproxMultiplier = Integer.valueOf(System.getProperty("CCD0ApproxMultiplier"));
-            } catch (NumberFormatException e) {
-                progressStream.println("Could not parse CCD0ApproxMultiplier property (" + System.getProperty("CCD0ApproxMultiplier") + ").");
-                CCD0ApproxMultiplier = DEFAULT_MULTIPLIER;
-                progressStream.println("Using default value of " + CCD0ApproxMultiplier + ".");
-            }
-        } else if (System.getenv("CCD0ApproxMultiplier") != null) {
-            try {
-                CCD0ApproxMultiplier = Integer.valueOf(System.getenv("CCD0ApproxMultiplier"));
-            } catch (NumberFormatException e) {
-                progressStream.println("Could not parse CCD0ApproxMultiplier property (" + System.getenv("CCD0ApproxMultiplier") + ").");
-                CCD0ApproxMultiplier = DEFAULT_MULTIPLIER;
-                progressStream.println("Using default value of " + CCD0ApproxMultiplier + ".");
-            }
-        }
+        int CCD0ApproxMultiplier = getSetting("CCD0ApproxMultiplier", DEFAULT_MULTIPLIER, progressStream).intValue();
 
         CCD0 ccd = new CCD0(tree.getLeafNodeCount(), false, CCD0ApproxMultiplier);
         ccd.setProgressStream(progressStream);
 
+        // optional resource budget for the expand step, e.g. for shared cluster nodes
+        ExpansionBudget budget = new ExpansionBudget(
+                (long) (1000 * getSetting("CCD0ApproxTimeLimit", 0.0, progressStream).doubleValue()),
+                getSetting("CCD0ApproxMaxPartitions", 0L, progressStream).longValue(),
+                Math.min(getSetting("CCD0ApproxHeapWatermark", 0.0, progressStream).doubleValue(), 1.0));
+        if (budget.isLimited()) {
+            ccd.setExpansionBudget(budget);
+        }
+
         int k = treeSet.totalTrees - treeSet.burninCount;
         int percentageDone = 0;
         int i = 0;
@@ -72,6 +69,9 @@ public class CCD0ApproxPointEstimate extends PointEstimate implements TopologySe
             i++;
         }
         progressStream.println();
+        if (budget.isLimited()) {
+            progressStream.println("Using expansion budget " + budget);
+        }
         ccd.initialize();
 
         Tree mapTree = ccd.getMAPTree(HeightSettingStrategy.One);
@@ -80,6 +80,33 @@ public class CCD0ApproxPointEstimate extends PointEstimate implements TopologySe
         return mapTree;
     }
 
+    /**
+     * Reads the setting with the given name from the system properties or,
+     * if not set there, from the environment variables.
+     *
+     * @param name           of the setting
+     * @param defaultValue   used if the setting is not given or cannot be parsed
+     * @param progressStream to report parsing problems
+     * @return the value of the setting
+     */
+    static Number getSetting(String name, Number defaultValue, PrintStream progressStream) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            value = System.getenv(name);
+        }
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return (defaultValue instanceof Integer) ? Integer.valueOf(value.trim()) : Double.valueOf(value.trim());
+        } catch (NumberFormatException e) {
+            progressStream.println("Could not parse " + name + " property (" + value + ").");
+            progressStream.println("Using default value of " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
     @Override
     public String getServiceName() {
         return "CCD0Approx";
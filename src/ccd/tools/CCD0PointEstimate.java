@@ -33,6 +33,11 @@ public class CCD0PointEstimate extends PointEstimate implements TopologySettingS
         Tree firstTree = tree;
         CCD0 ccd = new CCD0(tree.getLeafNodeCount(), false);
         ccd.setProgressStream(progressStream);
+        // optionally (system property or environment variable CCD0BlockDecomposition=1),
+        // well-supported clades split the expand step into independent smaller problems
+        if (CCD0ApproxPointEstimate.getSetting("CCD0BlockDecomposition", 0, progressStream).intValue() != 0) {
+            ccd.setToUseBlockDecomposition();
+        }
 
         int k = treeSet.totalTrees - treeSet.burninCount;
         int percentageDone = 0;
@@ -8,6 +8,8 @@ import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.treeannotator.services.TopologySettingService;
 import ccd.model.AbstractCCD;
 import ccd.model.CCD1;
+import ccd.model.CCDType;
+import ccd.model.ExternalMemoryCCDBuilder;
 import ccd.model.HeightSettingStrategy;
 
 import java.io.IOException;
@@ -25,6 +27,20 @@ public class CCD1PointEstimate extends PointEstimate implements TopologySettingS
             throws IOException {
 
         progressStream.println("CCD1 MAP tree computation");
+
+        // for tree sets with too many clades for the heap, build the CCD1 via temporary files
+        int maxRecordsInMemory = CCD0ApproxPointEstimate.getSetting("CCD1ExternalMemoryRecords", 0, progressStream).intValue();
+        if (maxRecordsInMemory > 0) {
+            double minCladeSupport = CCD0ApproxPointEstimate.getSetting("CCD1ExternalMemoryMinSupport", 0.0, progressStream).doubleValue();
+            progressStream.println("Building CCD1 in external memory with at most " + maxRecordsInMemory
+                    + " records in memory and minimum clade support " + minCladeSupport + ".");
+            AbstractCCD ccd = ExternalMemoryCCDBuilder.build(treeSet, CCDType.CCD1, maxRecordsInMemory, minCladeSupport);
+            treeSet.reset();
+            Tree mapTree = ccd.getMAPTree(HeightSettingStrategy.One);
+            sanityCheck(mapTree, treeSet.next(), ccd);
+            return mapTree;
+        }
+
         progressStream.println("0              25             50             75            100");
         progressStream.println("|--------------|--------------|--------------|--------------|");
 
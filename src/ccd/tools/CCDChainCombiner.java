@@ -0,0 +1,212 @@
+package ccd.tools;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Runnable;
+import beastfx.app.tools.Application;
+import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.TreeFile;
+import ccd.algorithms.CCDCombiner;
+import ccd.model.AbstractCCD;
+import ccd.model.CCDType;
+import ccd.model.HeightSettingStrategy;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+@Description("Combines the CCDs of several independent MCMC chains into one CCD and outputs its MAP tree")
+public class CCDChainCombiner extends Runnable {
+
+    public static final String SEPARATOR = "\t";
+
+    // input
+    final public Input<List<TreeFile>> treeInput = new Input<>("trees", "trees files of the chains to combine " +
+            "(all over the same taxa)", new ArrayList<>(), Validate.REQUIRED);
+    final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees of each chain " +
+            "that is burnin (and will be ignored)", 10);
+
+    // configuration
+    // combining copies the CCDs, which CCD2s do not support, and copies of regularised CCDs lose their regularisation
+    final public Input<CCDType> ccdTypeInput = new Input<>("ccdType", "CCD type, either CCD0 or CCD1", CCDType.CCD0,
+            new CCDType[]{CCDType.CCD0, CCDType.CCD1});
+
+    enum Strategy {average, product, spikedProduct, CCD0Unexpanded}
+
+    final public Input<Strategy> strategyInput = new Input<>("strategy",
+            "how to combine the CCDs of the chains: average (of clade partition probabilities), " +
+                    "product (of clade partition probabilities, divided by the prior), spikedProduct " +
+                    "(product over CCDs expanded to all clades), or CCD0Unexpanded (CCD0 over all clades observed, " +
+                    "requires CCD0 as CCD type)",
+            Strategy.average, Strategy.values());
+    final public Input<RogueAnalysis.hss> heightSettingStrategyInput = new Input<>("heightSettingStrategy",
+            "heights used in MAP tree output, can be CA (Mean of Least Common Ancestor heights), MH (mean (sampled) height), or ONE",
+            RogueAnalysis.hss.CA,
+            RogueAnalysis.hss.values());
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to build the CCDs " +
+            "of the chains (default: number of available processors)", Runtime.getRuntime().availableProcessors());
+
+    // output
+    final public Input<OutFile> outputInput = new Input<>("out", "file name for output (without file ending), " +
+            "will be used with '.trees' for the combined MAP tree and '.csv' for diagnostics", Validate.REQUIRED);
+    final public Input<String> separatorInput = new Input<>("separator",
+            "separator used in csv file; default is tab", SEPARATOR);
+
+    @Override
+    public void initAndValidate() {
+    }
+
+    @Override
+    public void run() throws Exception {
+        List<TreeFile> treeFiles = treeInput.get();
+        Strategy strategy = strategyInput.get();
+        System.out.println("# Combine CCDs of Chains");
+        System.out.println("> with the following parameters...");
+        for (TreeFile treeFile : treeFiles) {
+            System.out.println("    trees file: " + treeFile.getPath());
+        }
+        System.out.println("    burnin:     " + burnInPercentageInput.get());
+        System.out.println("    CCD type:   " + ccdTypeInput.get());
+        System.out.println("    strategy:   " + strategy);
+        System.out.println("    threads:    " + threadsInput.get());
+        if ((ccdTypeInput.get() != CCDType.CCD0) && (ccdTypeInput.get() != CCDType.CCD1)) {
+            throw new IllegalArgumentException("Combining CCDs is only supported for CCD types CCD0 and CCD1.");
+        }
+        if ((strategy == Strategy.CCD0Unexpanded) && (ccdTypeInput.get() != CCDType.CCD0)) {
+            throw new IllegalArgumentException("Strategy CCD0Unexpanded requires CCD type CCD0.");
+        }
+
+        // build the CCD of each chain on its own thread
+        long start = System.currentTimeMillis();
+        System.out.println("> building CCDs of " + treeFiles.size() + " chains");
+        AbstractCCD[] ccds = buildCCDs(treeFiles);
+        String[] taxaNames = ccds[0].getTaxonTable().getNames();
+        for (int i = 1; i < ccds.length; i++) {
+            if (!Arrays.equals(taxaNames, ccds[i].getTaxonTable().getNames())) {
+                throw new IllegalArgumentException("Trees files " + treeFiles.get(0).getPath() + " and "
+                        + treeFiles.get(i).getPath() + " are not over the same taxa.");
+            }
+        }
+        System.out.println("  done in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+
+        // combine
+        start = System.currentTimeMillis();
+        System.out.println("> combining CCDs");
+        AbstractCCD combinedCCD = switch (strategy) {
+            case average -> CCDCombiner.average(ccds);
+            case product -> CCDCombiner.product(ccds);
+            case spikedProduct -> CCDCombiner.spikedProduct(ccds);
+            case CCD0Unexpanded -> CCDCombiner.combineCCD0Unexpanded(ccds);
+        };
+        System.out.println("  done in " + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+
+        // output diagnostics
+        System.out.print("> writing diagnostics to file ");
+        String separator = separatorInput.get();
+        String infoOutputFileName = outputInput.get() + ".csv";
+        System.out.println(infoOutputFileName);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(infoOutputFileName))) {
+            bw.write("chain" + separator + "numTrees" + separator + "numClades" + separator + "numPartitions"
+                    + separator + "entropy" + separator + "maxLogTreeProbability" + separator
+                    + "combinedMAPLogProbability" + separator + "file");
+            bw.newLine();
+
+            Tree mapTree = combinedCCD.getMAPTree(HeightSettingStrategy.One);
+            for (int i = 0; i < ccds.length; i++) {
+                bw.write(getDiagnostics(String.valueOf(i), ccds[i], mapTree, separator)
+                        + separator + treeFiles.get(i).getPath());
+                bw.newLine();
+            }
+            bw.write(getDiagnostics("combined", combinedCCD, mapTree, separator) + separator + strategy);
+            bw.newLine();
+        }
+
+        // output MAP tree
+        System.out.print("> writing combined CCD MAP tree to file ");
+        infoOutputFileName = outputInput.get() + ".trees";
+        System.out.println(infoOutputFileName);
+        HeightSettingStrategy hss = HeightSettingStrategy.fromName(heightSettingStrategyInput.get().toString());
+        RogueAnalysis.createNexusTreeFile(infoOutputFileName, combinedCCD.getMAPTree(hss));
+
+        Log.warning("Done");
+    }
+
+    /* Helper method - builds one CCD per trees file, concurrently */
+    private AbstractCCD[] buildCCDs(List<TreeFile> treeFiles) throws IOException {
+        int threadCount = Math.max(1, Math.min(threadsInput.get(), treeFiles.size()));
+        ExecutorService exec = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<AbstractCCD>> futures = new ArrayList<>(treeFiles.size());
+            for (TreeFile treeFile : treeFiles) {
+                futures.add(exec.submit(new CCDBuildingWorker(treeFile.getPath(), burnInPercentageInput.get(),
+                        ccdTypeInput.get())));
+            }
+
+            AbstractCCD[] ccds = new AbstractCCD[treeFiles.size()];
+            for (int i = 0; i < ccds.length; i++) {
+                try {
+                    ccds[i] = futures.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while building CCDs.", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException("Building CCD of " + treeFiles.get(i).getPath() + " failed.",
+                            e.getCause());
+                }
+            }
+            return ccds;
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /* Helper method */
+    private static String getDiagnostics(String name, AbstractCCD ccd, Tree mapTree, String separator) {
+        return name + separator + ccd.getNumberOfBaseTrees() + separator + ccd.getNumberOfClades() + separator
+                + ccd.getNumberOfCladePartitions() + separator + ccd.getEntropy() + separator
+                + ccd.getMaxLogTreeProbability() + separator + ccd.getLogProbabilityOfTree(mapTree);
+    }
+
+    /* Thread worker reading a trees file and building its CCD */
+    static class CCDBuildingWorker implements Callable<AbstractCCD> {
+        private final String treeFilePath;
+        private final int burnInPercentage;
+        private final CCDType ccdType;
+
+        CCDBuildingWorker(String treeFilePath, int burnInPercentage, CCDType ccdType) {
+            this.treeFilePath = treeFilePath;
+            this.burnInPercentage = burnInPercentage;
+            this.ccdType = ccdType;
+        }
+
+        @Override
+        public AbstractCCD call() throws IOException {
+            MemoryFriendlyTreeSet treeSet = CCDToolUtil.getTreeSet(treeFilePath, burnInPercentage);
+            AbstractCCD ccd = CCDToolUtil.getCCDTypeByName(treeSet, ccdType);
+            // compute everything that is shared with the combining step while still on this thread
+            ccd.computeCladeProbabilitiesIfDirty();
+            ccd.getMaxLogTreeProbability();
+            return ccd;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Application(new CCDChainCombiner(), "Combine CCDs of Chains", args);
+    }
+
+}
@@ -3,15 +3,19 @@ package ccd.tools;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
-import beast.base.evolution.tree.Tree;
 import beast.base.inference.Runnable;
 import beastfx.app.tools.Application;
 import beastfx.app.treeannotator.TreeAnnotator;
 import beastfx.app.util.TreeFile;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.util.LinkedList;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ccd.model.AbstractCCD;
 import ccd.model.CCDType;
@@ -19,12 +23,20 @@ import ccd.model.HeightSettingStrategy;
 
 @Description("Allows to sample from a CCD{0,1} based on a input set of trees")
 public class CCDSampler extends Runnable {
+    /** Number of trees sampled by a worker at once. */
+    private static final int BATCH_SIZE = 256;
+
     final public Input<TreeFile> treeInput = new Input<>("trees", "trees file to construct CCD with and analyse", Input.Validate.REQUIRED);
-    final public Input<String> outputInput = new Input<>("out", "file name for output newick trees", Input.Validate.REQUIRED);
+    final public Input<String> outputInput = new Input<>("out", "file name for output newick trees; " +
+            "if it ends with .gz, the output is gzip compressed", Input.Validate.REQUIRED);
     final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
     final public Input<CCDType> ccdTypeInput = new Input<>("ccdType", "type of CCD, e.g. CCD0 or CCD1", CCDType.CCD0, CCDType.values());
     final public Input<Integer> sampleSizeInput = new Input<>("length", "number of trees sampled from CCD", 1000);
     final public Input<Long> seedInput = new Input<>("seed", "seed for random for chain generation");
+    final public Input<Boolean> nexusInput = new Input<>("nexus", "'true' to write a NEXUS file with a translate block " +
+            "(taxa as numbers in the trees), 'false' to write one newick tree per line", false);
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to sample trees " +
+            "(default: number of available processors)", Runtime.getRuntime().availableProcessors());
 
     @Override
     public void initAndValidate() {
@@ -40,19 +52,82 @@ public class CCDSampler extends Runnable {
         Log.info.println("    CCD type:    " + ccdTypeInput.get());
         Log.info.println("    #samples:    " + sampleSizeInput.get());
         Log.info.println("    output file: " + outputInput.get());
+        Log.info.println("    threads:     " + threadsInput.get());
 
         TreeAnnotator.MemoryFriendlyTreeSet treeSet = CCDToolUtil.getTreeSet(treeInput, burnInPercentageInput.get());
         AbstractCCD ccd = CCDToolUtil.getCCDTypeByName(treeSet, ccdTypeInput.get());
+        ccd.prepareConcurrentSampling(HeightSettingStrategy.CommonAncestorHeights);
 
+        // each batch gets its own random stream, drawn in order from the main random,
+        // so that the output only depends on the seed and not on the number of threads
         long seed = (seedInput.get() != null) ? seedInput.get() : System.currentTimeMillis();
-        ccd.setRandom(new Random(seed));
+        Random seedRandom = new Random(seed);
+
+        int threadCount = Math.max(1, threadsInput.get());
+        int maxPendingBatches = 2 * threadCount;
+        LinkedList<Future<String>> pending = new LinkedList<>();
+        ExecutorService exec = Executors.newFixedThreadPool(threadCount);
+        String[] taxaNames = ccd.getTaxonTable().getNames();
+        try (TreeFileWriter writer = new TreeFileWriter(outputInput.get(), taxaNames, nexusInput.get())) {
+            int numSamples = sampleSizeInput.get();
+            for (int start = 0; start < numSamples; start += BATCH_SIZE) {
+                int end = Math.min(start + BATCH_SIZE, numSamples);
+                pending.add(exec.submit(new SamplingWorker(ccd, new Random(seedRandom.nextLong()), writer,
+                        start, end)));
+                // write finished batches in order, with a bounded number of pending batches
+                while (pending.size() >= maxPendingBatches) {
+                    writer.write(getBatch(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(getBatch(pending.removeFirst()));
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /* Helper method */
+    private static String getBatch(Future<String> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sampling trees.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sampling trees failed.", e.getCause());
+        }
+    }
+
+    /* Thread worker sampling a batch of trees and serialising them into one string */
+    static class SamplingWorker implements Callable<String> {
+        /** Reusable string builder of each worker thread. */
+        private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+        private final AbstractCCD ccd;
+        private final Random random;
+        private final TreeFileWriter writer;
+        private final int start;
+        private final int end;
+
+        SamplingWorker(AbstractCCD ccd, Random random, TreeFileWriter writer, int start, int end) {
+            this.ccd = ccd;
+            this.random = random;
+            this.writer = writer;
+            this.start = start;
+            this.end = end;
+        }
 
-        try (BufferedWriter bufferedOutputWriter = new BufferedWriter(new FileWriter(outputInput.get()))) {
-            for (int i = 0; i < sampleSizeInput.get(); i++) {
-                Tree tree = ccd.sampleTree(HeightSettingStrategy.CommonAncestorHeights);
-                bufferedOutputWriter.write(tree.getRoot().toNewick());
-                bufferedOutputWriter.newLine();
+        @Override
+        public String call() {
+            StringBuilder builder = BUILDER.get();
+            builder.setLength(0);
+            for (int i = start; i < end; i++) {
+                writer.appendTreeStart("STATE_" + i, builder);
+                ccd.appendSampledNewick(random, HeightSettingStrategy.CommonAncestorHeights, writer.getLeafLabels(), builder);
+                builder.append("\n");
             }
+            return builder.toString();
         }
     }
 
@@ -13,6 +13,15 @@ import ccd.model.HeightSettingStrategy;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This point estimate class computes a topology given a tree set by construct
@@ -22,6 +31,12 @@ import java.io.PrintStream;
 @Description("TreeAnnotator plugin for setting the tree topology as CCD MAP tree")
 public class CCDSelectionPointEstimate extends PointEstimate implements TopologySettingService {
 
+    /** Capacity of the queue of trees of each model-specific construction stage. */
+    public static final int QUEUE_CAPACITY = 1024;
+
+    /* Marks the end of the tree stream for the construction stages. */
+    private static final Tree END_OF_TREES = new Tree();
+
     @Override
     public Tree setTopology(TreeSet treeSet, PrintStream progressStream, TreeAnnotator annotator)
             throws IOException {
@@ -39,61 +54,84 @@ public class CCDSelectionPointEstimate extends PointEstimate implements Topology
         CCD0 ccd0 = new CCD0(n, false);
         CCD1 ccd1 = new CCD1(n, false);
         CCD2 ccd2 = new CCD2(n, false);
+        // the CCD0 is expanded in a pipeline stage, where its progress output would interleave with ours
+        ccd0.setProgressStream(null);
 
-        int k = treeSet.totalTrees - treeSet.burninCount;
-        int percentageDone = 0;
-        int i = 0;
-        while (tree != null) {
-            // progress bar reporting
-            while ((62 * i) / k > percentageDone) {
-                progressStream.print("*");
-                progressStream.flush();
-                percentageDone++;
-            }
-
-            ccd0.addTree(tree);
-            ccd1.addTree(tree);
-            ccd2.addTree(tree);
-            tree = treeSet.hasNext() ? treeSet.next() : null;
-            i++;
-        }
-        progressStream.println();
-        ccd0.setProgressStream(progressStream);
-        ccd0.initialize();
-
-        // since we constructed CCDs tree by tree, we need to set the TreeSet manually
+        // since we construct CCDs tree by tree, we need to set the TreeSet manually
         ccd0.setBaseTreeSet(treeSet);
         ccd1.setBaseTreeSet(treeSet);
         ccd2.setBaseTreeSet(treeSet);
 
-        double aic0 = ccd0.getAICScore();
-        double aic1 = ccd1.getAICScore();
-        double aic2 = ccd2.getAICScore();
-
-        progressStream.print("\nComputing AIC scores... ");
-        progressStream.println("which are:");
-        // progressStream.println("CCD0: " + aic0);
-        // progressStream.println("CCD1: " + aic1);
-        // progressStream.println("CCD2: " + aic2);
-        progressStream.println("CCD0: " + aic0 + " (" + ccd0.getNumberOfClades() + " clades)");
-        progressStream.println("CCD1: " + aic1 + " (" + ccd1.getNumberOfCladePartitions() + " clade partitions)");
-        progressStream.println("CCD2: " + aic2 + " (" + ccd2.getNumberOfCladePartitions() + " clade partitions)");
-        String winner = "";
-        Tree mapTree = null;
-        if ((aic0 < aic1) && (aic0 < aic2)) {
-            progressStream.println("Hence, the CCD0 MAP tree is computed.\n");
-            mapTree = ccd0.getMAPTree(HeightSettingStrategy.One);
-        } else if ((aic1 <= aic0) && (aic1 < aic2)) {
-            progressStream.println("Hence, the CCD1 MAP tree is computed.\n");
-            mapTree = ccd1.getMAPTree(HeightSettingStrategy.One);
-            sanityCheck(mapTree, firstTree, ccd1);
-        } else {
-            progressStream.println("Hence, the CCD2 MAP tree is computed.\n");
-            mapTree = ccd2.getMAPTree(HeightSettingStrategy.One);
-            sanityCheck(mapTree, firstTree, ccd2);
-        }
+        // pipeline: this thread parses the trees and hands them to one construction stage per model;
+        // each stage then finishes its model (for CCD0 the expansion) and computes its AIC score,
+        // so the slowest model determines the running time
+        AbstractCCD[] ccds = new AbstractCCD[]{ccd0, ccd1, ccd2};
+        List<BlockingQueue<Tree>> queues = new ArrayList<>(ccds.length);
+        List<Future<Double>> aicScores = new ArrayList<>(ccds.length);
+        ExecutorService exec = Executors.newFixedThreadPool(ccds.length);
+        try {
+            for (AbstractCCD ccd : ccds) {
+                BlockingQueue<Tree> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+                queues.add(queue);
+                aicScores.add(exec.submit(new ConstructionStage(ccd, queue)));
+            }
+
+            int k = treeSet.totalTrees - treeSet.burninCount;
+            int percentageDone = 0;
+            int i = 0;
+            while (tree != null) {
+                // progress bar reporting
+                while ((62 * i) / k > percentageDone) {
+                    progressStream.print("*");
+                    progressStream.flush();
+                    percentageDone++;
+                }
+
+                for (BlockingQueue<Tree> queue : queues) {
+                    queue.put(tree);
+                }
+                tree = treeSet.hasNext() ? treeSet.next() : null;
+                i++;
+            }
+            progressStream.println();
 
-        return mapTree;
+            // the stages finish their models and compute the AIC scores once they reach the end of the trees
+            progressStream.print("\nExpanding CCD0 and computing AIC scores... ");
+            progressStream.flush();
+            for (BlockingQueue<Tree> queue : queues) {
+                queue.put(END_OF_TREES);
+            }
+            double aic0 = aicScores.get(0).get();
+            double aic1 = aicScores.get(1).get();
+            double aic2 = aicScores.get(2).get();
+            progressStream.println("which are:");
+            progressStream.println("CCD0: " + aic0 + " (" + ccd0.getNumberOfClades() + " clades)");
+            progressStream.println("CCD1: " + aic1 + " (" + ccd1.getNumberOfCladePartitions() + " clade partitions)");
+            progressStream.println("CCD2: " + aic2 + " (" + ccd2.getNumberOfCladePartitions() + " clade partitions)");
+            String winner = "";
+            Tree mapTree = null;
+            if ((aic0 < aic1) && (aic0 < aic2)) {
+                progressStream.println("Hence, the CCD0 MAP tree is computed.\n");
+                mapTree = ccd0.getMAPTree(HeightSettingStrategy.One);
+            } else if ((aic1 <= aic0) && (aic1 < aic2)) {
+                progressStream.println("Hence, the CCD1 MAP tree is computed.\n");
+                mapTree = ccd1.getMAPTree(HeightSettingStrategy.One);
+                sanityCheck(mapTree, firstTree, ccd1);
+            } else {
+                progressStream.println("Hence, the CCD2 MAP tree is computed.\n");
+                mapTree = ccd2.getMAPTree(HeightSettingStrategy.One);
+                sanityCheck(mapTree, firstTree, ccd2);
+            }
+
+            return mapTree;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while constructing CCDs.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Constructing CCDs failed.", e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
     }
 
     @Override
@@ -119,4 +157,39 @@ public class CCDSelectionPointEstimate extends PointEstimate implements Topology
         }
     }
 
+    /* Pipeline stage that constructs one CCD from the queued trees and then computes its AIC score */
+    static class ConstructionStage implements Callable<Double> {
+        private final AbstractCCD ccd;
+        private final BlockingQueue<Tree> queue;
+
+        ConstructionStage(AbstractCCD ccd, BlockingQueue<Tree> queue) {
+            this.ccd = ccd;
+            this.queue = queue;
+        }
+
+        @Override
+        public Double call() throws InterruptedException {
+            boolean endOfTrees = false;
+            try {
+                Tree tree = queue.take();
+                while (tree != END_OF_TREES) {
+                    ccd.addTree(tree);
+                    tree = queue.take();
+                }
+                endOfTrees = true;
+                ccd.initialize();
+
+                // the CCD is based on exactly the trees of the tree set,
+                // so we can use the closed-form log likelihood
+                return ccd.getAICScore(ccd.getLogLikelihood());
+            } catch (RuntimeException | Error e) {
+                // keep consuming so that the parser does not block on a full queue
+                while (!endOfTrees) {
+                    endOfTrees = (queue.take() == END_OF_TREES);
+                }
+                throw e;
+            }
+        }
+    }
+
 }
@@ -71,7 +71,7 @@ public class CCDToolUtil {
         return ccd;
     }
 
-    public static AbstractCCD getCCDTypeByName(TreeAnnotator.MemoryFriendlyTreeSet treeSet, CCDType ccdType) {
+    public static AbstractCCD getCCDTypeByName(TreeAnnotator.TreeSet treeSet, CCDType ccdType) {
         AbstractCCD ccd;
         if (ccdType == CCDType.CCD0) {
             ccd = new CCD0(treeSet);
@@ -88,4 +88,29 @@ public class CCDToolUtil {
         }
         return ccd;
     }
+
+    /**
+     * Get empty CCD with given type for trees with the given number of leaves, to which trees can be added.
+     *
+     * @param numLeaves number of leaves of the trees
+     * @param ccdType   type of CCD
+     * @return empty CCD of given type
+     */
+    public static AbstractCCD getEmptyCCD(int numLeaves, CCDType ccdType) {
+        AbstractCCD ccd;
+        if (ccdType == CCDType.CCD0) {
+            ccd = new CCD0(numLeaves, false);
+        } else if (ccdType == CCDType.CCD1) {
+            ccd = new CCD1(numLeaves, false);
+        } else if (ccdType == CCDType.CCD2) {
+            ccd = new CCD2(numLeaves, false);
+        } else if (ccdType == CCDType.RegCCD) {
+            ccd = new RegCCD(numLeaves);
+        } else if (ccdType == CCDType.OptRegCCD) {
+            ccd = new OptRegCCD(numLeaves);
+        } else {
+            throw new IllegalArgumentException("Illegal CCD type.");
+        }
+        return ccd;
+    }
 }
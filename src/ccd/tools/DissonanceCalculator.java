@@ -8,10 +8,16 @@ import beastfx.app.tools.Application;
 import beastfx.app.treeannotator.TreeAnnotator;
 import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.util.TreeFile;
-import ccd.model.CCD0;
+import ccd.algorithms.CCD0Dissonance;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Description("Calculates the phylogenetic entropies of the posterior tree distribution (estimated via CCD0s) of given tree sets")
 public class DissonanceCalculator extends beast.base.inference.Runnable {
@@ -20,6 +26,8 @@ public class DissonanceCalculator extends beast.base.inference.Runnable {
     final public Input<Boolean> quietInput = new Input<>("quiet", "'true' to only output entropy value and nothing else, 'false' otherwise", false);
     final public Input<Boolean> dissonanceInput = new Input<>("dissonance", "calculate dissonance based on halving the tree set into two tree sets", false);
     final public Input<Boolean> summariseInput = new Input<>("summarise", "print summary of mean and variance of the entropies for all trees", false);
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of trees files processed in parallel " +
+            "(default: number of available processors)", Runtime.getRuntime().availableProcessors());
 
     @Override
     public void initAndValidate() {
@@ -35,66 +43,32 @@ public class DissonanceCalculator extends beast.base.inference.Runnable {
             Log.info("# Starting Entropy Calculator");
         }
 
+        // process the files in parallel, but report them in order
+        boolean dissonance = dissonanceInput.get();
+        List<TreeFile> treeFiles = treeInput.get();
+        int threadCount = Math.max(1, Math.min(threadsInput.get(), treeFiles.size()));
+        ExecutorService exec = Executors.newFixedThreadPool(threadCount);
         List<Double> entropies = new ArrayList<>();
-        for (TreeFile t : treeInput.get()) {
-            // init treeSets
-            TreeSet treeSets = new TreeAnnotator().new MemoryFriendlyTreeSet(t.getPath(), burnInPercentageInput.get());
-            treeSets.reset();
-            int numLeaves = treeSets.next().getLeafNodeCount();
-            treeSets.reset();
-
-            // init counts
-            int numTrees = treeSets.totalTrees - treeSets.burninCount;
-
-            // init CCDS
-            CCD0 ccd = new CCD0(numLeaves, false);
-
-            // process trees
-            if (!quiet) {
-                System.out.println("- processing trees");
-            }
-            int percentSize = numTrees / 50;
-            if (!quiet) {
-                Log.warning("#trees #clades #partitions dissonance time");
-            }
-            boolean dissonance = dissonanceInput.get();
-
-            CCD0 ccdFirstHalf = null;
-            CCD0 ccdSecondHalf = null;
-            if (dissonance) {
-                ccdFirstHalf = new CCD0(numLeaves, false);
-                ccdSecondHalf = new CCD0(numLeaves, false);
+        try {
+            List<Future<double[]>> futures = new ArrayList<>(treeFiles.size());
+            for (TreeFile t : treeFiles) {
+                futures.add(exec.submit(new DissonanceWorker(t.getPath(), burnInPercentageInput.get(), dissonance)));
             }
 
-            for (int i = 0; i < numTrees; i++) {
-                if (i % percentSize == 0 && i > 0) {
-                    // System.out.print("+");
+            for (int i = 0; i < treeFiles.size(); i++) {
+                double[] result = getResult(futures.get(i), treeFiles.get(i));
+                double entropy = result[0];
+                if (quiet) {
+                    Log.info(entropy + (dissonance ? " " + result[1] : ""));
+                } else {
                     long end = System.currentTimeMillis();
-                    if (!quiet) {
-                        Log.warning.println(i + " " + (end - start) / 1000.0 + " seconds");
-                    }
-                }
-
-                Tree tree = treeSets.next();
-                ccd.addTree(tree);
-                if (dissonance) {
-                    if (i < numTrees / 2) {
-                        ccdFirstHalf.addTree(tree);
-                    } else {
-                        ccdSecondHalf.addTree(tree);
-                    }
+                    Log.warning("- processed " + treeFiles.get(i).getPath() + " after " + (end - start) / 1000.0 + " seconds");
+                    Log.info("Entropy " + entropy + (dissonance ? " " + result[1] : ""));
                 }
+                entropies.add(entropy);
             }
-            if (!quiet) {
-                Log.warning("");
-            }
-
-            if (quiet) {
-                Log.info(ccd.getEntropy() + (dissonance ? " " + (ccd.getEntropy() - (ccdFirstHalf.getEntropy() + ccdSecondHalf.getEntropy()) / 2.0) : ""));
-            } else {
-                Log.info("Entropy " + ccd.getEntropy() + (dissonance ? " " + (ccd.getEntropy() - (ccdFirstHalf.getEntropy() + ccdSecondHalf.getEntropy()) / 2.0) : ""));
-            }
-            entropies.add(ccd.getEntropy());
+        } finally {
+            exec.shutdownNow();
         }
 
         if (summariseInput.get()) {
@@ -118,6 +92,59 @@ public class DissonanceCalculator extends beast.base.inference.Runnable {
         }
     }
 
+    /* Helper method */
+    private static double[] getResult(Future<double[]> future, TreeFile treeFile) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing trees.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("Processing " + treeFile.getPath() + " failed.", e.getCause());
+        }
+    }
+
+    /* Thread worker computing the entropy (and dissonance) of the CCD0 of one trees file */
+    static class DissonanceWorker implements Callable<double[]> {
+        private final String treeFilePath;
+        private final int burnInPercentage;
+        private final boolean dissonance;
+
+        DissonanceWorker(String treeFilePath, int burnInPercentage, boolean dissonance) {
+            this.treeFilePath = treeFilePath;
+            this.burnInPercentage = burnInPercentage;
+            this.dissonance = dissonance;
+        }
+
+        @Override
+        public double[] call() throws IOException {
+            // init treeSets
+            TreeSet treeSets = new TreeAnnotator().new MemoryFriendlyTreeSet(treeFilePath, burnInPercentage);
+            treeSets.reset();
+            int numLeaves = treeSets.next().getLeafNodeCount();
+            treeSets.reset();
+
+            // init counts
+            int numTrees = treeSets.totalTrees - treeSets.burninCount;
+
+            // one CCD0 for all trees, that also keeps track of the clades in the first half if needed
+            CCD0Dissonance ccd = new CCD0Dissonance(numLeaves);
+            for (int i = 0; i < numTrees; i++) {
+                if (dissonance && (i == numTrees / 2)) {
+                    ccd.endFirstHalf();
+                }
+                Tree tree = treeSets.next();
+                ccd.addTree(tree);
+            }
+
+            double entropy = ccd.getEntropy();
+            return dissonance ? new double[]{entropy, ccd.getDissonance()} : new double[]{entropy};
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         new Application(new DissonanceCalculator(), "Entropy Calculator", args);
     }
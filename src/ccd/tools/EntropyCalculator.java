@@ -1,5 +1,6 @@
 package ccd.tools;
 
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
@@ -7,10 +8,13 @@ import java.util.List;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.evolution.tree.Tree;
 import beastfx.app.tools.Application;
 import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
+import ccd.algorithms.CCD1EntropyTracker;
 import ccd.model.AbstractCCD;
 import ccd.model.CCDType;
 
@@ -24,6 +28,9 @@ public class EntropyCalculator extends beast.base.inference.Runnable {
 
     // configuration
     final public Input<CCDType> ccdTypeInput = new Input<>("ccdType", "CCD type, e.g. CCD0, CCD1, or CCD2", CCDType.CCD0, CCDType.values());
+    final public Input<Integer> traceIntervalInput = new Input<>("traceInterval", "if positive, trace the entropy and " +
+            "the number of clades and clade partitions every this many trees in a single pass over the trees " +
+            "(fastest for CCD1, which is updated incrementally)", 0);
 
     @Override
     public void initAndValidate() {
@@ -37,6 +44,15 @@ public class EntropyCalculator extends beast.base.inference.Runnable {
     	PrintStream trace = null;
     	if (outputInput.get() != null) {
     		trace = new PrintStream(outputInput.get());
+    	}
+    	if (traceIntervalInput.get() > 0) {
+    		runTrace((trace != null) ? trace : System.out);
+    		if (trace != null) {
+    			trace.close();
+    		}
+    		return;
+    	}
+    	if (trace != null) {
     		trace.println("sample\tfile\tentropy");
     	}
     		
@@ -66,6 +82,83 @@ public class EntropyCalculator extends beast.base.inference.Runnable {
     	}
     }
 
+    /* Helper method - traces the entropy of each trees file every traceInterval trees */
+    private void runTrace(PrintStream trace) throws IOException {
+        int traceInterval = traceIntervalInput.get();
+        CCDType ccdType = ccdTypeInput.get();
+        trace.println("sample\tfile\tentropy\tclades\tpartitions");
+
+        for (TreeFile treefile : treeInput.get()) {
+            if (verboseInput.get()) {
+                Log.info("# Entropy Trace");
+                Log.info("> with the following parameters...");
+                Log.info("    trees file: " + treefile.getPath());
+                Log.info("    burnin:     " + burnInPercentageInput.get());
+                Log.info("    CCD type:   " + ccdType);
+                Log.info("    interval:   " + traceInterval);
+            }
+
+            MemoryFriendlyTreeSet treeSet = CCDToolUtil.getTreeSet(treefile.getPath(), burnInPercentageInput.get());
+            double entropy = traceEntropy(treeSet, ccdType, traceInterval, treefile.getName(), trace);
+
+            if (verboseInput.get()) {
+                Log.info("\nPhylogenetic Entropy: " + entropy);
+            }
+        }
+    }
+
+    /**
+     * Adds the trees of the given tree set one by one to an empty CCD of the given type and,
+     * every traceInterval trees and after the last tree, prints a row with the number of trees,
+     * the file name, the entropy, and the number of clades and clade partitions to the trace.
+     *
+     * @param treeSet       trees (without burnin) to trace the entropy of
+     * @param ccdType       type of CCD
+     * @param traceInterval number of trees between two trace points
+     * @param fileName      name of the trees file, printed in each row
+     * @param trace         stream the rows are printed to
+     * @return the entropy of the CCD on all trees
+     * @throws IOException if the trees cannot be read
+     */
+    public static double traceEntropy(TreeSet treeSet, CCDType ccdType, int traceInterval,
+                                      String fileName, PrintStream trace) throws IOException {
+        treeSet.reset();
+        int numLeaves = treeSet.next().getLeafNodeCount();
+        treeSet.reset();
+        int numTrees = treeSet.totalTrees - treeSet.burninCount;
+
+        // the entropy of a CCD1 can be maintained while adding trees,
+        // other CCDs have to be (re)initialized for each trace point
+        CCD1EntropyTracker tracker = (ccdType == CCDType.CCD1) ? new CCD1EntropyTracker(numLeaves) : null;
+        AbstractCCD ccd = (tracker != null) ? tracker.getCCD() : CCDToolUtil.getEmptyCCD(numLeaves, ccdType);
+        double entropy = 0;
+        for (int i = 1; i <= numTrees; i++) {
+            Tree tree = treeSet.next();
+            if (tracker != null) {
+                tracker.addTree(tree);
+            } else {
+                ccd.addTree(tree);
+            }
+
+            if ((i % traceInterval == 0) || (i == numTrees)) {
+                int numPartitions;
+                if (tracker != null) {
+                    entropy = tracker.getEntropy();
+                    numPartitions = tracker.getNumberOfCladePartitions();
+                } else {
+                    // adding trees neither expands the graph of a CCD0 nor recomputes its CCPs
+                    ccd.initialize();
+                    entropy = ccd.getEntropy();
+                    numPartitions = ccd.getNumberOfCladePartitions();
+                }
+                trace.println(i + "\t" + fileName + "\t" + entropy
+                        + "\t" + ccd.getNumberOfClades() + "\t" + numPartitions);
+            }
+        }
+
+        return entropy;
+    }
+
     public static void main(String[] args) throws Exception {
         new Application(new EntropyCalculator(), "Entropy Calculator", args);
     }
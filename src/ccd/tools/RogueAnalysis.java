@@ -155,21 +155,14 @@ public class RogueAnalysis extends Runnable {
      * @throws IOException ...
      */
     public static void createNexusTreeFile(String outputFileName, Tree tree) throws IOException {
-        FileWriter fw = new FileWriter(outputFileName);
-        BufferedWriter bw = new BufferedWriter(fw);
-
-        bw.write("#NEXUS");
-        bw.newLine();
-        bw.write("begin trees;");
-        bw.newLine();
-        bw.write("\ttree CCDMAPtree = [&R] ");
-        bw.write(tree.getRoot().toNewick() + ";");
-        bw.newLine();
-        bw.write("end trees;");
-        bw.newLine();
+        String[] taxaNames = new String[tree.getNodeCount()];
+        for (Node leaf : tree.getRoot().getAllLeafNodes()) {
+            taxaNames[leaf.getNr()] = leaf.getID();
+        }
 
-        bw.close();
-        fw.close();
+        try (TreeFileWriter writer = new TreeFileWriter(outputFileName, taxaNames, true)) {
+            writer.writeTree("CCDMAPtree", tree.getRoot());
+        }
     }
 
     public static void main(String[] args) throws Exception {
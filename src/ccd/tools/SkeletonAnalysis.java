@@ -18,6 +18,7 @@ import ccd.model.AbstractCCD;
 import ccd.model.CCDType;
 import ccd.model.FilteredCCD;
 import ccd.model.HeightSettingStrategy;
+import ccd.model.TaxonTable;
 import ccd.model.bitsets.BitSet;
 
 import java.io.IOException;
@@ -25,13 +26,22 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static ccd.algorithms.RogueDetection.TerminationStrategy.*;
 
 @Description("Analyses the skeleton of a CCD for given trees based on the total rogue scores (based on entropy)")
 public class SkeletonAnalysis extends Runnable {
+    /** Number of trees filtered by a worker at once. */
+    private static final int BATCH_SIZE = 256;
+
     // input
     final public Input<TreeFile> treeInput = new Input<>("trees", "trees file to construct CCD with and analyse", Validate.REQUIRED);
     final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees to used as burn-in (and will be ignored)", 10);
@@ -66,7 +76,12 @@ public class SkeletonAnalysis extends Runnable {
             " -- can be comma, tab or newline delimited.");
 
     // output
-    final public Input<OutFile> outputInput = new Input<>("out", "reduced tree output file; the given tree set will not be filtered if not specified");
+    final public Input<OutFile> outputInput = new Input<>("out", "reduced tree output file; the given tree set will not be filtered if not specified; " +
+            "if it ends with .gz, the output is gzip compressed");
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to filter the trees " +
+            "(default: number of available processors)", Runtime.getRuntime().availableProcessors());
+    final public Input<Boolean> nexusInput = new Input<>("nexus", "'true' to write the reduced trees as NEXUS file with a translate block " +
+            "(taxa as numbers in the trees), 'false' to write one newick tree per line", false);
 
     @Override
     public void initAndValidate() {
@@ -152,15 +167,15 @@ public class SkeletonAnalysis extends Runnable {
         if (outputInput.get() != null && !outputInput.get().getName().equals("[[none]]")) {
 
             System.out.println("\n> Output filtered trees to " + outputInput.get().getPath());
-            treeSet.reset();
 
             // compute which taxa to include and which to exclude
+            AbstractCCD ccd = ccds.get(0);
+            TaxonTable taxonTable = ccd.getTaxonTable();
             Set<String> taxaToInclude = new HashSet<>();
             Set<String> taxaToExclude = new HashSet<>();
             taxaToExclude.addAll(rogueTaxa);
-            Tree tree = treeSet.next();
-            for (int i = 0; i < tree.getLeafNodeCount(); i++) {
-                taxaToInclude.add(tree.getNode(i).getID());
+            for (int i = 0; i < taxonTable.size(); i++) {
+                taxaToInclude.add(taxonTable.getName(i));
             }
 
             // load set of taxa to exclude from deletion
@@ -177,49 +192,114 @@ public class SkeletonAnalysis extends Runnable {
             }
 
             FilteredCCD lastCCD = (FilteredCCD) ccds.get(ccds.size() - 1);
-            AbstractCCD ccd = ccds.get(0);
             BitSet taxaToKeepBits = lastCCD.getTaxaAsBitSet();
             Set<String> taxaNamesToKeep = ccd.getTaxaNamesList(taxaToKeepBits);
             taxaNamesToKeep.removeAll(taxaToExclude);
             taxaNamesToKeep.addAll(excludeFromDeletion);
 
-            // process file
-            PrintStream out = new PrintStream(outputInput.get());
-            treeSet.reset();
-            while (treeSet.hasNext()) {
-                Node root = treeSet.next().getRoot();
-                root = filterTree(root, taxaNamesToKeep);
-                out.println(root.toNewick());
+            // resolve the taxa to keep once by leaf number;
+            // only taxa kept appear in the translate block
+            BitSet leavesToKeep = BitSet.newBitSet(taxonTable.size());
+            String[] taxaNames = new String[taxonTable.size()];
+            for (int i = 0; i < taxonTable.size(); i++) {
+                String taxonName = taxonTable.getName(i);
+                if (taxaNamesToKeep.contains(taxonName)) {
+                    leavesToKeep.set(i);
+                    taxaNames[i] = taxonName;
+                }
+            }
+
+            // trees are parsed on this thread, and filtered and serialised in batches by the workers;
+            // results are written in order of submission, with a bounded number of pending batches
+            int threadCount = Math.max(1, threadsInput.get());
+            int maxPendingBatches = 2 * threadCount;
+            LinkedList<Future<String>> pending = new LinkedList<>();
+            ExecutorService exec = Executors.newFixedThreadPool(threadCount);
+            try (TreeFileWriter out = new TreeFileWriter(outputInput.get().getPath(), taxaNames, nexusInput.get())) {
+                treeSet.reset();
+                int treeIndex = 0;
+                List<Tree> batch = new ArrayList<>(BATCH_SIZE);
+                while (treeSet.hasNext()) {
+                    batch.add(treeSet.next());
+                    if (batch.size() == BATCH_SIZE) {
+                        pending.add(exec.submit(new FilterWorker(batch, treeIndex, leavesToKeep, out)));
+                        treeIndex += batch.size();
+                        batch = new ArrayList<>(BATCH_SIZE);
+                        while (pending.size() >= maxPendingBatches) {
+                            out.write(getBatch(pending.removeFirst()));
+                        }
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    pending.add(exec.submit(new FilterWorker(batch, treeIndex, leavesToKeep, out)));
+                }
+                while (!pending.isEmpty()) {
+                    out.write(getBatch(pending.removeFirst()));
+                }
+            } finally {
+                exec.shutdownNow();
             }
-            out.close();
         }
 
         System.out.println("... done.");
     }
 
+    /* Helper method */
+    private static String getBatch(Future<String> batch) throws IOException {
+        try {
+            return batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while filtering trees.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Filtering trees failed.", e.getCause());
+        }
+    }
+
+    /* Thread worker filtering a batch of trees and serialising them into one string */
+    static class FilterWorker implements Callable<String> {
+        /** Reusable string builder of each worker thread. */
+        private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
+
+        private final List<Tree> trees;
+        private final int firstTreeIndex;
+        private final BitSet leavesToKeep;
+        private final TreeFileWriter writer;
+
+        FilterWorker(List<Tree> trees, int firstTreeIndex, BitSet leavesToKeep, TreeFileWriter writer) {
+            this.trees = trees;
+            this.firstTreeIndex = firstTreeIndex;
+            this.leavesToKeep = leavesToKeep;
+            this.writer = writer;
+        }
+
+        @Override
+        public String call() {
+            StringBuilder builder = BUILDER.get();
+            builder.setLength(0);
+            for (int i = 0; i < trees.size(); i++) {
+                Node root = filterTree(trees.get(i).getRoot(), leavesToKeep);
+                writer.appendTreeStart("STATE_" + (firstTreeIndex + i), builder);
+                TreeFileWriter.appendNewick(root, writer.getLeafLabels(), builder);
+                builder.append(";\n");
+            }
+            return builder.toString();
+        }
+    }
+
     /**
-     * Recursive helper method that kicks out all taxa not specified to keep in subtree below given vertex.
+     * Recursive helper method that kicks out all leaves not specified to keep in subtree below given vertex.
      *
-     * @param node          on which to recurse
-     * @param taxaToInclude taxon in this set is kept, all others are excluded
+     * @param node         on which to recurse
+     * @param leavesToKeep leaf with number set in this bitset is kept, all others are excluded
      * @return this vertex, a new one for some changes, or null if subtree below is completely lost
      */
-    public static Node filterTree(Node node, Set<String> taxaToInclude) {
-        /* Copied from Babel package TaxonFiler */
+    public static Node filterTree(Node node, BitSet leavesToKeep) {
         if (node.isLeaf()) {
-            if (taxaToInclude.contains(node.getID())) {
-                return node;
-            } else {
-                return null;
-            }
+            return leavesToKeep.get(node.getNr()) ? node : null;
         } else {
-            Node left_ = node.getLeft();
-            Node right_ = node.getRight();
-            left_ = filterTree(left_, taxaToInclude);
-            right_ = filterTree(right_, taxaToInclude);
-            if (left_ == null && right_ == null) {
-                return null;
-            }
+            Node left_ = filterTree(node.getLeft(), leavesToKeep);
+            Node right_ = filterTree(node.getRight(), leavesToKeep);
             if (left_ == null) {
                 return right_;
             }
@@ -233,6 +313,29 @@ public class SkeletonAnalysis extends Runnable {
         }
     }
 
+    /**
+     * Kicks out all taxa not specified to keep in subtree below given vertex,
+     * using {@link #filterTree(Node, BitSet)} with the numbers of the leaves to keep.
+     *
+     * @param node          on which to recurse
+     * @param taxaToInclude taxon in this set is kept, all others are excluded
+     * @return this vertex, a new one for some changes, or null if subtree below is completely lost
+     */
+    public static Node filterTree(Node node, Set<String> taxaToInclude) {
+        List<Node> leaves = node.getAllLeafNodes();
+        int maxLeafNr = 0;
+        for (Node leaf : leaves) {
+            maxLeafNr = Math.max(maxLeafNr, leaf.getNr());
+        }
+        BitSet leavesToKeep = BitSet.newBitSet(maxLeafNr + 1);
+        for (Node leaf : leaves) {
+            if (taxaToInclude.contains(leaf.getID())) {
+                leavesToKeep.set(leaf.getNr());
+            }
+        }
+        return filterTree(node, leavesToKeep);
+    }
+
     public static void main(String[] args) throws Exception {
         new Application(new SkeletonAnalysis(), "Rogue Entropy Sweeper", args);
     }
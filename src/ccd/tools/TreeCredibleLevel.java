@@ -6,6 +6,7 @@ import beast.base.core.Log;
 import beast.base.evolution.tree.Tree;
 import beastfx.app.tools.Application;
 import beastfx.app.treeannotator.TreeAnnotator.MemoryFriendlyTreeSet;
+import beastfx.app.treeannotator.TreeAnnotator.TreeSet;
 import beastfx.app.util.OutFile;
 import beastfx.app.util.TreeFile;
 import ccd.algorithms.credibleSets.CredibleCCDComputer;
@@ -18,15 +19,32 @@ import ccd.model.CCDType;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static ccd.algorithms.credibleSets.ProbabilityBasedCredibleSetComputer.DEFAULT_NUM_SAMPLES;
 
-@Description("Compute probability and credible level of given tree in CCD of given tree set")
+@Description("Compute probability and credible level of given tree in CCD of given tree set, " +
+        "or in batch mode of all trees of the given tree files")
 public class TreeCredibleLevel extends beast.base.inference.Runnable {
+    /** Number of trees evaluated by a worker at once in batch mode. */
+    private static final int BATCH_SIZE = 256;
+
+    /** Header of the CSV written in batch mode. */
+    public static final String CSV_HEADER = "file,tree,probability,logProbability,credibleLevel";
+
     // input
     final public Input<TreeFile> treeInput = new Input<>("trees", "trees file to construct CCD", Input.Validate.REQUIRED);
     final public Input<Integer> burnInPercentageInput = new Input<>("burnin", "percentage of trees that is burnin (and will be ignored)", 10);
-    final public Input<TreeFile> testTreeInput = new Input<>("tree", "tree file of tree to compute probability in CCD", Input.Validate.REQUIRED);
+    final public Input<List<TreeFile>> testTreeInput = new Input<>("tree", "tree file of tree to compute probability in CCD; " +
+            "in batch mode, one or more tree files whose trees are all evaluated", new ArrayList<>(), Input.Validate.REQUIRED);
 
     // configuration
     final public Input<Boolean> quietInput = new Input<>("quiet", "'true' to only output entropy value and nothing else, 'false' otherwise", false);
@@ -36,6 +54,13 @@ public class TreeCredibleLevel extends beast.base.inference.Runnable {
     final public Input<Integer> numSamplesInput = new Input<>("numsamples",
             "if using probability-based credible set, you may set the number of trees sampled " +
                     "(default: " + DEFAULT_NUM_SAMPLES + ")", DEFAULT_NUM_SAMPLES);
+    final public Input<Integer> maxExactTreesInput = new Input<>("maxExactTrees",
+            "if using probability-based credible set and positive, the credible levels are computed exactly by enumerating " +
+                    "the most probable trees, unless more than this many trees are needed (then sampling is used)", 0);
+    final public Input<Boolean> batchInput = new Input<>("batch", "'true' to evaluate every tree of the given tree file(s) " +
+            "and write a CSV with probability and credible level per tree, 'false' to only evaluate the first tree", false);
+    final public Input<Integer> threadsInput = new Input<>("threads", "number of threads used to sample trees and in batch mode " +
+            "(default: number of available processors)", Runtime.getRuntime().availableProcessors());
 
     // output
     final public Input<OutFile> outputInput = new Input<>("out", "output file", Input.Validate.REQUIRED);
@@ -63,11 +88,6 @@ public class TreeCredibleLevel extends beast.base.inference.Runnable {
         AbstractCCD ccd = CCDToolUtil.getCCDTypeByName(treeSetCCD, ccdTypeInput.get());
         ccd.computeCladeProbabilities();
 
-        // init test tree
-        MemoryFriendlyTreeSet treeSetTest = CCDToolUtil.getTreeSet(testTreeInput, 0);
-        treeSetTest.reset();
-        Tree testTree = treeSetTest.next();
-
         // credible set init
         if (!quiet) {
             Log.info("Build credible set.");
@@ -75,11 +95,37 @@ public class TreeCredibleLevel extends beast.base.inference.Runnable {
         ICredibleSet cred = null;
         if (method.equalsIgnoreCase("probability")) {
             int numSamples = numSamplesInput.get();
-            cred = new ProbabilityBasedCredibleSetComputer(ccd, numSamples);
+            int threadCount = Math.max(1, threadsInput.get());
+            if (maxExactTreesInput.get() > 0) {
+                ProbabilityBasedCredibleSetComputer probabilityCred = new ProbabilityBasedCredibleSetComputer(ccd,
+                        numSamples, ProbabilityBasedCredibleSetComputer.DEFAULT_PRECISION, maxExactTreesInput.get(),
+                        threadCount);
+                if (!quiet && probabilityCred.isExact()) {
+                    Log.info("Credible levels computed exactly; the 95% credible set contains "
+                            + probabilityCred.getNumberOfTreesInCredibleSet(0.95) + " trees.");
+                } else if (!quiet && (probabilityCred.getHighestExactCredibleLevel() > 0)) {
+                    Log.info("Credible levels up to " + probabilityCred.getHighestExactCredibleLevel()
+                            + " computed exactly, higher ones by sampling.");
+                }
+                cred = probabilityCred;
+            } else {
+                cred = new ProbabilityBasedCredibleSetComputer(ccd, numSamples,
+                        ProbabilityBasedCredibleSetComputer.DEFAULT_PRECISION, 0, threadCount);
+            }
         } else {
             cred = CredibleCCDComputer.getCredibleCCDComputer(ccd, (ccd instanceof CCD0) ? CredibleSetType.CladeProbability : CredibleSetType.PartitionProbability);
         }
 
+        if (batchInput.get()) {
+            runBatch(ccd, cred, quiet);
+            return;
+        }
+
+        // init test tree
+        MemoryFriendlyTreeSet treeSetTest = CCDToolUtil.getTreeSet(testTreeInput.get().get(0).getPath(), 0);
+        treeSetTest.reset();
+        Tree testTree = treeSetTest.next();
+
         // calculations
         double p = ccd.getProbabilityOfTree(testTree);
         double credLevel = cred.getCredibleLevel(testTree);
@@ -102,6 +148,124 @@ public class TreeCredibleLevel extends beast.base.inference.Runnable {
         }
     }
 
+    /* Helper method; evaluates all trees of all test tree files in parallel and writes a CSV */
+    private void runBatch(AbstractCCD ccd, ICredibleSet cred, boolean quiet) throws IOException {
+        int threadCount = Math.max(1, threadsInput.get());
+        if (!quiet) {
+            Log.info("Evaluate trees with " + threadCount + " threads.");
+        }
+
+        int numTrees = 0;
+        try (PrintStream out = new PrintStream(outputInput.get())) {
+            out.println(CSV_HEADER);
+            for (TreeFile testTreeFile : testTreeInput.get()) {
+                MemoryFriendlyTreeSet treeSetTest = CCDToolUtil.getTreeSet(testTreeFile.getPath(), 0);
+                numTrees += evaluateTrees(treeSetTest, testTreeFile.getName(), ccd, cred, threadCount, out);
+            }
+        }
+
+        if (!quiet) {
+            Log.info("Evaluated " + numTrees + " trees.");
+            Log.info("Done.");
+        }
+    }
+
+    /**
+     * Evaluates all trees of the given tree set in parallel and writes a CSV row per tree,
+     * in the order of the trees, with the file name, the index of the tree, its probability
+     * and log probability in the CCD, and its credible level.
+     *
+     * @param treeSet     trees to evaluate
+     * @param fileName    name of the trees file, written (quoted if necessary) in each row
+     * @param ccd         CCD in which the trees are evaluated
+     * @param cred        credible set of the CCD
+     * @param threadCount number of threads evaluating trees
+     * @param out         stream the rows are written to
+     * @return the number of evaluated trees
+     * @throws IOException if the trees cannot be read
+     */
+    public static int evaluateTrees(TreeSet treeSet, String fileName, AbstractCCD ccd, ICredibleSet cred,
+                                    int threadCount, PrintStream out) throws IOException {
+        // trees are parsed on this thread and evaluated in batches by the workers;
+        // results are written in order of submission, with a bounded number of pending batches
+        int maxPendingBatches = 2 * threadCount;
+        LinkedList<Future<double[][]>> pending = new LinkedList<>();
+        ExecutorService exec = Executors.newFixedThreadPool(threadCount);
+        String prefix = toCSVField(fileName) + ",";
+        int treeIndex = 0;
+        try {
+            treeSet.reset();
+            List<Tree> batch = new ArrayList<>(BATCH_SIZE);
+            while (treeSet.hasNext()) {
+                batch.add(treeSet.next());
+                if (batch.size() == BATCH_SIZE) {
+                    pending.add(exec.submit(new EvaluationWorker(ccd, cred, batch)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    while (pending.size() >= maxPendingBatches) {
+                        treeIndex = writeResults(out, prefix, treeIndex, pending.removeFirst());
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                pending.add(exec.submit(new EvaluationWorker(ccd, cred, batch)));
+            }
+            while (!pending.isEmpty()) {
+                treeIndex = writeResults(out, prefix, treeIndex, pending.removeFirst());
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+        return treeIndex;
+    }
+
+    /* Helper method; quotes the given CSV field if it contains a separator, quote or line break */
+    private static String toCSVField(String field) {
+        if ((field.indexOf(',') < 0) && (field.indexOf('"') < 0)
+                && (field.indexOf('\n') < 0) && (field.indexOf('\r') < 0)) {
+            return field;
+        }
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    /* Helper method */
+    private static int writeResults(PrintStream out, String prefix, int treeIndex, Future<double[][]> result) throws IOException {
+        try {
+            for (double[] values : result.get()) {
+                out.println(prefix + treeIndex + "," + Math.exp(values[0]) + "," + values[0] + "," + values[1]);
+                treeIndex++;
+            }
+            return treeIndex;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating trees.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Evaluating trees failed.", e.getCause());
+        }
+    }
+
+    /* Thread worker computing the log probability and credible level of a batch of trees */
+    static class EvaluationWorker implements Callable<double[][]> {
+        private final AbstractCCD ccd;
+        private final ICredibleSet cred;
+        private final List<Tree> trees;
+
+        EvaluationWorker(AbstractCCD ccd, ICredibleSet cred, List<Tree> trees) {
+            this.ccd = ccd;
+            this.cred = cred;
+            this.trees = trees;
+        }
+
+        @Override
+        public double[][] call() {
+            double[][] results = new double[trees.size()][];
+            for (int i = 0; i < trees.size(); i++) {
+                Tree tree = trees.get(i);
+                results[i] = new double[]{ccd.getLogProbabilityOfTree(tree), cred.getCredibleLevel(tree)};
+            }
+            return results;
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         new Application(new TreeCredibleLevel(), "CCD-based Tree Credible Level and Probability Calculator", args);
     }
@@ -0,0 +1,162 @@
+package ccd.tools;
+
+import beast.base.evolution.tree.Node;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes trees to a file, either as one Newick tree per line or as NEXUS file,
+ * where the taxon names are listed once in a translate block and the trees refer
+ * to taxa by their number; if the file name ends with .gz, the output is gzip compressed.
+ * Trees can be written from {@link Node}s or as Newick strings created directly from a CCD
+ * (see {@link ccd.model.AbstractCCD#appendSampledNewick}) with the leaf labels of this writer.
+ *
+ * <p>
+ * The static method to serialise vertices can be used concurrently,
+ * e.g. by workers that serialise batches of trees with their own builders,
+ * which are then written in order with {@link #write(CharSequence)}.
+ * </p>
+ *
+ * @author Jonathan Klawitter
+ */
+public class TreeFileWriter implements Closeable {
+
+    /** Size of the buffers of the writer and the compression stream. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The underlying writer. */
+    private final Writer writer;
+
+    /** Whether to write a NEXUS file. */
+    private final boolean nexus;
+
+    /** Label of each leaf by its number, i.e. the taxon name or its number in the translate block. */
+    private final String[] leafLabels;
+
+    /** Reused to serialise single trees. */
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * Opens a writer for trees on the given taxa.
+     *
+     * @param fileName   name of output file; if it ends with .gz, the output is gzip compressed
+     * @param taxaNames  name of each taxon by its leaf number; taxa that do not appear in the trees
+     *                   can be null and are then left out of the translate block
+     * @param nexus      whether to write a NEXUS file with translate block, or otherwise one Newick tree per line
+     * @throws IOException if the file cannot be opened
+     */
+    public TreeFileWriter(String fileName, String[] taxaNames, boolean nexus) throws IOException {
+        OutputStream stream = new FileOutputStream(fileName);
+        if (fileName.endsWith(".gz")) {
+            stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        this.nexus = nexus;
+
+        // with NEXUS, taxa are referred to by their number in the translate block
+        this.leafLabels = new String[taxaNames.length];
+        if (nexus) {
+            writer.write("#NEXUS\n\nBegin trees;\n\tTranslate\n");
+            int number = 0;
+            for (int i = 0; i < taxaNames.length; i++) {
+                if (taxaNames[i] != null) {
+                    leafLabels[i] = String.valueOf(++number);
+                    writer.write(((number > 1) ? ",\n" : "") + "\t\t" + number + " " + taxaNames[i]);
+                }
+            }
+            writer.write("\n;\n");
+        } else {
+            System.arraycopy(taxaNames, 0, leafLabels, 0, taxaNames.length);
+        }
+    }
+
+    /** @return label of each leaf by its number, i.e. the taxon name or its number in the translate block */
+    public String[] getLeafLabels() {
+        return leafLabels;
+    }
+
+    /**
+     * Appends the start of a tree entry to the given builder, i.e. the name of the tree for NEXUS files;
+     * to be followed by the Newick string of the tree and a newline.
+     *
+     * @param treeName name of the tree
+     * @param builder  to which the start is appended
+     */
+    public void appendTreeStart(String treeName, StringBuilder builder) {
+        if (nexus) {
+            builder.append("tree ").append(treeName).append(" = [&R] ");
+        }
+    }
+
+    /**
+     * Writes the given tree.
+     *
+     * @param treeName name of the tree (only used for NEXUS files)
+     * @param root     root of the tree
+     * @throws IOException if writing fails
+     */
+    public void writeTree(String treeName, Node root) throws IOException {
+        builder.setLength(0);
+        appendTreeStart(treeName, builder);
+        appendNewick(root, leafLabels, builder);
+        builder.append(";\n");
+        writer.write(builder.toString());
+    }
+
+    /**
+     * Writes the given text, e.g. a batch of tree entries.
+     *
+     * @param text to write
+     * @throws IOException if writing fails
+     */
+    public void write(CharSequence text) throws IOException {
+        writer.append(text);
+    }
+
+    /**
+     * Appends the Newick string of the subtree below the given vertex to the given builder
+     * (without terminating semicolon), in the same format as {@link Node#toNewick()},
+     * but with leaves labelled by their number with the given labels.
+     *
+     * @param vertex     root of the subtree
+     * @param leafLabels label of each leaf by its number
+     * @param builder    to which the Newick string is appended
+     */
+    public static void appendNewick(Node vertex, String[] leafLabels, StringBuilder builder) {
+        if (vertex.isLeaf()) {
+            builder.append(leafLabels[vertex.getNr()]);
+        } else {
+            builder.append("(");
+            boolean first = true;
+            for (Node child : vertex.getChildren()) {
+                if (!first) {
+                    builder.append(",");
+                }
+                first = false;
+                appendNewick(child, leafLabels, builder);
+            }
+            builder.append(")");
+        }
+        if (vertex.metaDataString != null) {
+            builder.append("[&").append(vertex.metaDataString).append("]");
+        }
+        builder.append(":").append(vertex.getLength());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (nexus) {
+            writer.write("End;\n");
+        }
+        writer.close();
+    }
+
+}
@@ -0,0 +1,99 @@
+package test.ccd;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beastfx.app.treeannotator.TreeAnnotator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tree fixtures shared by the tests.
+ */
+public class TreeTestUtil {
+
+    /** Seven taxa A to G. */
+    public static final String[] SEVEN_TAXA = {"A", "B", "C", "D", "E", "F", "G"};
+
+    /** Eight taxa A to H. */
+    public static final String[] EIGHT_TAXA = {"A", "B", "C", "D", "E", "F", "G", "H"};
+
+    /**
+     * @param newick tree in Newick format with branch lengths and taxa as labels
+     * @return the parsed tree
+     */
+    public static Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    /**
+     * Returns a tree on the given taxa with a random topology, where each
+     * vertex splits a random permutation of its taxa at a uniformly random position,
+     * and where all branches have length 1.
+     *
+     * @param taxa   taxa of the tree
+     * @param random source of randomness
+     * @return tree with random topology
+     */
+    public static Tree randomTree(String[] taxa, Random random) {
+        List<String> shuffled = new ArrayList<>(List.of(taxa));
+        Collections.shuffle(shuffled, random);
+        String newick = randomSubtree(shuffled, random);
+        return parseNewick(newick.substring(0, newick.length() - 2) + ":0;");
+    }
+
+    /**
+     * @param taxa     taxa of the trees
+     * @param numTrees number of trees
+     * @param random   source of randomness
+     * @return list of trees with random topologies, see {@link #randomTree(String[], Random)}
+     */
+    public static List<Tree> randomTrees(String[] taxa, int numTrees, Random random) {
+        List<Tree> trees = new ArrayList<>(numTrees);
+        for (int i = 0; i < numTrees; i++) {
+            trees.add(randomTree(taxa, random));
+        }
+        return trees;
+    }
+
+    /**
+     * @param trees trees of the tree set
+     * @return tree set without burnin that iterates over the given trees
+     */
+    public static TreeAnnotator.TreeSet getTreeSet(List<Tree> trees) {
+        TreeAnnotator.TreeSet treeSet = new TreeAnnotator().new TreeSet() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < trees.size();
+            }
+
+            @Override
+            public Tree next() {
+                return trees.get(next++);
+            }
+
+            @Override
+            public void reset() {
+                next = 0;
+            }
+        };
+        treeSet.totalTrees = trees.size();
+        treeSet.burninCount = 0;
+        return treeSet;
+    }
+
+    /* Recursive helper method */
+    private static String randomSubtree(List<String> taxa, Random random) {
+        if (taxa.size() == 1) {
+            return taxa.get(0) + ":1";
+        }
+        int split = 1 + random.nextInt(taxa.size() - 1);
+        return "(" + randomSubtree(taxa.subList(0, split), random) + ","
+                + randomSubtree(taxa.subList(split, taxa.size()), random) + "):1";
+    }
+
+}
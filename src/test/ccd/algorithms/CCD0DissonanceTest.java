@@ -0,0 +1,92 @@
+package test.ccd.algorithms;
+
+import beast.base.evolution.tree.Tree;
+import ccd.algorithms.CCD0Dissonance;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD0;
+import ccd.model.ExpansionBudget;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTree;
+
+/**
+ * Tests for the entropies and dissonance computed by {@link CCD0Dissonance}
+ * against CCD0s built separately on the two halves of the trees.
+ */
+public class CCD0DissonanceTest {
+
+    private static final String[] TAXA = TreeTestUtil.SEVEN_TAXA;
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        random = new Random(7);
+    }
+
+    @Test
+    public void testMatchesSeparatelyBuiltHalves() {
+        // halves with different clades, where expanding the CCD0s adds clade partitions
+        List<Tree> concentrated = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            concentrated.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+        }
+        concentrated.add(parseNewick("((((A:1,B:1):1,C:1):1,D:1):1,(E:1,(F:1,G:1):1):1):0;"));
+        concentrated.add(parseNewick("(((A:1,(B:1,C:1):1):1,D:1):1,((E:1,G:1):1,F:1):1):0;"));
+        concentrated.add(parseNewick("((((B:1,C:1):1,D:1):1,A:1):1,((E:1,F:1):1,G:1):1):0;"));
+        concentrated.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+        concentrated.add(parseNewick("((((A:1,B:1):1,(C:1,D:1):1):1,E:1):1,(F:1,G:1):1):0;"));
+
+        List<Tree> diffuse = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            diffuse.add(randomTree(TAXA, random));
+        }
+
+        for (List<Tree> trees : List.of(concentrated, diffuse)) {
+            int numFirstHalf = trees.size() / 2;
+            CCD0Dissonance dissonance = new CCD0Dissonance(TAXA.length);
+            for (int i = 0; i < trees.size(); i++) {
+                if (i == numFirstHalf) {
+                    dissonance.endFirstHalf();
+                }
+                dissonance.addTree(trees.get(i));
+            }
+
+            double entropy = new CCD0(trees, 0.0).getEntropy();
+            double firstHalfEntropy = new CCD0(trees.subList(0, numFirstHalf), 0.0).getEntropy();
+            double secondHalfEntropy = new CCD0(trees.subList(numFirstHalf, trees.size()), 0.0).getEntropy();
+
+            assertEquals(entropy, dissonance.getEntropy(), 1e-9);
+            double[] halfEntropies = dissonance.getHalfEntropies();
+            assertEquals(firstHalfEntropy, halfEntropies[0], 1e-9);
+            assertEquals(secondHalfEntropy, halfEntropies[1], 1e-9);
+            assertEquals(entropy - (firstHalfEntropy + secondHalfEntropy) / 2,
+                    dissonance.getDissonance(), 1e-9);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLimitedExpansionRejected() {
+        CCD0Dissonance dissonance = new CCD0Dissonance(TAXA.length);
+        dissonance.getCCD().setExpansionBudget(new ExpansionBudget(0, 1, 0));
+        for (int i = 0; i < 20; i++) {
+            if (i == 10) {
+                dissonance.endFirstHalf();
+            }
+            dissonance.addTree(randomTree(TAXA, random));
+        }
+
+        dissonance.getHalfEntropies();
+    }
+
+}
@@ -0,0 +1,64 @@
+package test.ccd.algorithms;
+
+import beast.base.evolution.tree.Tree;
+import ccd.algorithms.CCD1EntropyTracker;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTree;
+
+/**
+ * Tests for the entropy maintained by the {@link CCD1EntropyTracker}
+ * against the entropy of a {@link CCD1} built on the same trees.
+ */
+public class CCD1EntropyTrackerTest {
+
+    private static final String[] TAXA = TreeTestUtil.SEVEN_TAXA;
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        random = new Random(3);
+    }
+
+    @Test
+    public void testMatchesCCD1AfterEachTree() {
+        // starts with repeated trees, so the entropy is 0 at first, then mixes in random trees
+        List<Tree> trees = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            trees.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+        }
+        for (int i = 0; i < 40; i++) {
+            trees.add(randomTree(TAXA, random));
+            if (i % 5 == 0) {
+                trees.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+            }
+        }
+
+        CCD1EntropyTracker tracker = new CCD1EntropyTracker(TAXA.length);
+        assertEquals(0, tracker.getEntropy(), 1e-12);
+        for (int i = 0; i < trees.size(); i++) {
+            tracker.addTree(trees.get(i));
+
+            CCD1 expected = new CCD1(trees.subList(0, i + 1), 0.0);
+            assertEquals("entropy after " + (i + 1) + " trees",
+                    expected.getEntropy(), tracker.getEntropy(), 1e-9);
+            assertEquals(expected.getNumberOfClades(), tracker.getNumberOfClades());
+            assertEquals(expected.getNumberOfCladePartitions(), tracker.getNumberOfCladePartitions());
+            assertEquals(tracker.getCCD().getEntropy(), tracker.getEntropy(), 1e-9);
+        }
+    }
+
+}
@@ -0,0 +1,141 @@
+package test.ccd.algorithms;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.algorithms.CCDCombiner;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for combining CCDs with {@link CCDCombiner#product(AbstractCCD[])}.
+ */
+public class CCDCombinerTest {
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+    }
+
+    private Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    private CCD1 createCCD(String... newicks) {
+        List<Tree> trees = new ArrayList<>();
+        for (String newick : newicks) {
+            trees.add(parseNewick(newick));
+        }
+        return new CCD1(trees, 0.0);
+    }
+
+    @Test
+    public void testProduct_disjointCladePartitionsRenormalized() {
+        // clade {A,B,C} is in both CCDs but with disjoint partitions, so it gets removed,
+        // which removes the root partition {A,B,C | D,E} in the cascade
+        CCD1 first = createCCD("((A:1,(B:1,C:1):1):1,(D:1,E:1):1):0;", "(((A:1,D:1):1,(B:1,C:1):1):1,E:1):0;");
+        CCD1 second = createCCD("(((A:1,B:1):1,C:1):1,(D:1,E:1):1):0;", "(((A:1,D:1):1,(B:1,C:1):1):1,E:1):0;");
+        AbstractCCD[] baseCCDs = {first, second};
+
+        AbstractCCD combined = CCDCombiner.product(baseCCDs);
+
+        assertEquals(1, combined.getRootClade().getNumberOfPartitions());
+        assertEquals(1.0, combined.getRootClade().getPartitions().get(0).getCCP(), 1e-9);
+        assertEquals(1.0, combined.getProbabilityOfTree(parseNewick("(((A:1,D:1):1,(B:1,C:1):1):1,E:1):0;")), 1e-9);
+        assertCCPsSumToOne(combined);
+        assertSameCCPs(sequentialProduct(baseCCDs), combined);
+    }
+
+    @Test
+    public void testProduct_matchesSequentialProduct() {
+        String t1 = "((A:1,(B:1,C:1):1):1,(D:1,E:1):1):0;";
+        String t2 = "((((A:1,B:1):1,C:1):1,D:1):1,E:1):0;";
+        String t3 = "((((B:1,C:1):1,A:1):1,E:1):1,D:1):0;";
+        String t4 = "(((A:1,(B:1,C:1):1):1,D:1):1,E:1):0;";
+        AbstractCCD[] baseCCDs = {createCCD(t1, t1, t2, t4), createCCD(t1, t3, t4), createCCD(t1, t2, t3, t4, t4)};
+
+        AbstractCCD combined = CCDCombiner.product(baseCCDs);
+
+        assertCCPsSumToOne(combined);
+        assertSameCCPs(sequentialProduct(baseCCDs), combined);
+    }
+
+    /* Asserts that the CCPs of each non-leaf clade sum to one */
+    private static void assertCCPsSumToOne(AbstractCCD ccd) {
+        for (Clade clade : ccd.getClades()) {
+            if (clade.isLeaf()) {
+                continue;
+            }
+            double sum = clade.getPartitions().stream().mapToDouble(CladePartition::getCCP).sum();
+            assertEquals("CCPs of " + clade + " should sum to one", 1.0, sum, 1e-9);
+        }
+    }
+
+    /* Asserts that both CCDs have the same clades and clade partitions with the same CCPs */
+    private static void assertSameCCPs(AbstractCCD expected, AbstractCCD actual) {
+        assertEquals(expected.getNumberOfClades(), actual.getNumberOfClades());
+        assertEquals(expected.getNumberOfCladePartitions(), actual.getNumberOfCladePartitions());
+        for (Clade expectedClade : expected.getClades()) {
+            Clade actualClade = actual.getClade(expectedClade.getCladeInBits());
+            assertNotNull(actualClade);
+            for (CladePartition expectedPartition : expectedClade.getPartitions()) {
+                CladePartition actualPartition = actualClade.getCladePartition(
+                        actual.getClade(expectedPartition.getChildClades()[0].getCladeInBits()),
+                        actual.getClade(expectedPartition.getChildClades()[1].getCladeInBits()));
+                assertNotNull(actualPartition);
+                assertEquals(expectedPartition.getCCP(), actualPartition.getCCP(), 1e-9);
+            }
+        }
+    }
+
+    /*
+     * Reference implementation - multiplies the CCPs of the base CCDs one after the other,
+     * divided by the prior probability, and normalizes them once at the end
+     */
+    private static AbstractCCD sequentialProduct(AbstractCCD[] baseCCDs) {
+        double[][] priorProbabilityTable = new double[baseCCDs[0].getNumberOfLeaves()][];
+        AbstractCCD combined = baseCCDs[0].copy();
+        for (int i = 1; i < baseCCDs.length; i++) {
+            AbstractCCD other = baseCCDs[i];
+            for (Clade clade : new ArrayList<>(combined.getClades())) {
+                if (clade.isLeaf()) {
+                    continue;
+                }
+                Clade otherClade = other.getClade(clade.getCladeInBits());
+                for (CladePartition partition : new ArrayList<>(clade.getPartitions())) {
+                    CladePartition otherPartition = null;
+                    if (otherClade != null) {
+                        Clade otherFirst = other.getClade(partition.getChildClades()[0].getCladeInBits());
+                        Clade otherSecond = other.getClade(partition.getChildClades()[1].getCladeInBits());
+                        if ((otherFirst != null) && (otherSecond != null)) {
+                            otherPartition = otherClade.getCladePartition(otherFirst, otherSecond);
+                        }
+                    }
+                    if (otherPartition == null) {
+                        clade.removePartition(partition);
+                    } else {
+                        partition.setCCP(partition.getCCP() * otherPartition.getCCP()
+                                / CCDCombiner.getPartitionPriorProbability(partition, priorProbabilityTable));
+                    }
+                }
+            }
+            combined.tidyUpCCDGraph(false);
+        }
+
+        for (Clade clade : combined.getClades()) {
+            double sum = clade.getPartitions().stream().mapToDouble(CladePartition::getCCP).sum();
+            clade.getPartitions().forEach(partition -> partition.setCCP(partition.getCCP() / sum));
+        }
+        return combined;
+    }
+
+}
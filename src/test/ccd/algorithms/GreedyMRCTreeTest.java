@@ -0,0 +1,140 @@
+package test.ccd.algorithms;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import ccd.algorithms.BitSetUtil;
+import ccd.algorithms.GreedyMRCTree;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+import ccd.model.Clade;
+import ccd.model.HeightSettingStrategy;
+import ccd.model.bitsets.BitSet;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTrees;
+
+/**
+ * Tests for the greedy majority rule consensus tree of {@link GreedyMRCTree},
+ * computed sequentially and in parallel, against the greedy selection
+ * with pairwise compatibility checks.
+ */
+public class GreedyMRCTreeTest {
+
+    private static final String[] TAXA = TreeTestUtil.EIGHT_TAXA;
+
+    private static final String FREQUENT_NEWICK =
+            "((((A:1,B:1):1,C:1):1,D:1):1,((E:1,F:1):1,(G:1,H:1):1):1):0;";
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        random = new Random(5);
+    }
+
+    @Test
+    public void testMatchesPairwiseGreedySelection() {
+        // majority clades of the frequent tree and many minority clades of random trees
+        for (int numFrequent : new int[]{0, 10, 30, 60}) {
+            List<Tree> trees = new ArrayList<>(randomTrees(TAXA, 40, random));
+            for (int i = 0; i < numFrequent; i++) {
+                trees.add(parseNewick(FREQUENT_NEWICK));
+            }
+            CCD1 ccd = new CCD1(trees, 0.0);
+
+            Set<BitSet> expected = computePairwiseGreedyClades(ccd);
+            assertEquals(expected, getClades(GreedyMRCTree.constructTree(ccd, HeightSettingStrategy.One, false)));
+            assertEquals(expected, getClades(GreedyMRCTree.constructTree(ccd, HeightSettingStrategy.One, true)));
+        }
+    }
+
+    @Test
+    public void testIncompatibleMajorityClades() {
+        // counts above half the number of trees need not be compatible
+        // when a clade can be counted more than once per tree
+        List<Tree> trees = new ArrayList<>(randomTrees(TAXA, 30, random));
+        for (int i = 0; i < 10; i++) {
+            trees.add(parseNewick(FREQUENT_NEWICK));
+        }
+        CCD1 ccd = new CCD1(trees, 0.0);
+        int numTrees = ccd.getRootClade().getNumberOfOccurrences();
+        Clade first = getClade(ccd, "A", "B");
+        Clade second = getClade(ccd, "B", "C");
+        assertNotNull(first);
+        assertNotNull(second);
+        first.setNumberOfOccurrences(numTrees);
+        second.setNumberOfOccurrences(numTrees - 1);
+
+        Set<BitSet> expected = computePairwiseGreedyClades(ccd);
+        assertTrue(expected.contains(first.getCladeInBits()));
+        assertFalse(expected.contains(second.getCladeInBits()));
+        assertEquals(expected, getClades(GreedyMRCTree.constructTree(ccd, HeightSettingStrategy.One, false)));
+        assertEquals(expected, getClades(GreedyMRCTree.constructTree(ccd, HeightSettingStrategy.One, true)));
+    }
+
+    /* Greedy selection of the clades by decreasing count, checking each against all accepted clades */
+    private static Set<BitSet> computePairwiseGreedyClades(AbstractCCD ccd) {
+        List<Clade> sortedClades = ccd.getClades().stream().filter(x -> !x.isLeaf()).filter(x -> !x.isRoot())
+                .sorted((x, y) -> Integer.compare(y.getNumberOfOccurrences(), x.getNumberOfOccurrences()))
+                .toList();
+
+        List<BitSet> accepted = new ArrayList<>();
+        for (Clade clade : sortedClades) {
+            boolean compatible = true;
+            for (BitSet other : accepted) {
+                if (BitSetUtil.intersectProperly(other, clade.getCladeInBits())) {
+                    compatible = false;
+                    break;
+                }
+            }
+            if (compatible) {
+                accepted.add(clade.getCladeInBits());
+            }
+        }
+        return new HashSet<>(accepted);
+    }
+
+    /* Returns the clades of the non-root inner vertices of the given tree */
+    private static Set<BitSet> getClades(Tree tree) {
+        Set<BitSet> clades = new HashSet<>();
+        BitSet rootClade = collectClades(tree.getRoot(), tree.getLeafNodeCount(), clades);
+        clades.remove(rootClade);
+        return clades;
+    }
+
+    /* Recursive helper method */
+    private static BitSet collectClades(Node vertex, int numLeaves, Set<BitSet> clades) {
+        BitSet cladeInBits = BitSet.newBitSet(numLeaves);
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+            return cladeInBits;
+        }
+        for (Node child : vertex.getChildren()) {
+            cladeInBits.or(collectClades(child, numLeaves, clades));
+        }
+        clades.add(cladeInBits);
+        return cladeInBits;
+    }
+
+    /* Helper method - returns the clade of the given taxa in the CCD, or null if it has none */
+    private static Clade getClade(AbstractCCD ccd, String... taxa) {
+        BitSet cladeInBits = BitSet.newBitSet(ccd.getSizeOfLeavesArray());
+        for (String taxon : taxa) {
+            cladeInBits.set(ccd.getTaxonTable().getIndex(taxon));
+        }
+        return ccd.getClade(cladeInBits);
+    }
+
+}
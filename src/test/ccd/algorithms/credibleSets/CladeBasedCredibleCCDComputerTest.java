@@ -0,0 +1,74 @@
+package test.ccd.algorithms.credibleSets;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.algorithms.credibleSets.CladeBasedCredibleCCDComputer;
+import ccd.algorithms.credibleSets.CredibleCCDComputer;
+import ccd.algorithms.credibleSets.CredibleSetType;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD0;
+import ccd.model.Clade;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the clade-based credible CCDs, in particular that updating the values of the partial CCD
+ * locally after a removal gives the same credible levels as recomputing them as a whole.
+ */
+public class CladeBasedCredibleCCDComputerTest {
+
+    // 6-taxon trees, each with a different number of copies
+    private static final String[] NEWICKS = {
+            "(((A:1,B:1):1,C:1):1,((D:1,E:1):1,F:1):1):0;",
+            "((A:1,(B:1,C:1):1):1,((D:1,E:1):1,F:1):1):0;",
+            "(((A:1,B:1):1,C:1):1,(D:1,(E:1,F:1):1):1):0;",
+            "((((A:1,B:1):1,C:1):1,D:1):1,(E:1,F:1):1):0;",
+            "(((A:1,C:1):1,B:1):1,((D:1,F:1):1,E:1):1):0;",
+            "((((A:1,B:1):1,(C:1,D:1):1):1,E:1):1,F:1):0;",
+            "((A:1,B:1):1,((C:1,D:1):1,(E:1,F:1):1):1):0;"
+    };
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+    }
+
+    @After
+    public void tearDown() {
+        CladeBasedCredibleCCDComputer.updateLocally = true;
+    }
+
+    @Test
+    public void testCladeProbability_localUpdatesMatchRecomputation() {
+        List<Tree> trees = new ArrayList<>();
+        for (int i = 0; i < NEWICKS.length; i++) {
+            for (int j = 0; j <= 2 * i; j++) {
+                trees.add(new TreeParser(NEWICKS[i], false, false, true, 1));
+            }
+        }
+        CCD0 ccd = new CCD0(trees, 0.0);
+
+        CladeBasedCredibleCCDComputer.updateLocally = true;
+        Map<Clade, Double> localLevels = CredibleCCDComputer
+                .getCredibleCCDComputer(ccd, CredibleSetType.CladeProbability).getCladeMinCredibility();
+        CladeBasedCredibleCCDComputer.updateLocally = false;
+        Map<Clade, Double> recomputedLevels = CredibleCCDComputer
+                .getCredibleCCDComputer(ccd, CredibleSetType.CladeProbability).getCladeMinCredibility();
+
+        assertEquals(ccd.getNumberOfClades(), recomputedLevels.size());
+        assertEquals(recomputedLevels.size(), localLevels.size());
+        for (Clade clade : ccd.getClades()) {
+            assertNotNull(localLevels.get(clade));
+            assertEquals("Credible level of clade " + clade, recomputedLevels.get(clade), localLevels.get(clade), 1e-9);
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package test.ccd.algorithms.credibleSets;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import ccd.algorithms.credibleSets.CredibleCCDComputer;
+import ccd.algorithms.credibleSets.CredibleSetType;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+import ccd.model.bitsets.BitSet;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTrees;
+
+/**
+ * Tests for the credible levels of trees computed by the partition probability based credible CCD
+ * against the credible levels looked up clade by clade in the CCD.
+ */
+public class PartitionProbabilityCredibleCCDComputerTest {
+
+    private static final String[] TAXA = TreeTestUtil.SEVEN_TAXA;
+
+    private Random random;
+    private CCD1 ccd;
+    private CredibleCCDComputer credibleSet;
+    private List<Tree> queryTrees;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        random = new Random(13);
+
+        List<Tree> trees = new ArrayList<>(randomTrees(TAXA, 30, random));
+        for (int i = 0; i < 20; i++) {
+            trees.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+            trees.add(parseNewick("((((A:1,B:1):1,C:1):1,D:1):1,((E:1,F:1):1,G:1):1):0;"));
+        }
+        ccd = new CCD1(trees, 0.0);
+        credibleSet = CredibleCCDComputer.getCredibleCCDComputer(ccd, CredibleSetType.PartitionProbability);
+
+        // trees of the CCD, including ones not among the base trees, and trees (mostly) not in it
+        queryTrees = new ArrayList<>(trees);
+        for (int i = 0; i < 50; i++) {
+            queryTrees.add(ccd.sampleTree());
+        }
+        queryTrees.addAll(randomTrees(TAXA, 50, random));
+    }
+
+    @Test
+    public void testCredibleLevelsMatchLookup() {
+        int numInCCD = 0;
+        int numNotInCCD = 0;
+        for (Tree tree : queryTrees) {
+            double expected = getCredibleLevelByLookup(tree);
+            assertEquals(expected, credibleSet.getCredibleLevel(tree), 0);
+            if (expected > 0) {
+                numInCCD++;
+            } else {
+                numNotInCCD++;
+            }
+        }
+        assertTrue(numInCCD > 50);
+        assertTrue(numNotInCCD > 10);
+    }
+
+    @Test
+    public void testCredibleLevelsOfConcurrentQueries() {
+        double[] expected = new double[queryTrees.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = getCredibleLevelByLookup(queryTrees.get(i));
+        }
+
+        // each thread has its own query context
+        for (int round = 0; round < 5; round++) {
+            double[] actual = new double[queryTrees.size()];
+            IntStream.range(0, actual.length).parallel()
+                    .forEach(i -> actual[i] = credibleSet.getCredibleLevel(queryTrees.get(i)));
+            assertArrayEquals(expected, actual, 0);
+        }
+    }
+
+    /* Credible level of the given tree, i.e. the maximum credible level of its clade partitions,
+     * or -1 if the tree is not in the CCD */
+    private double getCredibleLevelByLookup(Tree tree) {
+        double[] credibleLevel = new double[]{Double.NEGATIVE_INFINITY};
+        getCredibleLevelByLookup(tree.getRoot(), credibleLevel, credibleSet.getPartitionMinCredibility());
+        return (credibleLevel[0] <= 0) ? -1 : credibleLevel[0];
+    }
+
+    /* Recursive helper method */
+    private BitSet getCredibleLevelByLookup(Node vertex, double[] credibleLevel, Map<CladePartition, Double> levels) {
+        BitSet cladeInBits = BitSet.newBitSet(ccd.getSizeOfLeavesArray());
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+            return cladeInBits;
+        }
+
+        BitSet leftInBits = getCredibleLevelByLookup(vertex.getLeft(), credibleLevel, levels);
+        BitSet rightInBits = getCredibleLevelByLookup(vertex.getRight(), credibleLevel, levels);
+        cladeInBits.or(leftInBits);
+        cladeInBits.or(rightInBits);
+
+        Clade left = ccd.getClade(leftInBits);
+        Clade right = ccd.getClade(rightInBits);
+        Clade parent = ccd.getClade(cladeInBits);
+        CladePartition partition = ((left == null) || (right == null) || (parent == null))
+                ? null : parent.getCladePartition(left, right);
+        if (partition == null) {
+            credibleLevel[0] = 0;
+        } else if (credibleLevel[0] != 0) {
+            credibleLevel[0] = Math.max(credibleLevel[0], levels.get(partition));
+        }
+        return cladeInBits;
+    }
+
+}
@@ -0,0 +1,95 @@
+package test.ccd.algorithms.credibleSets;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.algorithms.credibleSets.ProbabilityBasedCredibleSetComputer;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the exactly computed thresholds of the {@link ProbabilityBasedCredibleSetComputer}.
+ */
+public class ProbabilityBasedCredibleSetComputerTest {
+
+    /*
+     * The CCD1 on these trees has root partitions {AB|CD} and {ABC|D} with CCP 1/2 each
+     * and partitions {AB|C} and {AC|B} of {A,B,C} with CCP 3/4 and 1/4,
+     * so it contains the three trees below with probabilities 1/2, 3/8 and 1/8.
+     */
+    private static final String FIRST_TREE = "((A:1,B:1):1,(C:1,D:1):1):0;";
+    private static final String SECOND_TREE = "(((A:1,B:1):1,C:1):1,D:1):0;";
+    private static final String THIRD_TREE = "(((A:1,C:1):1,B:1):1,D:1):0;";
+
+    private CCD1 ccd;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        List<Tree> trees = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            trees.add(parseNewick(FIRST_TREE));
+        }
+        for (int i = 0; i < 3; i++) {
+            trees.add(parseNewick(SECOND_TREE));
+        }
+        trees.add(parseNewick(THIRD_TREE));
+        ccd = new CCD1(trees, 0.0);
+    }
+
+    private Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    @Test
+    public void testExactThresholds() {
+        ProbabilityBasedCredibleSetComputer credibleSet = new ProbabilityBasedCredibleSetComputer(ccd, 1000, 4, 10);
+
+        assertTrue(credibleSet.isExact());
+        // cumulative probabilities are 1/2, 7/8 and 1
+        assertEquals(1, credibleSet.getNumberOfTreesInCredibleSet(0.25));
+        assertEquals(1, credibleSet.getNumberOfTreesInCredibleSet(0.5));
+        assertEquals(2, credibleSet.getNumberOfTreesInCredibleSet(0.75));
+        assertEquals(-1, credibleSet.getNumberOfTreesInCredibleSet(1.0));
+        assertEquals(Math.log(0.5), credibleSet.getLogProbabilityThreshold(0.25), 1e-12);
+        assertEquals(Math.log(0.5), credibleSet.getLogProbabilityThreshold(0.5), 1e-12);
+        assertEquals(Math.log(0.375), credibleSet.getLogProbabilityThreshold(0.75), 1e-12);
+    }
+
+    @Test
+    public void testExactCredibleLevels() {
+        ProbabilityBasedCredibleSetComputer credibleSet = new ProbabilityBasedCredibleSetComputer(ccd, 1000, 4, 10);
+
+        // a tree that completes a credible level lies in the credible set of that level
+        assertEquals(0.25, credibleSet.getCredibleLevel(parseNewick(FIRST_TREE)), 1e-12);
+        assertEquals(0.75, credibleSet.getCredibleLevel(parseNewick(SECOND_TREE)), 1e-12);
+        assertEquals(1.0, credibleSet.getCredibleLevel(parseNewick(THIRD_TREE)), 1e-12);
+        assertEquals(-1, credibleSet.getCredibleLevel(parseNewick("((A:1,C:1):1,(B:1,D:1):1):0;")), 1e-12);
+    }
+
+    @Test
+    public void testPartiallyExactThresholds() {
+        // the most probable tree only reaches the credible levels 0.25 and 0.5
+        ProbabilityBasedCredibleSetComputer credibleSet = new ProbabilityBasedCredibleSetComputer(ccd, 10000, 4, 1);
+
+        assertFalse(credibleSet.isExact());
+        assertEquals(0.5, credibleSet.getHighestExactCredibleLevel(), 1e-12);
+        assertEquals(1, credibleSet.getNumberOfTreesInCredibleSet(0.25));
+        assertEquals(1, credibleSet.getNumberOfTreesInCredibleSet(0.5));
+        assertEquals(-1, credibleSet.getNumberOfTreesInCredibleSet(0.75));
+        assertEquals(Math.log(0.5), credibleSet.getLogProbabilityThreshold(0.5), 1e-12);
+
+        assertEquals(0.25, credibleSet.getCredibleLevel(parseNewick(FIRST_TREE)), 1e-12);
+        // the sampled threshold of level 0.75 is the log probability of the second tree (with high probability)
+        assertEquals(Math.log(0.375), credibleSet.getLogProbabilityThreshold(0.75), 1e-12);
+        assertEquals(1.0, credibleSet.getCredibleLevel(parseNewick(THIRD_TREE)), 1e-12);
+    }
+
+}
@@ -0,0 +1,85 @@
+package test.ccd.algorithms.credibleSets;
+
+import ccd.algorithms.credibleSets.QuantileSketch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the rank error of the {@link QuantileSketch} against the sorted stream.
+ */
+public class QuantileSketchTest {
+
+    private static final double[] FRACTIONS = {0.0, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 1.0};
+
+    @Test
+    public void testSmallStreamIsExact() {
+        QuantileSketch sketch = new QuantileSketch(64, new Random(1));
+        double[] values = new Random(2).doubles(50).toArray();
+        for (double value : values) {
+            sketch.update(value);
+        }
+        Arrays.sort(values);
+
+        double[] quantiles = sketch.getQuantiles(new double[]{0.0, 0.5, 1.0});
+        assertEquals(values[0], quantiles[0], 0);
+        assertEquals(values[24], quantiles[1], 0);
+        assertEquals(values[49], quantiles[2], 0);
+    }
+
+    @Test
+    public void testRankError() {
+        Random random = new Random(3);
+        double[] values = random.doubles(200000).map(x -> -Math.log(x)).toArray();
+
+        for (int k : new int[]{128, QuantileSketch.DEFAULT_K}) {
+            QuantileSketch sketch = new QuantileSketch(k, new Random(random.nextLong()));
+            for (double value : values) {
+                sketch.update(value);
+            }
+            assertEquals(values.length, sketch.getCount());
+            assertRankErrorAtMost(values, sketch, 2.0 / k);
+        }
+    }
+
+    @Test
+    public void testMergedRankError() {
+        Random random = new Random(4);
+        int k = 128;
+        double[] values = random.doubles(200000).map(x -> x * x).toArray();
+
+        // sketches of different sizes, so that they have different numbers of levels
+        QuantileSketch merged = new QuantileSketch(k, new Random(random.nextLong()));
+        int start = 0;
+        for (int numValues : new int[]{100, 1000, 40000, 8900, 150000}) {
+            QuantileSketch sketch = new QuantileSketch(k, new Random(random.nextLong()));
+            for (int i = start; i < start + numValues; i++) {
+                sketch.update(values[i]);
+            }
+            start += numValues;
+            merged.merge(sketch);
+        }
+
+        assertEquals(values.length, start);
+        assertEquals(values.length, merged.getCount());
+        assertRankErrorAtMost(values, merged, 2.0 / k);
+    }
+
+    /* Asserts that the rank of each quantile in the sorted values is at most the given fraction off */
+    private static void assertRankErrorAtMost(double[] values, QuantileSketch sketch, double maxError) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double[] quantiles = sketch.getQuantiles(FRACTIONS);
+        for (int j = 0; j < FRACTIONS.length; j++) {
+            int index = Arrays.binarySearch(sorted, quantiles[j]);
+            assertTrue("quantile should be a value of the stream", index >= 0);
+            double rank = (index + 1) / (double) sorted.length;
+            assertEquals("rank of quantile at " + FRACTIONS[j], FRACTIONS[j], rank, maxError);
+        }
+    }
+
+}
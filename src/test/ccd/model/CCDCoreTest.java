@@ -6,14 +6,22 @@ import ccd.model.AbstractCCD;
 import ccd.model.CCD0;
 import ccd.model.CCD1;
 import ccd.model.CCD2;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+import ccd.model.ExpansionBudget;
 import ccd.model.HeightSettingStrategy;
+import ccd.model.MonophyleticBlock;
+import ccd.model.SlidingWindowCCD;
+import ccd.model.WrappedBeastTree;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -199,6 +207,30 @@ public class CCDCoreTest {
         assertTrue("Sum of observed tree probabilities should be substantial", sum > 0.5);
     }
 
+    @Test
+    public void testCCD1_slidingWindowMatchesRebuiltCCD() {
+        SlidingWindowCCD window = new SlidingWindowCCD(5, 4);
+        for (int i = 0; i < mixedTrees.size(); i++) {
+            window.addTree(mixedTrees.get(i));
+            // query after each tree, so that cached values have to be updated
+            CCD1 rebuilt = new CCD1(mixedTrees.subList(Math.max(0, i - 3), i + 1), 0.0);
+
+            assertEquals(rebuilt.getNumberOfBaseTrees(), window.getNumberOfTrees());
+            assertEquals(rebuilt.getNumberOfClades(), window.getCCD().getNumberOfClades());
+            assertEquals(rebuilt.getEntropyLewis(), window.getEntropy(), 1e-9);
+            assertEquals(rebuilt.getMaxLogTreeProbability(), window.getMaxLogTreeProbability(), 1e-9);
+            assertEquals(rebuilt.getProbabilityOfTree(t2), window.getCCD().getProbabilityOfTree(t2), 1e-9);
+            for (Clade clade : rebuilt.getClades()) {
+                assertEquals(rebuilt.getCladeProbability(clade.getCladeInBits()),
+                        window.getCladeProbability(clade.getCladeInBits()), 1e-9);
+            }
+        }
+
+        window.discardOldestTrees(2);
+        CCD1 rebuilt = new CCD1(mixedTrees.subList(8, 10), 0.0);
+        assertEquals(rebuilt.getEntropyLewis(), window.getEntropy(), 1e-9);
+    }
+
     // ======================== CCD0 Tests ========================
 
     @Test
@@ -291,6 +323,125 @@ public class CCDCoreTest {
         assertTrue("Probability should be non-negative", prob >= 0);
     }
 
+    @Test
+    public void testCCD0_blockDecompositionMatchesFullExpansion() {
+        // clades {A,B,C} and {D,E,F} are in all trees, so the CCD0 decomposes into three blocks
+        List<Tree> trees = new ArrayList<>();
+        trees.addAll(nCopies("((A:1,(B:1,C:1):1):1,(D:1,(E:1,F:1):1):1):0;", 3));
+        trees.addAll(nCopies("(((A:1,B:1):1,C:1):1,((D:1,E:1):1,F:1):1):0;", 2));
+        trees.addAll(nCopies("((A:1,(B:1,C:1):1):1,((D:1,E:1):1,F:1):1):0;", 1));
+
+        CCD0 full = new CCD0(trees, 0.0);
+        CCD0 blocks = new CCD0(6, false);
+        blocks.setToUseBlockDecomposition();
+        for (Tree tree : trees) {
+            blocks.addTree(tree);
+        }
+        blocks.initialize();
+
+        assertEquals(3, MonophyleticBlock.decompose(blocks).stream().mapToInt(List::size).sum());
+        assertEquals(full.getNumberOfCladePartitions(), blocks.getNumberOfCladePartitions());
+        assertEquals(4, blocks.getNumberOfTrees().intValue());
+        Tree unseen = parseNewick("(((A:1,B:1):1,C:1):1,(D:1,(E:1,F:1):1):1):0;");
+        assertEquals(full.getProbabilityOfTree(unseen), blocks.getProbabilityOfTree(unseen), 1e-9);
+        assertEquals(full.getProbabilityOfTree(full.getMAPTree()), blocks.getProbabilityOfTree(blocks.getMAPTree()), 1e-9);
+    }
+
+    @Test
+    public void testCCD0_blockDecompositionWithLargeBlocks() {
+        // with the unseen tree, no non-trivial clade is in all trees, so the root block contains
+        // all clades and the standard expand step is used; for the larger tree set, clade {A,...,E}
+        // is in all trees and its block is expanded with candidate child clades of different sizes
+        List<Tree> withUnseen = new ArrayList<>(mixedTrees);
+        withUnseen.add(unseenTree);
+        List<Tree> trees = new ArrayList<>();
+        trees.addAll(nCopies("(((A:1,(B:1,C:1):1):1,(D:1,E:1):1):1,((F:1,G:1):1,H:1):1):0;", 2));
+        trees.addAll(nCopies("(((((A:1,B:1):1,C:1):1,D:1):1,E:1):1,(F:1,(G:1,H:1):1):1):0;", 1));
+        trees.addAll(nCopies("(((((B:1,C:1):1,A:1):1,E:1):1,D:1):1,((F:1,H:1):1,G:1):1):0;", 1));
+        trees.addAll(nCopies("((((A:1,E:1):1,(B:1,C:1):1):1,D:1):1,((F:1,G:1):1,H:1):1):0;", 1));
+
+        for (List<Tree> treeSet : List.of(withUnseen, trees)) {
+            CCD0 full = new CCD0(treeSet, 0.0);
+            CCD0 blocks = new CCD0(treeSet.get(0).getLeafNodeCount(), false);
+            blocks.setToUseBlockDecomposition();
+            for (Tree tree : treeSet) {
+                blocks.addTree(tree);
+            }
+            blocks.initialize();
+
+            assertEquals(full.getNumberOfCladePartitions(), blocks.getNumberOfCladePartitions());
+            for (Clade clade : full.getClades()) {
+                assertEquals(full.getCladeProbability(clade.getCladeInBits()),
+                        blocks.getCladeProbability(clade.getCladeInBits()), 1e-9);
+            }
+            assertEquals(full.getProbabilityOfTree(full.getMAPTree()), blocks.getProbabilityOfTree(blocks.getMAPTree()), 1e-9);
+        }
+    }
+
+    @Test
+    public void testCCD0_generousBudgetMatchesUnbudgetedExpansion() {
+        // clade {A,...,E} is in all trees and occurs more often than its descendants,
+        // so with a budget it is processed before them
+        List<Tree> trees = getExpandableTrees();
+        CCD0 full = new CCD0(trees, 0.0);
+        assertTrue(full.getNumberOfCladePartitions() > new CCD1(trees, 0.0).getNumberOfCladePartitions());
+
+        for (boolean useMonophyleticCladeSpeedup : new boolean[]{false, true}) {
+            CCD0 budgeted = new CCD0(8, false);
+            if (useMonophyleticCladeSpeedup) {
+                budgeted.setToUseMonophyleticCladeSpeedup();
+            }
+            ExpansionBudget budget = new ExpansionBudget(0, 1000000, 0);
+            budgeted.setExpansionBudget(budget);
+            for (Tree tree : trees) {
+                budgeted.addTree(tree);
+            }
+            budgeted.initialize();
+
+            assertTrue(budget.isComplete());
+            assertEquals(full.getNumberOfClades(), budgeted.getNumberOfClades());
+            assertEquals(full.getNumberOfCladePartitions(), budgeted.getNumberOfCladePartitions());
+            for (Clade clade : full.getClades()) {
+                assertEquals(clade.getNumberOfPartitions(),
+                        budgeted.getClade(clade.getCladeInBits()).getNumberOfPartitions());
+            }
+        }
+    }
+
+    @Test
+    public void testCCD0_budgetStopsWithinClade() {
+        List<Tree> trees = getExpandableTrees();
+        CCD0 unbudgeted = new CCD0(trees, 0.0);
+        CCD0 budgeted = new CCD0(8, false);
+        ExpansionBudget budget = new ExpansionBudget(0, 1, 0);
+        budgeted.setExpansionBudget(budget);
+        for (Tree tree : trees) {
+            budgeted.addTree(tree);
+        }
+        budgeted.initialize();
+
+        // the full expansion adds several clade partitions, but the budget only allows one
+        int numObservedPartitions = new CCD1(trees, 0.0).getNumberOfCladePartitions();
+        assertTrue(unbudgeted.getNumberOfCladePartitions() > numObservedPartitions + 1);
+        assertEquals(ExpansionBudget.Limit.Partitions, budget.getReachedLimit());
+        assertEquals(1, budget.getNumberOfAddedPartitions());
+        assertEquals(numObservedPartitions + 1, budgeted.getNumberOfCladePartitions());
+    }
+
+    /*
+     * Trees where the CCD0 expansion adds clade partitions {A,B,C | D} and {A | B,C,D}
+     * to the frequent clade {A,B,C,D} and {B | C,D} to clade {B,C,D}
+     */
+    private List<Tree> getExpandableTrees() {
+        List<Tree> trees = new ArrayList<>();
+        trees.add(parseNewick("(((A:1,(B:1,C:1):1):1,(D:1,E:1):1):1,((F:1,G:1):1,H:1):1):0;"));
+        trees.add(parseNewick("((((A:1,B:1):1,C:1):1,(D:1,E:1):1):1,(F:1,(G:1,H:1):1):1):0;"));
+        trees.add(parseNewick("((((B:1,C:1):1,D:1):1,(A:1,E:1):1):1,((F:1,G:1):1,H:1):1):0;"));
+        trees.addAll(nCopies("((((A:1,B:1):1,(C:1,D:1):1):1,E:1):1,((F:1,H:1):1,G:1):1):0;", 3));
+        trees.add(parseNewick("(((A:1,E:1):1,((B:1,C:1):1,D:1):1):1,((F:1,G:1):1,H:1):1):0;"));
+        return trees;
+    }
+
     // ======================== CCD2 Tests ========================
 
     @Test
@@ -417,4 +568,50 @@ public class CCDCoreTest {
         // CCD0 expands the graph and should have the most clades
         assertTrue("CCD0 should have >= CCD1 clades", c0 >= c1);
     }
+
+    @Test
+    public void testAllModels_closedFormLogLikelihoodMatchesTreeProbabilities() {
+        List<AbstractCCD> ccds = List.of(new CCD0(mixedTrees, 0.0), new CCD1(mixedTrees, 0.0), new CCD2(mixedTrees, 0.0));
+
+        for (AbstractCCD ccd : ccds) {
+            double logL = 0;
+            for (Tree tree : mixedTrees) {
+                assertEquals(Math.log(ccd.getProbabilityOfTree(tree)), ccd.getLogProbabilityOfTree(tree), 1e-9);
+                logL += ccd.getLogProbabilityOfTree(tree);
+            }
+            assertEquals("Closed-form log likelihood of " + ccd, logL, ccd.getLogLikelihood(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testCCD1andCCD2_expectedRFDistancesMatchRecursion() {
+        List<AbstractCCD> ccds = List.of(new CCD1(mixedTrees, 0.0), new CCD2(mixedTrees, 0.0));
+        List<Tree> queryTrees = List.of(t1, t2, t3, unseenTree);
+
+        for (AbstractCCD ccd : ccds) {
+            double[] distances = ccd.expectedRFDistances(queryTrees);
+            for (int i = 0; i < queryTrees.size(); i++) {
+                double expected = expectedRFDistance(ccd.getRootClade(), new WrappedBeastTree(queryTrees.get(i)), new HashMap<>());
+                assertEquals("Expected RF distance in " + ccd, expected, distances[i], 1e-9);
+                assertEquals(expected, ccd.expectedRFDistances(queryTrees.get(i)), 1e-9);
+            }
+        }
+    }
+
+    /* Reference recursion over the clade partitions for the expected RF distance */
+    private double expectedRFDistance(Clade clade, WrappedBeastTree tree, Map<Clade, Double> cladeRFs) {
+        if (clade.isLeaf()) {
+            return 0;
+        }
+        if (cladeRFs.containsKey(clade)) {
+            return cladeRFs.get(clade);
+        }
+        double cladeRF = tree.containsClade(clade.getCladeInBits()) ? 0 : 1;
+        for (CladePartition partition : clade.getPartitions()) {
+            cladeRF += partition.getCCP() * (expectedRFDistance(partition.getChildClades()[0], tree, cladeRFs)
+                    + expectedRFDistance(partition.getChildClades()[1], tree, cladeRFs));
+        }
+        cladeRFs.put(clade, cladeRF);
+        return cladeRF;
+    }
 }
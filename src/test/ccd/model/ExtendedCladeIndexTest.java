@@ -0,0 +1,148 @@
+package test.ccd.model;
+
+import ccd.model.AbstractCCD;
+import ccd.model.CCD2;
+import ccd.model.Clade;
+import ccd.model.ExtendedClade;
+import ccd.model.bitsets.BitSet;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.randomTree;
+
+/**
+ * Tests for the index of the extended clades of a {@link CCD2}, through the CCD2:
+ * lookups by clade and sibling ({@link CCD2#getExtendedClade(BitSet, BitSet)}),
+ * the lists of extended clades on the same clade (summed up by {@link CCD2#getCladeProbability(BitSet)}),
+ * and size, iteration and removal of {@link CCD2#getClades()}.
+ *
+ * <p>
+ * Random trees on eight taxa give many extended clades on the same clade with different siblings,
+ * so that probe runs in the hash tables collide, and more than the initial capacity of the index,
+ * so that it is rehashed while trees are added.
+ * </p>
+ */
+public class ExtendedCladeIndexTest {
+
+    private static final String[] TAXA = TreeTestUtil.EIGHT_TAXA;
+
+    private Random random;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        random = new Random(42);
+    }
+
+    @Test
+    public void testConsistentAcrossRehash() {
+        CCD2 ccd = new CCD2(TAXA.length, false);
+        for (int i = 0; i < 5; i++) {
+            ccd.addTree(randomTree(TAXA, random));
+        }
+        int sizeBefore = ccd.getClades().size();
+        assertConsistent(ccd, getExtendedClades(ccd));
+
+        // the index starts with capacity for 10 * 8 extended clades, so it has to grow
+        for (int i = 0; i < 100; i++) {
+            ccd.addTree(randomTree(TAXA, random));
+        }
+        List<ExtendedClade> extendedClades = getExtendedClades(ccd);
+        assertTrue(extendedClades.size() > 4 * sizeBefore);
+        assertTrue(extendedClades.size() > 2 * 10 * TAXA.length);
+        assertConsistent(ccd, extendedClades);
+    }
+
+    @Test
+    public void testRemoveFromListsOfSameClade() {
+        CCD2 ccd = new CCD2(TAXA.length, false);
+        for (int i = 0; i < 60; i++) {
+            ccd.addTree(randomTree(TAXA, random));
+        }
+
+        // remove all extended clades of the clades with at least three of them in random order,
+        // so heads, middles and tails of their lists are removed
+        Map<BitSet, List<ExtendedClade>> byClade = groupByClade(getExtendedClades(ccd));
+        List<ExtendedClade> toRemove = new ArrayList<>();
+        for (List<ExtendedClade> sameClade : byClade.values()) {
+            if (sameClade.size() >= 3) {
+                toRemove.addAll(sameClade);
+            }
+        }
+        assertTrue(toRemove.size() > 10);
+        Collections.shuffle(toRemove, random);
+
+        List<ExtendedClade> remaining = getExtendedClades(ccd);
+        for (ExtendedClade clade : toRemove) {
+            int size = ccd.getClades().size();
+            assertTrue(ccd.getClades().remove(clade));
+            assertFalse(ccd.getClades().remove(clade));
+            remaining.removeIf(other -> other == clade);
+
+            assertEquals(size - 1, ccd.getClades().size());
+            assertFalse(ccd.getClades().contains(clade));
+            assertNull(ccd.getExtendedClade(clade.getCladeInBits(), clade.getSibling().getCladeInBits()));
+            assertConsistent(ccd, remaining);
+        }
+    }
+
+    /* Asserts that the CCD2 contains exactly the given extended clades (and the root and leaves) */
+    private void assertConsistent(CCD2 ccd, List<ExtendedClade> expected) {
+        assertEquals(expected.size() + TAXA.length + 1, ccd.getClades().size());
+
+        // iteration returns each extended clade once
+        Map<Clade, Boolean> iterated = new IdentityHashMap<>();
+        for (Clade clade : ccd.getClades()) {
+            assertNull("clade iterated twice", iterated.put(clade, true));
+        }
+        assertEquals(ccd.getClades().size(), iterated.size());
+
+        for (ExtendedClade clade : expected) {
+            assertTrue(iterated.containsKey(clade));
+            assertTrue(ccd.getClades().contains(clade));
+            assertSame(clade, ccd.getExtendedClade(clade.getCladeInBits(), clade.getSibling().getCladeInBits()));
+        }
+
+        // the list of extended clades on the same clade contains exactly those
+        for (Map.Entry<BitSet, List<ExtendedClade>> entry : groupByClade(expected).entrySet()) {
+            // (computes the probabilities if needed)
+            double probability = ccd.getCladeProbability(entry.getKey());
+            double sum = 0;
+            for (ExtendedClade clade : entry.getValue()) {
+                sum += clade.getProbability();
+            }
+            assertEquals(sum, probability, 1e-12);
+        }
+    }
+
+    /* Returns the extended clades of the given CCD2 other than the root and leaves */
+    private static List<ExtendedClade> getExtendedClades(CCD2 ccd) {
+        List<ExtendedClade> extendedClades = new ArrayList<>();
+        for (Clade clade : ccd.getClades()) {
+            if (!clade.isLeaf() && (clade != ccd.getRootClade())) {
+                extendedClades.add((ExtendedClade) clade);
+            }
+        }
+        return extendedClades;
+    }
+
+    private static Map<BitSet, List<ExtendedClade>> groupByClade(List<ExtendedClade> extendedClades) {
+        Map<BitSet, List<ExtendedClade>> byClade = new HashMap<>();
+        for (ExtendedClade clade : extendedClades) {
+            byClade.computeIfAbsent(clade.getCladeInBits(), k -> new ArrayList<>()).add(clade);
+        }
+        return byClade;
+    }
+
+}
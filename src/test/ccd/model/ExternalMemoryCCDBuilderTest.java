@@ -0,0 +1,128 @@
+package test.ccd.model;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD0;
+import ccd.model.CCD1;
+import ccd.model.CCDType;
+import ccd.model.Clade;
+import ccd.model.CladePartition;
+import ccd.model.ExternalMemoryCCDBuilder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for building CCDs with the {@link ExternalMemoryCCDBuilder}.
+ *
+ * Uses 5-taxon trees with three topologies at known frequencies:
+ *   T1: ((A,(B,C)),(D,E))  — 6 copies (0.6)
+ *   T2: ((((A,B),C),D),E)  — 2 copies (0.2)
+ *   T3: ((((B,C),A),E),D)  — 2 copies (0.2)
+ * where the branch lengths differ between copies, so that mean heights are not trivial.
+ */
+public class ExternalMemoryCCDBuilderTest {
+
+    private static final String T1_NEWICK = "((A:1,(B:1,C:1):1):1,(D:1,E:1):1):0;";
+    private static final String T2_NEWICK = "((((A:1,B:1):1,C:1):1,D:1):1,E:1):0;";
+    private static final String T3_NEWICK = "((((B:1,C:1):1,A:1):1,E:1):1,D:1):0;";
+
+    private List<Tree> trees;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+
+        trees = new ArrayList<>();
+        String[] newicks = {T1_NEWICK, T2_NEWICK, T1_NEWICK, T3_NEWICK, T1_NEWICK,
+                T1_NEWICK, T2_NEWICK, T1_NEWICK, T3_NEWICK, T1_NEWICK};
+        for (int i = 0; i < newicks.length; i++) {
+            trees.add(parseNewick(newicks[i].replace(":1", ":" + (1 + 0.1 * i))));
+        }
+    }
+
+    private Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    /* Builds the CCD of the given type with a tiny memory limit, asserting that several runs are written */
+    private AbstractCCD buildWithSeveralRuns(CCDType ccdType, double minCladeSupport) throws IOException {
+        try (ExternalMemoryCCDBuilder builder = new ExternalMemoryCCDBuilder(5, 3, null)) {
+            for (Tree tree : trees) {
+                builder.addTree(tree);
+            }
+            assertTrue(builder.getNumberOfRuns() > 1);
+            return builder.build(ccdType, minCladeSupport);
+        }
+    }
+
+    @Test
+    public void testCCD1_matchesDirectlyBuiltCCD1() throws IOException {
+        AbstractCCD expected = new CCD1(trees, 0.0);
+        AbstractCCD actual = buildWithSeveralRuns(CCDType.CCD1, 0);
+
+        assertSameCCD(expected, actual);
+    }
+
+    @Test
+    public void testCCD0_matchesDirectlyBuiltCCD0() throws IOException {
+        AbstractCCD expected = new CCD0(trees, 0.0);
+        AbstractCCD actual = buildWithSeveralRuns(CCDType.CCD0, 0);
+        // expands the CCD0 graph
+        actual.getMAPTree();
+
+        assertSameCCD(expected, actual);
+        assertEquals(expected.getProbabilityOfTree(expected.getMAPTree()),
+                actual.getProbabilityOfTree(actual.getMAPTree()), 1e-9);
+    }
+
+    @Test
+    public void testCCD1_minCladeSupportRenormalizes() throws IOException {
+        // with support at least 0.3, only clades {B,C} (0.8), {A,B,C} (1.0), {D,E} (0.6) and the root
+        // (and the leaves) are loaded, so the root keeps only partition {A,B,C | D,E}
+        // and {A,B,C} only partition {A | B,C}, both renormalized to CCP 1
+        AbstractCCD ccd = buildWithSeveralRuns(CCDType.CCD1, 0.3);
+
+        assertEquals(9, ccd.getNumberOfClades());
+        assertEquals(4, ccd.getNumberOfCladePartitions());
+        for (Clade clade : ccd.getClades()) {
+            if (!clade.isLeaf()) {
+                assertEquals(1, clade.getNumberOfPartitions());
+                assertEquals(1.0, clade.getPartitions().get(0).getCCP(), 1e-9);
+            }
+        }
+        assertEquals(6, ccd.getRootClade().getPartitions().get(0).getNumberOfOccurrences());
+        assertEquals(1.0, ccd.getProbabilityOfTree(parseNewick(T1_NEWICK)), 1e-9);
+        assertEquals(0.0, ccd.getProbabilityOfTree(parseNewick(T2_NEWICK)), 1e-9);
+    }
+
+    /* Asserts that both CCDs have the same clades and clade partitions with the same counts, heights and CCPs */
+    private static void assertSameCCD(AbstractCCD expected, AbstractCCD actual) {
+        assertEquals(expected.getNumberOfBaseTrees(), actual.getNumberOfBaseTrees());
+        assertEquals(expected.getNumberOfClades(), actual.getNumberOfClades());
+        assertEquals(expected.getNumberOfCladePartitions(), actual.getNumberOfCladePartitions());
+        for (Clade expectedClade : expected.getClades()) {
+            Clade actualClade = actual.getClade(expectedClade.getCladeInBits());
+            assertNotNull(actualClade);
+            assertEquals(expectedClade.getNumberOfOccurrences(), actualClade.getNumberOfOccurrences());
+            assertEquals(expectedClade.getMeanOccurredHeight(), actualClade.getMeanOccurredHeight(), 1e-9);
+            assertEquals(expectedClade.getNumberOfPartitions(), actualClade.getNumberOfPartitions());
+            for (CladePartition expectedPartition : expectedClade.getPartitions()) {
+                CladePartition actualPartition = actualClade.getCladePartition(
+                        actual.getClade(expectedPartition.getChildClades()[0].getCladeInBits()),
+                        actual.getClade(expectedPartition.getChildClades()[1].getCladeInBits()));
+                assertNotNull(actualPartition);
+                assertEquals(expectedPartition.getNumberOfOccurrences(), actualPartition.getNumberOfOccurrences());
+                assertEquals(expectedPartition.getCCP(), actualPartition.getCCP(), 1e-9);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,110 @@
+package test.ccd.model;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD0;
+import ccd.model.CCD1;
+import ccd.model.HeightSettingStrategy;
+import ccd.model.KBestTreeEnumerator;
+import ccd.model.WrappedBeastTree;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for enumerating the most probable trees of a CCD with the {@link KBestTreeEnumerator}.
+ */
+public class KBestTreeEnumeratorTest {
+
+    private List<Tree> fiveTaxonTrees;
+    private List<Tree> sevenTaxonTrees;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+
+        fiveTaxonTrees = new ArrayList<>();
+        fiveTaxonTrees.addAll(nCopies("((A:1,(B:1,C:1):1):1,(D:1,E:1):1):0;", 6));
+        fiveTaxonTrees.addAll(nCopies("((((A:1,B:1):1,C:1):1,D:1):1,E:1):0;", 2));
+        fiveTaxonTrees.addAll(nCopies("((((B:1,C:1):1,A:1):1,E:1):1,D:1):0;", 2));
+
+        // counts chosen such that the MAP tree of the CCD1 and the CCD0 is unique
+        sevenTaxonTrees = new ArrayList<>();
+        sevenTaxonTrees.addAll(nCopies("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;", 4));
+        sevenTaxonTrees.addAll(nCopies("((((A:1,B:1):1,C:1):1,D:1):1,(E:1,(F:1,G:1):1):1):0;", 3));
+        sevenTaxonTrees.addAll(nCopies("(((A:1,(B:1,C:1):1):1,D:1):1,((E:1,G:1):1,F:1):1):0;", 2));
+        sevenTaxonTrees.addAll(nCopies("((((A:1,B:1):1,(C:1,D:1):1):1,E:1):1,(F:1,G:1):1):0;", 2));
+        sevenTaxonTrees.addAll(nCopies("(((A:1,C:1):1,(B:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;", 2));
+    }
+
+    private Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    private List<Tree> nCopies(String newick, int n) {
+        List<Tree> trees = new ArrayList<>();
+        for (int i = 0; i < n; i++) trees.add(parseNewick(newick));
+        return trees;
+    }
+
+    private static double getLogProbability(Tree tree) {
+        return (Double) tree.getRoot().getMetaData(AbstractCCD.LOG_PROB_SUBTREE_KEY);
+    }
+
+    @Test
+    public void testFirstTreeIsMAPTree() {
+        for (AbstractCCD ccd : new AbstractCCD[]{new CCD1(sevenTaxonTrees, 0.0), new CCD0(sevenTaxonTrees, 0.0)}) {
+            Tree mapTree = ccd.getMAPTree();
+            KBestTreeEnumerator enumerator = new KBestTreeEnumerator(ccd, 10, HeightSettingStrategy.None);
+            Tree first = enumerator.next();
+
+            assertTrue(new WrappedBeastTree(mapTree).equals(new WrappedBeastTree(first)));
+            assertEquals(Math.log(ccd.getProbabilityOfTree(mapTree)), getLogProbability(first), 1e-9);
+            assertEquals(ccd.getMaxLogTreeProbability(), getLogProbability(first), 1e-9);
+        }
+    }
+
+    @Test
+    public void testLogProbabilitiesNonIncreasing() {
+        for (AbstractCCD ccd : new AbstractCCD[]{new CCD1(sevenTaxonTrees, 0.0), new CCD0(sevenTaxonTrees, 0.0)}) {
+            KBestTreeEnumerator enumerator = new KBestTreeEnumerator(ccd, 200, HeightSettingStrategy.None);
+            double previous = 0;
+            while (enumerator.hasNext()) {
+                Tree tree = enumerator.next();
+                double logProbability = getLogProbability(tree);
+                assertTrue(logProbability <= previous + 1e-12);
+                assertEquals(Math.log(ccd.getProbabilityOfTree(tree)), logProbability, 1e-9);
+                previous = logProbability;
+            }
+            assertEquals(Math.min(200, ccd.getNumberOfTrees().intValue()), enumerator.getNumberOfEnumeratedTrees());
+        }
+    }
+
+    @Test
+    public void testEnumeratesAllTrees() {
+        for (AbstractCCD ccd : new AbstractCCD[]{new CCD1(fiveTaxonTrees, 0.0), new CCD0(fiveTaxonTrees, 0.0)}) {
+            int numTrees = ccd.getNumberOfTrees().intValue();
+            List<Tree> trees = ccd.getKBestTrees(numTrees + 5, HeightSettingStrategy.None);
+            assertEquals(numTrees, trees.size());
+
+            double sum = 0;
+            List<WrappedBeastTree> seen = new ArrayList<>();
+            for (Tree tree : trees) {
+                sum += Math.exp(getLogProbability(tree));
+                WrappedBeastTree wrapped = new WrappedBeastTree(tree);
+                for (WrappedBeastTree other : seen) {
+                    assertFalse("trees should be distinct", wrapped.equals(other));
+                }
+                seen.add(wrapped);
+            }
+            assertEquals(1.0, sum, 1e-9);
+        }
+    }
+
+}
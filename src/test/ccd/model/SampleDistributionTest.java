@@ -0,0 +1,71 @@
+package test.ccd.model;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import ccd.model.SampleDistribution;
+import ccd.model.WrappedBeastTree;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for sampling trees from a {@link SampleDistribution}.
+ */
+public class SampleDistributionTest {
+
+    private static final String FREQUENT_NEWICK = "((A:1,B:1):1,(C:1,D:1):1):0;";
+    private static final String RARE_NEWICK = "(((A:1,B:1):1,C:1):1,D:1):0;";
+
+    private Tree parseNewick(String newick) {
+        return new TreeParser(newick, false, false, true, 1);
+    }
+
+    /* Sample distribution with three copies of the frequent tree and one of the rare tree */
+    private SampleDistribution createDistribution() {
+        SampleDistribution distribution = new SampleDistribution(4);
+        for (int i = 0; i < 3; i++) {
+            distribution.addTree(parseNewick(FREQUENT_NEWICK));
+        }
+        distribution.addTree(parseNewick(RARE_NEWICK));
+        distribution.setRandom(new Random(1));
+        return distribution;
+    }
+
+    @Test
+    public void testSampleTreeFrequencies() {
+        SampleDistribution distribution = createDistribution();
+        WrappedBeastTree rare = new WrappedBeastTree(parseNewick(RARE_NEWICK));
+
+        int numSamples = 10000;
+        int numRare = 0;
+        for (int i = 0; i < numSamples; i++) {
+            if (new WrappedBeastTree(distribution.sampleTree()).equals(rare)) {
+                numRare++;
+            }
+        }
+        assertEquals(0.25, numRare / (double) numSamples, 0.02);
+    }
+
+    @Test
+    public void testSampleTreeProbabilityFrequencies() {
+        SampleDistribution distribution = createDistribution();
+        Random random = new Random(2);
+
+        int numSamples = 10000;
+        int numRare = 0;
+        for (int i = 0; i < numSamples; i++) {
+            double probability = distribution.sampleTreeProbability();
+            double logProbability = distribution.sampleTreeLogProbability(random);
+            assertTrue((probability == 0.25) || (probability == 0.75));
+            assertTrue((logProbability == Math.log(0.25)) || (logProbability == Math.log(0.75)));
+            if (logProbability == Math.log(0.25)) {
+                numRare++;
+            }
+        }
+        assertEquals(0.25, numRare / (double) numSamples, 0.02);
+    }
+
+}
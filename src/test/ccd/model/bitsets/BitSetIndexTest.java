@@ -0,0 +1,110 @@
+package test.ccd.model.bitsets;
+
+import ccd.model.bitsets.BitSet;
+import ccd.model.bitsets.BitSetIndex;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for assigning and looking up dense indices of bitsets with a {@link BitSetIndex}.
+ */
+public class BitSetIndexTest {
+
+    /* Helper method - returns a new bitset of the given size with the given bits set */
+    private static BitSet bitsOf(int size, int... bits) {
+        BitSet bitSet = BitSet.newBitSet(size);
+        for (int bit : bits) {
+            bitSet.set(bit);
+        }
+        return bitSet;
+    }
+
+    /* Helper method - returns a copy of the given bitset */
+    private static BitSet copyOf(BitSet bits, int size) {
+        BitSet copy = BitSet.newBitSet(size);
+        copy.or(bits);
+        return copy;
+    }
+
+    @Test
+    public void testAddAndIndexOfAcrossRehash() {
+        // all bitsets on 10 bits, so many of them have similar hash codes;
+        // starting with a tiny index, the hash table is rehashed several times
+        int size = 10;
+        BitSetIndex index = new BitSetIndex(1);
+        List<BitSet> added = new ArrayList<>();
+        for (int value = 1; value < (1 << size); value++) {
+            BitSet bits = BitSet.newBitSet(size);
+            for (int bit = 0; bit < size; bit++) {
+                if ((value & (1 << bit)) != 0) {
+                    bits.set(bit);
+                }
+            }
+            assertEquals(-1, index.indexOf(bits));
+            assertEquals(added.size(), index.add(bits));
+            added.add(bits);
+
+            // earlier bitsets keep their indices
+            if (Integer.bitCount(value) == 1) {
+                for (int i = 0; i < added.size(); i++) {
+                    assertEquals(i, index.indexOf(copyOf(added.get(i), size)));
+                }
+            }
+        }
+
+        assertEquals(added.size(), index.size());
+        for (int i = 0; i < added.size(); i++) {
+            // looked up by an equal bitset, not only the added instance
+            assertEquals(i, index.indexOf(copyOf(added.get(i), size)));
+            assertSame(added.get(i), index.get(i));
+        }
+        assertEquals(-1, index.indexOf(BitSet.newBitSet(size)));
+    }
+
+    @Test
+    public void testAddContainedReturnsIndex() {
+        int size = 70;
+        BitSetIndex index = new BitSetIndex(4);
+        assertEquals(0, index.add(bitsOf(size, 0, 1)));
+        assertEquals(1, index.add(bitsOf(size, 64, 69)));
+        assertEquals(2, index.add(bitsOf(size, 0)));
+
+        // adding an equal bitset again does not change the index
+        assertEquals(1, index.add(bitsOf(size, 64, 69)));
+        assertEquals(0, index.add(bitsOf(size, 0, 1)));
+        assertEquals(3, index.size());
+        assertEquals(-1, index.indexOf(bitsOf(size, 1)));
+    }
+
+    @Test
+    public void testRandomBitSets() {
+        int size = 200;
+        Random random = new Random(1);
+        BitSetIndex index = new BitSetIndex(16);
+        List<BitSet> added = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            BitSet bits = BitSet.newBitSet(size);
+            for (int j = 0; j < 4; j++) {
+                bits.set(random.nextInt(size));
+            }
+            int expected = added.indexOf(bits);
+            if (expected < 0) {
+                expected = added.size();
+                added.add(bits);
+            }
+            assertEquals(expected, index.add(bits));
+        }
+
+        assertEquals(added.size(), index.size());
+        for (int i = 0; i < added.size(); i++) {
+            assertEquals(i, index.indexOf(copyOf(added.get(i), size)));
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package test.ccd.tools;
+
+import beast.base.evolution.tree.Tree;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD0;
+import ccd.model.CCDType;
+import ccd.tools.CCDToolUtil;
+import ccd.tools.EntropyCalculator;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTrees;
+
+/**
+ * Tests for the entropy trace of the {@link EntropyCalculator}
+ * against the entropy computed for the trees up to each trace point without tracing.
+ */
+public class EntropyCalculatorTest {
+
+    private static final String[] TAXA = TreeTestUtil.SEVEN_TAXA;
+
+    private List<Tree> trees;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+
+        // a frequent tree, so that clades have different CCPs in the CCD1 and the CCD0, and random trees
+        trees = new ArrayList<>();
+        Random random = new Random(11);
+        for (Tree tree : randomTrees(TAXA, 20, random)) {
+            trees.add(tree);
+            trees.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+        }
+        trees.addAll(randomTrees(TAXA, 3, random));
+    }
+
+    @Test
+    public void testCCD0TraceMatchesCCD0() throws IOException {
+        List<String[]> rows = trace(CCDType.CCD0, 10);
+
+        // trace points every 10 trees and after the last tree
+        assertEquals(5, rows.size());
+        String[] lastRow = rows.get(rows.size() - 1);
+        assertEquals(trees.size(), Integer.parseInt(lastRow[0]));
+
+        CCD0 ccd = new CCD0(trees, 0.0);
+        assertEquals(ccd.getEntropy(), Double.parseDouble(lastRow[2]), 1e-9);
+        assertEquals(ccd.getNumberOfClades(), Integer.parseInt(lastRow[3]));
+        assertEquals(ccd.getNumberOfCladePartitions(), Integer.parseInt(lastRow[4]));
+    }
+
+    @Test
+    public void testTraceMatchesPlainMode() throws IOException {
+        for (CCDType ccdType : new CCDType[]{CCDType.CCD0, CCDType.CCD1, CCDType.CCD2}) {
+            for (String[] row : trace(ccdType, 7)) {
+                int numTrees = Integer.parseInt(row[0]);
+                assertEquals("trees", row[1]);
+
+                // as computed for a trees file without trace interval
+                AbstractCCD ccd = CCDToolUtil.getCCDTypeByName(
+                        TreeTestUtil.getTreeSet(trees.subList(0, numTrees)), ccdType);
+                assertEquals(ccdType + " entropy after " + numTrees + " trees",
+                        ccd.getEntropy(), Double.parseDouble(row[2]), 1e-9);
+                assertEquals(ccd.getNumberOfClades(), Integer.parseInt(row[3]));
+                assertEquals(ccd.getNumberOfCladePartitions(), Integer.parseInt(row[4]));
+            }
+        }
+    }
+
+    /* Helper method - returns the rows the trace prints for the trees */
+    private List<String[]> trace(CCDType ccdType, int traceInterval) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream trace = new PrintStream(out, true);
+        double entropy = EntropyCalculator.traceEntropy(
+                TreeTestUtil.getTreeSet(trees), ccdType, traceInterval, "trees", trace);
+
+        List<String[]> rows = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            rows.add(line.split("\t"));
+        }
+        assertEquals(entropy, Double.parseDouble(rows.get(rows.size() - 1)[2]), 0);
+        return rows;
+    }
+
+}
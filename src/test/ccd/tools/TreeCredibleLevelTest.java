@@ -0,0 +1,106 @@
+package test.ccd.tools;
+
+import beast.base.evolution.tree.Tree;
+import ccd.algorithms.credibleSets.CredibleCCDComputer;
+import ccd.algorithms.credibleSets.CredibleSetType;
+import ccd.algorithms.credibleSets.ICredibleSet;
+import ccd.algorithms.credibleSets.ProbabilityBasedCredibleSetComputer;
+import ccd.model.AbstractCCD;
+import ccd.model.CCD1;
+import ccd.tools.TreeCredibleLevel;
+import test.ccd.TreeTestUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static test.ccd.TreeTestUtil.parseNewick;
+import static test.ccd.TreeTestUtil.randomTrees;
+
+/**
+ * Tests for the batch mode of the {@link TreeCredibleLevel} tool
+ * against evaluating the trees one by one as for a single tree.
+ */
+public class TreeCredibleLevelTest {
+
+    private static final String[] TAXA = TreeTestUtil.SEVEN_TAXA;
+
+    private CCD1 ccd;
+    private List<Tree> testTrees;
+
+    @Before
+    public void setUp() {
+        AbstractCCD.verbose = false;
+        Random random = new Random(17);
+
+        List<Tree> trees = new ArrayList<>(randomTrees(TAXA, 30, random));
+        for (int i = 0; i < 30; i++) {
+            trees.add(parseNewick("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,G:1):1):0;"));
+        }
+        ccd = new CCD1(trees, 0.0);
+
+        // more trees than fit in the pending batches of two threads, in and (mostly) not in the CCD
+        testTrees = new ArrayList<>();
+        for (int i = 0; i < 900; i++) {
+            testTrees.add(ccd.sampleTree());
+        }
+        testTrees.addAll(randomTrees(TAXA, 400, random));
+    }
+
+    @Test
+    public void testBatchMatchesSingleTrees() throws IOException {
+        ICredibleSet[] credibleSets = new ICredibleSet[]{
+                new ProbabilityBasedCredibleSetComputer(ccd, 2000, 100, 0, 2),
+                CredibleCCDComputer.getCredibleCCDComputer(ccd, CredibleSetType.PartitionProbability)};
+        for (ICredibleSet cred : credibleSets) {
+            List<String[]> rows = evaluate("test.trees", cred);
+            assertEquals(testTrees.size(), rows.size());
+            for (int i = 0; i < testTrees.size(); i++) {
+                String[] row = rows.get(i);
+                Tree tree = testTrees.get(i);
+                assertEquals("test.trees", row[0]);
+                assertEquals(i, Integer.parseInt(row[1]));
+                assertEquals(ccd.getProbabilityOfTree(tree), Double.parseDouble(row[2]), 1e-12);
+                assertEquals(cred.getCredibleLevel(tree), Double.parseDouble(row[4]), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testFileNameQuoted() throws IOException {
+        ICredibleSet cred = CredibleCCDComputer.getCredibleCCDComputer(ccd, CredibleSetType.PartitionProbability);
+        String prefix = "\"run 1, \"\"final\"\".trees\",";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TreeCredibleLevel.evaluateTrees(TreeTestUtil.getTreeSet(testTrees.subList(0, 3)), "run 1, \"final\".trees",
+                ccd, cred, 1, new PrintStream(out, true));
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i].startsWith(prefix + i + ","));
+            assertEquals(4, lines[i].substring(prefix.length()).split(",").length);
+        }
+    }
+
+    /* Helper method - returns the CSV rows written in batch mode for the test trees with two threads */
+    private List<String[]> evaluate(String fileName, ICredibleSet cred) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int numTrees = TreeCredibleLevel.evaluateTrees(TreeTestUtil.getTreeSet(testTrees), fileName,
+                ccd, cred, 2, new PrintStream(out, true));
+        assertEquals(testTrees.size(), numTrees);
+
+        List<String[]> rows = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            rows.add(line.split(","));
+        }
+        return rows;
+    }
+
+}